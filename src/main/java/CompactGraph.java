@@ -0,0 +1,329 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Array based copy of the road graph held by a GraphDB, used by the searches that have to
+ * touch many vertices (distance matrices, reachability, batch routing).
+ * Vertices are numbered 0..size()-1 and the edges are stored in compressed sparse row form:
+ * the neighbors of vertex v are targets[offsets[v]] up to targets[offsets[v + 1] - 1], and
+ * lengths[i] is the length of edge i in meters and times[i] its travel time in seconds.
+ * Edge costs are computed once here, so the searches only read arrays instead of running the
+ * great-circle formula on every relaxation. The travel time uses the maxspeed tag of the
+ * way, or the typical speed of its highway class if it has none.
+ * Vertices are numbered along a Hilbert curve over their coordinates rather than in the
+ * order of the OSM file, so vertices close on the map are close in the arrays and a search,
+ * which only ever moves to nearby vertices, stays within few cache lines.
+ * Every vertex is labeled with its connected component when the graph is built, so a route
+ * between two components is rejected without searching. Points are snapped onto the graph
+ * through a SegmentIndex over its road segments.
+ * A CompactGraph is never modified after it is built.
+ */
+public class CompactGraph {
+    /** Meters per statute mile, GraphDB.distance returns miles. */
+    static final double METERS_PER_MILE = 1609.344;
+    /** Typical speeds in km/h of the highway classes allowed by GraphBuildingHandler. */
+    private static final Map<String, Double> HIGHWAY_SPEEDS = new HashMap<>();
+    /** Speed in km/h of a way with neither a known highway class nor a maxspeed. */
+    private static final double DEFAULT_SPEED = 30;
+    /** Bits per coordinate of the Hilbert curve the vertices are ordered along. */
+    private static final int HILBERT_BITS = 15;
+
+    static {
+        HIGHWAY_SPEEDS.put("motorway", 100.0);
+        HIGHWAY_SPEEDS.put("trunk", 80.0);
+        HIGHWAY_SPEEDS.put("primary", 60.0);
+        HIGHWAY_SPEEDS.put("secondary", 50.0);
+        HIGHWAY_SPEEDS.put("tertiary", 40.0);
+        HIGHWAY_SPEEDS.put("unclassified", 30.0);
+        HIGHWAY_SPEEDS.put("residential", 25.0);
+        HIGHWAY_SPEEDS.put("living_street", 10.0);
+        HIGHWAY_SPEEDS.put("motorway_link", 60.0);
+        HIGHWAY_SPEEDS.put("trunk_link", 50.0);
+        HIGHWAY_SPEEDS.put("primary_link", 40.0);
+        HIGHWAY_SPEEDS.put("secondary_link", 35.0);
+        HIGHWAY_SPEEDS.put("tertiary_link", 30.0);
+    }
+
+    /** OSM id of every vertex. */
+    final long[] ids;
+    final double[] lons;
+    final double[] lats;
+    /** Edge i leaves the vertex v with offsets[v] <= i < offsets[v + 1]. */
+    final int[] offsets;
+    final int[] targets;
+    /** Length of every edge in meters. */
+    final double[] lengths;
+    /** Travel time of every edge in seconds. */
+    final double[] times;
+    /** The highest speed of any edge in meters per second. */
+    final double maxSpeed;
+    /** Connected component of every vertex, numbered from 0. */
+    final int[] component;
+    /** Number of vertices in every component. */
+    final int[] componentSizes;
+    /** The component with the most vertices, -1 if the graph is empty. */
+    final int largest;
+    /** Straight-line distances that never exceed the great-circle ones between vertices. */
+    final Equirectangular plane;
+    /** The segments points are snapped to: those of the largest component if snapLargest. */
+    private final SegmentIndex segments;
+    /** OSM id to vertex index. */
+    private final Map<Long, Integer> index;
+
+    /**
+     * Build the array form of the given graph. Must be called after the graph is cleaned,
+     * as every vertex of g is copied.
+     * @param g the graph to copy.
+     * @param snapLargest whether points are only snapped to the largest component, so that
+     * a point next to a parking lot or a private road still gets a route.
+     */
+    CompactGraph(GraphDB g, boolean snapLargest) {
+        int n = g.nodes.size();
+        ids = new long[n];
+        lons = new double[n];
+        lats = new double[n];
+        offsets = new int[n + 1];
+        index = new HashMap<>(n * 2);
+
+        GraphDB.Node[] order = hilbertOrder(g.nodes.values().toArray(new GraphDB.Node[n]));
+        int v = 0;
+        int m = 0;
+        for (GraphDB.Node node : order) {
+            ids[v] = node.id;
+            lons[v] = node.lon;
+            lats[v] = node.lat;
+            index.put(node.id, v);
+            m += node.adjacency.size();
+            v += 1;
+        }
+
+        targets = new int[m];
+        lengths = new double[m];
+        int e = 0;
+        v = 0;
+        for (GraphDB.Node node : order) {
+            offsets[v] = e;
+            for (long w : node.adjacency) {
+                int t = index.get(w);
+                targets[e] = t;
+                lengths[e] = GraphDB.distance(node.lon, node.lat, lons[t], lats[t])
+                        * METERS_PER_MILE;
+                e += 1;
+            }
+            v += 1;
+        }
+        offsets[n] = e;
+
+        /* an edge takes the speed of the fastest way it is part of. */
+        double[] speeds = new double[m];
+        for (GraphDB.Way way : g.ways.values()) {
+            double speed = speed(way);
+            for (int i = 0; i + 1 < way.wayNodes.size(); i += 1) {
+                int a = indexOf(way.wayNodes.get(i));
+                int b = indexOf(way.wayNodes.get(i + 1));
+                if (a < 0 || b < 0) {
+                    continue;
+                }
+                setSpeed(speeds, a, b, speed);
+                setSpeed(speeds, b, a, speed);
+            }
+        }
+        times = new double[m];
+        double fastest = DEFAULT_SPEED / 3.6;
+        for (int i = 0; i < m; i += 1) {
+            if (speeds[i] == 0) {
+                speeds[i] = DEFAULT_SPEED / 3.6;
+            }
+            times[i] = lengths[i] / speeds[i];
+            fastest = Math.max(fastest, speeds[i]);
+        }
+        maxSpeed = fastest;
+
+        component = new int[n];
+        Arrays.fill(component, -1);
+        int[] queue = new int[n];
+        int[] sizes = new int[n];
+        int count = 0;
+        int biggest = -1;
+        for (int source = 0; source < n; source += 1) {
+            if (component[source] >= 0) {
+                continue;
+            }
+            /* breadth first search, queue[head..tail) holds the vertices still to expand. */
+            int head = 0;
+            int tail = 0;
+            component[source] = count;
+            queue[tail++] = source;
+            while (head < tail) {
+                int u = queue[head++];
+                for (int i = offsets[u]; i < offsets[u + 1]; i += 1) {
+                    if (component[targets[i]] < 0) {
+                        component[targets[i]] = count;
+                        queue[tail++] = targets[i];
+                    }
+                }
+            }
+            sizes[count] = tail;
+            if (biggest < 0 || tail > sizes[biggest]) {
+                biggest = count;
+            }
+            count += 1;
+        }
+        componentSizes = Arrays.copyOf(sizes, count);
+        largest = biggest;
+        double minLat = 0;
+        double maxLat = 0;
+        for (int u = 0; u < n; u += 1) {
+            minLat = u == 0 ? lats[u] : Math.min(minLat, lats[u]);
+            maxLat = u == 0 ? lats[u] : Math.max(maxLat, lats[u]);
+        }
+        plane = new Equirectangular(minLat, maxLat);
+        segments = new SegmentIndex(this, snapLargest ? largest : -1);
+    }
+
+    /**
+     * Sort nodes along a Hilbert curve laid over their bounding box.
+     * @return the nodes in curve order.
+     */
+    private static GraphDB.Node[] hilbertOrder(GraphDB.Node[] nodes) {
+        double minLon = Double.MAX_VALUE, minLat = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        for (GraphDB.Node node : nodes) {
+            minLon = Math.min(minLon, node.lon);
+            maxLon = Math.max(maxLon, node.lon);
+            minLat = Math.min(minLat, node.lat);
+            maxLat = Math.max(maxLat, node.lat);
+        }
+        int side = 1 << HILBERT_BITS;
+        double span = Math.max(Math.max(maxLon - minLon, maxLat - minLat), 1e-9);
+        /* the curve position in the high bits and the node in the low bits, so sorting
+         * primitive longs sorts the nodes. */
+        long[] keys = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i += 1) {
+            int x = (int) Math.min(side - 1, (nodes[i].lon - minLon) / span * side);
+            int y = (int) Math.min(side - 1, (nodes[i].lat - minLat) / span * side);
+            keys[i] = hilbertIndex(x, y, side) << 32 | i;
+        }
+        Arrays.sort(keys);
+        GraphDB.Node[] sorted = new GraphDB.Node[nodes.length];
+        for (int i = 0; i < nodes.length; i += 1) {
+            sorted[i] = nodes[(int) keys[i]];
+        }
+        return sorted;
+    }
+
+    /** @return the distance along the Hilbert curve filling a side by side grid to (x, y). */
+    static long hilbertIndex(int x, int y, int side) {
+        long d = 0;
+        for (int s = side / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            /* rotate the quadrant so the curve inside it has the right orientation. */
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = side - 1 - x;
+                    y = side - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    private void setSpeed(double[] speeds, int from, int to, double speed) {
+        for (int e = offsets[from]; e < offsets[from + 1]; e += 1) {
+            if (targets[e] == to) {
+                speeds[e] = Math.max(speeds[e], speed);
+            }
+        }
+    }
+
+    /**
+     * The speed of a way: its maxspeed tag if that is a number ("50", "30 mph"), or else the
+     * typical speed of its highway class.
+     * @return the speed in meters per second.
+     */
+    static double speed(GraphDB.Way way) {
+        String maxspeed = way.infos.get("maxspeed");
+        if (maxspeed != null) {
+            String[] parts = maxspeed.trim().split("\\s+");
+            try {
+                double kmh = Double.parseDouble(parts[0]);
+                if (parts.length > 1 && parts[1].equals("mph")) {
+                    kmh *= METERS_PER_MILE / 1000;
+                }
+                if (kmh > 0) {
+                    return kmh / 3.6;
+                }
+            } catch (NumberFormatException e) {
+                /* "none", "walk", "RU:urban" and the like: use the highway class. */
+            }
+        }
+        Double kmh = HIGHWAY_SPEEDS.get(way.infos.get("highway"));
+        return (kmh == null ? DEFAULT_SPEED : kmh) / 3.6;
+    }
+
+    /** @return whether there is a path between the vertices u and v. */
+    boolean connected(int u, int v) {
+        return component[u] == component[v];
+    }
+
+    /** @return the number of vertices. */
+    int size() {
+        return ids.length;
+    }
+
+    /** @return the number of directed edges, each road segment is counted twice. */
+    int edgeCount() {
+        return targets.length;
+    }
+
+    /** @return the number of bytes taken by the arrays of the graph, its segment index, and
+     * its map of OSM ids, see HeapFootprint. */
+    long bytes() {
+        int n = ids.length;
+        return (long) Long.BYTES * n + (long) Double.BYTES * (lons.length + lats.length)
+                + (long) Integer.BYTES * (offsets.length + targets.length)
+                + (long) Double.BYTES * (lengths.length + times.length)
+                + (long) Integer.BYTES * (component.length + componentSizes.length)
+                + segments.bytes()
+                + HeapFootprint.hashMap(n) + n * (HeapFootprint.LONG + HeapFootprint.INTEGER);
+    }
+
+    /**
+     * Gets the vertex index of an OSM node id.
+     * @param id the OSM id.
+     * @return the vertex index, or -1 if the node is not part of the graph.
+     */
+    int indexOf(long id) {
+        Integer v = index.get(id);
+        return v == null ? -1 : v;
+    }
+
+    /**
+     * Returns the vertex closest to the given longitude and latitude, within the largest
+     * component if the graph was built to snap there.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The index of the closest vertex, or -1 if the graph is empty.
+     */
+    int closest(double lon, double lat) {
+        return segments.closestVertex(lon, lat);
+    }
+
+    /**
+     * Snaps the given longitude and latitude onto the nearest road segment, within the
+     * largest component if the graph was built to snap there. A route from a snapped point
+     * starts in the middle of the segment instead of at a vertex that may be far away.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The nearest point on a segment, or null if the graph has no segments.
+     */
+    SegmentIndex.Snap snap(double lon, double lat) {
+        return segments.snap(lon, lat);
+    }
+}
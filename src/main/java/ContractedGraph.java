@@ -0,0 +1,275 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The road graph of a CompactGraph with its chains of degree-2 vertices collapsed, used for
+ * point-to-point routing. Most OSM nodes only shape the curve of a road: they have exactly
+ * two neighbors and a search gains nothing by settling them one at a time.
+ * The vertices kept are the core vertices, those with a number of neighbors other than two
+ * (junctions and dead ends). Every chain of base vertices between two core vertices becomes
+ * one undirected chain, searched as two directed core edges that carry the summed length and
+ * travel time of the chain. The interior vertices of a chain are kept in order, with their
+ * cost from the start of the chain, so a path over core edges expands back into the full
+ * sequence of base vertices, and a search can start or end in the middle of a chain.
+ * A ring of degree-2 vertices with no junction gets one of its vertices as a core vertex.
+ */
+class ContractedGraph {
+    /** The graph this was built from; paths are reported in its vertex indices. */
+    final CompactGraph base;
+    /** Base vertex of every core vertex. */
+    final int[] core;
+    /** Core vertex of every base vertex, -1 for the interior vertices of chains. */
+    final int[] coreOf;
+
+    /** Core edge i leaves the core vertex v with offsets[v] <= i < offsets[v + 1]. */
+    final int[] offsets;
+    final int[] targets;
+    /** Length in meters and travel time in seconds of every core edge. */
+    final double[] lengths;
+    final double[] times;
+    /** The chain of every core edge: k if it runs along chain k, ~k if against it. */
+    final int[] edgeChain;
+
+    /** First and last core vertex of every chain. */
+    final int[] chainFrom;
+    final int[] chainTo;
+    /** The core edge running along every chain from chainFrom to chainTo. */
+    final int[] chainEdge;
+    /** The interior vertices of chain k are at positions chainStart[k] to chainStart[k + 1]. */
+    final int[] chainStart;
+    /** Base vertex at every position. */
+    final int[] chainNodes;
+    /** Length and travel time from chainFrom to the vertex at every position. */
+    final double[] chainLengths;
+    final double[] chainTimes;
+    /** Chain and position of every interior base vertex, -1 for core vertices. */
+    final int[] chainOf;
+    final int[] positionOf;
+    /**
+     * The chain of every base edge: k if it runs along chain k, ~k if against it. Loops of
+     * a vertex to itself are on no chain.
+     */
+    final int[] baseChain;
+    /**
+     * The costs of the core edges under the rules of the RoadOverlay, null if none apply.
+     * Replaced as a whole when the rules change; a search reads it once.
+     */
+    volatile RoadOverlay.Penalties penalties;
+    /** The paths found lately, valid under penalties. */
+    final RouteCache routes = new RouteCache();
+
+    /**
+     * Collapse the chains of g.
+     * @param g the graph to contract.
+     */
+    ContractedGraph(CompactGraph g) {
+        base = g;
+        int n = g.size();
+        boolean[] isCore = new boolean[n];
+        for (int v = 0; v < n; v += 1) {
+            isCore[v] = neighborCount(g, v) != 2;
+        }
+
+        chainOf = new int[n];
+        positionOf = new int[n];
+        Arrays.fill(chainOf, -1);
+        Arrays.fill(positionOf, -1);
+        baseChain = new int[g.edgeCount()];
+        boolean[] walked = new boolean[g.edgeCount()];
+        List<int[]> chains = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        for (int v = 0; v < n; v += 1) {
+            if (isCore[v]) {
+                walkChains(g, v, isCore, walked, chains, ends);
+            }
+        }
+        /* whatever is left are rings without a junction. */
+        for (int v = 0; v < n; v += 1) {
+            if (!isCore[v] && chainOf[v] < 0) {
+                isCore[v] = true;
+                walkChains(g, v, isCore, walked, chains, ends);
+            }
+        }
+
+        coreOf = new int[n];
+        int coreCount = 0;
+        for (int v = 0; v < n; v += 1) {
+            coreOf[v] = isCore[v] ? coreCount++ : -1;
+        }
+        core = new int[coreCount];
+        for (int v = 0; v < n; v += 1) {
+            if (isCore[v]) {
+                core[coreOf[v]] = v;
+            }
+        }
+
+        int k = chains.size();
+        int interior = 0;
+        for (int[] chain : chains) {
+            interior += chain.length;
+        }
+        chainFrom = new int[k];
+        chainTo = new int[k];
+        chainEdge = new int[k];
+        chainStart = new int[k + 1];
+        chainNodes = new int[interior];
+        chainLengths = new double[interior];
+        chainTimes = new double[interior];
+        double[] totalLength = new double[k];
+        double[] totalTime = new double[k];
+        int p = 0;
+        for (int c = 0; c < k; c += 1) {
+            chainFrom[c] = coreOf[ends.get(2 * c)];
+            chainTo[c] = coreOf[ends.get(2 * c + 1)];
+            chainStart[c] = p;
+            int prev = core[chainFrom[c]];
+            double length = 0;
+            double time = 0;
+            int[] chain = chains.get(c);
+            for (int i = 0; i <= chain.length; i += 1) {
+                int next = i < chain.length ? chain[i] : core[chainTo[c]];
+                int e = edgeBetween(g, prev, next, null);
+                length += g.lengths[e];
+                time += g.times[e];
+                if (i < chain.length) {
+                    chainNodes[p] = next;
+                    chainLengths[p] = length;
+                    chainTimes[p] = time;
+                    chainOf[next] = c;
+                    positionOf[next] = p;
+                    p += 1;
+                }
+                prev = next;
+            }
+            totalLength[c] = length;
+            totalTime[c] = time;
+        }
+        chainStart[k] = p;
+
+        offsets = new int[coreCount + 1];
+        for (int c = 0; c < k; c += 1) {
+            offsets[chainFrom[c] + 1] += 1;
+            offsets[chainTo[c] + 1] += 1;
+        }
+        for (int v = 0; v < coreCount; v += 1) {
+            offsets[v + 1] += offsets[v];
+        }
+        targets = new int[2 * k];
+        lengths = new double[2 * k];
+        times = new double[2 * k];
+        edgeChain = new int[2 * k];
+        int[] next = Arrays.copyOf(offsets, coreCount);
+        for (int c = 0; c < k; c += 1) {
+            int e = next[chainFrom[c]]++;
+            targets[e] = chainTo[c];
+            lengths[e] = totalLength[c];
+            times[e] = totalTime[c];
+            edgeChain[e] = c;
+            chainEdge[c] = e;
+            e = next[chainTo[c]]++;
+            targets[e] = chainFrom[c];
+            lengths[e] = totalLength[c];
+            times[e] = totalTime[c];
+            edgeChain[e] = ~c;
+        }
+    }
+
+    /**
+     * Follow every edge of the core vertex v that has not been walked yet to the next core
+     * vertex, and record the base vertices passed on the way as a chain.
+     */
+    private void walkChains(CompactGraph g, int v, boolean[] isCore, boolean[] walked,
+                            List<int[]> chains, List<Integer> ends) {
+        for (int first = g.offsets[v]; first < g.offsets[v + 1]; first += 1) {
+            if (walked[first] || g.targets[first] == v) {
+                continue;
+            }
+            List<Integer> interior = new ArrayList<>();
+            int prev = v;
+            int e = first;
+            while (true) {
+                int cur = g.targets[e];
+                int back = edgeBetween(g, cur, prev, walked);
+                walked[e] = true;
+                walked[back] = true;
+                baseChain[e] = chains.size();
+                baseChain[back] = ~chains.size();
+                if (isCore[cur]) {
+                    break;
+                }
+                /* mark cur now, so a ring starting and ending at v is walked only once. */
+                chainOf[cur] = chains.size();
+                interior.add(cur);
+                e = otherEdge(g, cur, prev);
+                prev = cur;
+            }
+            int[] chain = new int[interior.size()];
+            for (int i = 0; i < chain.length; i += 1) {
+                chain[i] = interior.get(i);
+            }
+            chains.add(chain);
+            ends.add(v);
+            ends.add(g.targets[e]);
+        }
+    }
+
+    /** @return the number of distinct neighbors of v, not counting v itself. */
+    private static int neighborCount(CompactGraph g, int v) {
+        int count = 0;
+        for (int e = g.offsets[v]; e < g.offsets[v + 1]; e += 1) {
+            if (g.targets[e] != v) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return an edge from u to v, one that has not been walked yet if walked is given, or
+     * the first one otherwise.
+     */
+    private static int edgeBetween(CompactGraph g, int u, int v, boolean[] walked) {
+        int found = -1;
+        for (int e = g.offsets[u]; e < g.offsets[u + 1]; e += 1) {
+            if (g.targets[e] == v) {
+                if (walked == null || !walked[e]) {
+                    return e;
+                }
+                found = e;
+            }
+        }
+        return found;
+    }
+
+    /** @return the edge leaving the degree-2 vertex v towards its neighbor other than prev. */
+    private static int otherEdge(CompactGraph g, int v, int prev) {
+        for (int e = g.offsets[v]; e < g.offsets[v + 1]; e += 1) {
+            if (g.targets[e] != prev && g.targets[e] != v) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("vertex " + v + " is not on a chain");
+    }
+
+    /** @return the number of core vertices. */
+    int size() {
+        return core.length;
+    }
+
+    /** @return the number of bytes taken by the arrays of the graph and by its Penalties, not
+     * those of the base graph. */
+    long bytes() {
+        long bytes = (long) Integer.BYTES * (core.length + coreOf.length + offsets.length
+                + targets.length + edgeChain.length + chainFrom.length + chainTo.length
+                + chainEdge.length + chainStart.length + chainNodes.length + chainOf.length
+                + positionOf.length + baseChain.length)
+                + (long) Double.BYTES * (lengths.length + times.length + chainLengths.length
+                + chainTimes.length);
+        RoadOverlay.Penalties p = penalties;
+        if (p != null) {
+            bytes += (long) Double.BYTES * (p.lengths.length + p.times.length);
+        }
+        return bytes;
+    }
+}
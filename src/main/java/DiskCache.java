@@ -0,0 +1,477 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+/**
+ * A cache of byte arrays on local disk that outlives the server, below the memory caches of
+ * drawn tiles, vector tiles and rasters, so a restarted server serves what it made before
+ * instead of drawing it again.
+ * Values are appended to segment files of SEGMENT_BYTES under ROOT, each mapped into memory
+ * whole. A record is a header of MAGIC, the key length, the value length and a CRC32C of key
+ * and value, then the UTF-8 key, then the value. A record is never changed once written; an
+ * index in memory points every key to its latest record.
+ * When the segments would hold more than MAX_BYTES, the oldest segment is compacted away on a
+ * thread of its own: the records of it that were read since they were written are appended
+ * again, and the others are dropped with the file. A record thus stays as long as it is used,
+ * as in a clock cache.
+ * On startup the index is rebuilt from the record headers alone, which takes milliseconds, so
+ * the cache serves right away; a scan stops at the first header that is not a record, e.g. the
+ * end of a segment or a record cut short by a crash. Segments left past MAX_BYTES, e.g. by a
+ * crash before their compaction, are dropped oldest first. Checksums are checked when a value is
+ * read, and a record that fails is dropped, so a damaged file costs a redraw, never a broken
+ * image. The directory is locked, so a second server on the same directory runs without.
+ */
+class DiskCache {
+    /** Where the segment files are kept. */
+    static final String ROOT = "disk-cache";
+    /** Size of a segment file. */
+    private static final int SEGMENT_BYTES = 16 << 20;
+    /** Largest size of all segment files together. */
+    private static final long MAX_BYTES = 256L << 20;
+    /** Marks the start of a record. */
+    private static final int MAGIC = 0x44435231;
+    /** Magic, key length, value length and checksum. */
+    private static final int HEADER_BYTES = 16;
+    private static final int MAX_KEY_BYTES = 1024;
+    private static final String SUFFIX = ".seg";
+
+    private static DiskCache shared;
+
+    /** A segment file mapped into memory. */
+    private static class Segment {
+        final long number;
+        final Path file;
+        final MappedByteBuffer map;
+        /** Where the next record goes; the records are before it. */
+        int end;
+
+        Segment(long number, Path file, MappedByteBuffer map) {
+            this.number = number;
+            this.file = file;
+            this.map = map;
+        }
+    }
+
+    /** Where the latest record of a key is. */
+    private static class Entry {
+        final Segment segment;
+        final int offset;
+        final int keyLength;
+        final int valueLength;
+        /** Whether the value was read since the record was written. */
+        boolean used;
+
+        Entry(Segment segment, int offset, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        int length() {
+            return HEADER_BYTES + keyLength + valueLength;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    /** Held as long as the cache is open, null if the cache is disabled. */
+    private final FileLock lock;
+    /** Oldest first, the last one is appended to. */
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, Entry> index = new HashMap<>();
+    /** Compacts the segments rolled out of the budget, one at a time. */
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "disk-cache-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+    private final long attachMillis;
+    private long hits;
+    private long misses;
+    private long writes;
+    private long corrupt;
+    private long compactions;
+    private long kept;
+    private long dropped;
+
+    /**
+     * Open the cache in a directory with segments of SEGMENT_BYTES and a budget of MAX_BYTES.
+     * @param dir The directory.
+     */
+    DiskCache(Path dir) {
+        this(dir, SEGMENT_BYTES, MAX_BYTES);
+    }
+
+    /**
+     * Open the cache in a directory, rebuilding its index from the segments there.
+     * If the directory cannot be used or is locked by another process, the cache is disabled:
+     * it finds nothing and keeps nothing.
+     * @param dir The directory.
+     * @param segmentBytes Size of a segment file; reopening a directory needs the same size.
+     * @param maxBytes Largest size of all segment files together, at least two segments.
+     */
+    DiskCache(Path dir, int segmentBytes, long maxBytes) {
+        long started = System.nanoTime();
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        FileLock locked = null;
+        try {
+            Files.createDirectories(dir);
+            FileChannel channel = FileChannel.open(dir.resolve("lock"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                locked = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                locked = null;
+            }
+            if (locked == null) {
+                channel.close();
+                throw new IOException("disk cache " + dir + " is in use, running without it");
+            }
+            attach();
+        } catch (IOException e) {
+            e.printStackTrace();
+            segments.clear();
+            index.clear();
+            locked = null;
+        }
+        lock = locked;
+        attachMillis = (System.nanoTime() - started) / 1000000;
+    }
+
+    /** @return the cache of the server under ROOT, opened on first use. */
+    static synchronized DiskCache shared() {
+        if (shared == null) {
+            shared = new DiskCache(Paths.get(ROOT));
+        }
+        return shared;
+    }
+
+    /** Map the segments in dir and index their records, oldest segment first. */
+    private void attach() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(0, name.length()
+                            - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        }
+        numbers.sort(null);
+        for (long number : numbers) {
+            Segment segment = map(number);
+            segments.add(segment);
+            scan(segment);
+        }
+        /* nothing was read yet, so the records of the oldest segments are all dropped. */
+        while ((long) segments.size() * segmentBytes > maxBytes) {
+            Segment oldest = segments.remove(0);
+            index.values().removeIf(entry -> entry.segment == oldest);
+            Files.deleteIfExists(oldest.file);
+        }
+        if (segments.isEmpty()) {
+            segments.add(map(0));
+        }
+    }
+
+    /** Map segment file number, creating it if it does not exist. */
+    private Segment map(long number) throws IOException {
+        Path file = dir.resolve(String.format("%08d", number) + SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            /* mapping past the end grows the file, sparsely on most file systems. */
+            return new Segment(number, file,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+
+    /** Index the records of a segment, up to the first header that is not a record. */
+    private void scan(Segment segment) {
+        ByteBuffer map = segment.map.duplicate();
+        int offset = 0;
+        while (offset + HEADER_BYTES <= segmentBytes) {
+            int keyLength = map.getInt(offset + 4);
+            int valueLength = map.getInt(offset + 8);
+            if (map.getInt(offset) != MAGIC || keyLength < 0 || keyLength > MAX_KEY_BYTES
+                    || valueLength < 0
+                    || valueLength > segmentBytes - HEADER_BYTES - keyLength - offset) {
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            map.get(offset + HEADER_BYTES, key);
+            Entry entry = new Entry(segment, offset, keyLength, valueLength);
+            index.put(new String(key, StandardCharsets.UTF_8), entry);
+            offset += entry.length();
+        }
+        segment.end = offset;
+    }
+
+    /**
+     * @param key The key.
+     * @return A copy of the value of key, or null if it is not cached or its record is
+     * damaged.
+     */
+    byte[] get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = index.get(key);
+            if (entry == null) {
+                misses += 1;
+                return null;
+            }
+            entry.used = true;
+        }
+        /* records are never written over, so they are read without holding the lock. */
+        ByteBuffer map = entry.segment.map.duplicate();
+        byte[] record = new byte[entry.keyLength + entry.valueLength];
+        map.get(entry.offset + HEADER_BYTES, record);
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+        if ((int) crc.getValue() != map.getInt(entry.offset + 12)) {
+            synchronized (this) {
+                index.remove(key, entry);
+                corrupt += 1;
+                misses += 1;
+            }
+            return null;
+        }
+        synchronized (this) {
+            hits += 1;
+        }
+        byte[] value = new byte[entry.valueLength];
+        System.arraycopy(record, entry.keyLength, value, 0, entry.valueLength);
+        return value;
+    }
+
+    /**
+     * Cache a value, replacing the one key had. Values too large for a segment are not kept.
+     * @param key The key, which names everything the value depends on.
+     * @param value The value, not changed by the cache.
+     */
+    synchronized void put(String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_BYTES + keyBytes.length + value.length;
+        if (lock == null || keyBytes.length > MAX_KEY_BYTES || length > segmentBytes) {
+            return;
+        }
+        try {
+            while (active().end + length > segmentBytes) {
+                roll();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(keyBytes);
+        crc.update(value);
+        index.put(key, append(active(), keyBytes, value, (int) crc.getValue()));
+        writes += 1;
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /** Write a record at the end of a segment. */
+    private Entry append(Segment segment, byte[] key, byte[] value, int crc) {
+        ByteBuffer map = segment.map.duplicate();
+        int offset = segment.end;
+        map.put(offset + HEADER_BYTES, key);
+        map.put(offset + HEADER_BYTES + key.length, value);
+        map.putInt(offset + 4, key.length);
+        map.putInt(offset + 8, value.length);
+        map.putInt(offset + 12, crc);
+        map.putInt(offset, MAGIC);
+        Entry entry = new Entry(segment, offset, key.length, value.length);
+        segment.end += entry.length();
+        /* the next scan stops here; the bytes after a compacted record may be old ones. */
+        if (segment.end + 4 <= segmentBytes) {
+            map.putInt(segment.end, 0);
+        }
+        return entry;
+    }
+
+    /**
+     * Start a new segment, handing the oldest one to the compactor if the segments take too
+     * much room. Its records are still read from it until they are moved.
+     */
+    private void roll() throws IOException {
+        segments.add(map(active().number + 1));
+        if ((long) segments.size() * segmentBytes > maxBytes) {
+            Segment oldest = segments.remove(0);
+            compactor.execute(() -> compact(oldest));
+        }
+    }
+
+    /**
+     * Append the records of segment that were read since they were written to the active
+     * segment and delete segment with the others.
+     * Room for the records is taken in the active segment under the lock, and they are copied
+     * into it without, so gets and puts go on during the copy. A key put again meanwhile keeps
+     * its new record, which is after the copied one and so also wins the scan on startup.
+     */
+    private void compact(Segment segment) {
+        List<String> keys = new ArrayList<>();
+        List<Entry> from = new ArrayList<>();
+        Segment target;
+        int offset;
+        synchronized (this) {
+            int length = 0;
+            Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> item = it.next();
+                Entry entry = item.getValue();
+                if (entry.segment != segment) {
+                    continue;
+                }
+                if (!entry.used) {
+                    it.remove();
+                    dropped += 1;
+                    continue;
+                }
+                keys.add(item.getKey());
+                from.add(entry);
+                length += entry.length();
+            }
+            try {
+                /* a new segment has room for all of them. */
+                while (active().end + length > segmentBytes) {
+                    roll();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                for (int i = 0; i < keys.size(); i += 1) {
+                    index.remove(keys.get(i), from.get(i));
+                }
+                dropped += keys.size();
+                keys.clear();
+                from.clear();
+                length = 0;
+            }
+            target = active();
+            offset = target.end;
+            target.end += length;
+            /* scans stop at the taken room until the records are in it. */
+            target.map.putInt(offset, 0);
+            if (target.end + 4 <= segmentBytes) {
+                target.map.putInt(target.end, 0);
+            }
+        }
+        ByteBuffer source = segment.map.duplicate();
+        ByteBuffer map = target.map.duplicate();
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : from) {
+            /* a damaged record is copied with its checksum, so it still fails when read. */
+            byte[] record = new byte[entry.length()];
+            source.get(entry.offset, record);
+            map.put(offset + 4, record, 4, record.length - 4);
+            map.putInt(offset, MAGIC);
+            entries.add(new Entry(target, offset, entry.keyLength, entry.valueLength));
+            offset += record.length;
+        }
+        synchronized (this) {
+            for (int i = 0; i < keys.size(); i += 1) {
+                if (index.replace(keys.get(i), from.get(i), entries.get(i))) {
+                    kept += 1;
+                } else {
+                    dropped += 1;
+                }
+            }
+            compactions += 1;
+        }
+        /* readers still holding the mapping keep reading it after the file is gone. */
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return A map of parameters for the Json response as specified: <br>
+     * "enabled" : Boolean, whether the cache could lock its directory. <br>
+     * "segments" : Number, the segment files. <br>
+     * "bytes" : Number, the bytes of records in them. <br>
+     * "entries" : Number, the keys cached. <br>
+     * "hits" : Number, the values found. <br>
+     * "misses" : Number, the values not found. <br>
+     * "writes" : Number, the values cached. <br>
+     * "corrupt" : Number, the records dropped because their checksum failed. <br>
+     * "compactions" : Number, the segments compacted away. <br>
+     * "kept" : Number, the records compactions copied. <br>
+     * "dropped" : Number, the records compactions dropped. <br>
+     * "attach_ms" : Number, how long opening the cache took. <br>
+     */
+    synchronized Map<String, Object> status() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.end;
+        }
+        Map<String, Object> status = new HashMap<>();
+        status.put("enabled", lock != null);
+        status.put("segments", segments.size());
+        status.put("bytes", bytes);
+        status.put("entries", index.size());
+        status.put("hits", hits);
+        status.put("misses", misses);
+        status.put("writes", writes);
+        status.put("corrupt", corrupt);
+        status.put("compactions", compactions);
+        status.put("kept", kept);
+        status.put("dropped", dropped);
+        status.put("attach_ms", attachMillis);
+        return status;
+    }
+
+    /**
+     * @return the "entries" and estimated "bytes" of the index on the heap, the "disk_bytes"
+     * of records, the "mapped_bytes" of the segments mapped outside the heap, and the
+     * "budget_bytes" of the segments, see HeapFootprint.
+     */
+    synchronized Map<String, Object> footprint() {
+        /* an Entry has a reference, three ints and a boolean. */
+        long bytes = HeapFootprint.hashMap(index.size()) + (long) index.size()
+                * HeapFootprint.align(HeapFootprint.HEADER + HeapFootprint.REFERENCE + 3 * 4 + 1);
+        for (String key : index.keySet()) {
+            bytes += HeapFootprint.string(key);
+        }
+        long disk = 0;
+        long mapped = 0;
+        for (Segment segment : segments) {
+            disk += segment.end;
+            mapped += segment.map.capacity();
+        }
+        Map<String, Object> footprint = new HashMap<>();
+        footprint.put("entries", (long) index.size());
+        footprint.put("bytes", bytes);
+        footprint.put("disk_bytes", disk);
+        footprint.put("mapped_bytes", mapped);
+        footprint.put("budget_bytes", maxBytes);
+        return footprint;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Straight-line distances in meters on an equirectangular projection, for the loops that
+ * measure many distances at city scale: a degree of longitude is taken to be as long
+ * everywhere as it is at one latitude, so a distance costs a square root instead of the
+ * trigonometry of GraphDB.distance.
+ * The distances of a projection made for a set of latitudes never exceed the great-circle
+ * distance between two points within them: longitude is scaled for the latitude farthest
+ * from the equator, where a degree is shortest, and everything is shrunk by SAFETY so the
+ * curvature of the earth cannot make up for it over any distance a graph spans. They are
+ * therefore admissible A* heuristics and safe pruning bounds, and since they form a metric,
+ * the heuristics are consistent as well.
+ * The batch methods take coordinates as separate arrays of longitudes and latitudes, as
+ * CompactGraph keeps them. The batch distance is a plain loop without branches, which the
+ * JIT compiles to vector instructions.
+ */
+class Equirectangular {
+    /** Shrinks every distance, see the class comment. */
+    private static final double SAFETY = 0.999;
+
+    /** Meters per degree of longitude and of latitude. */
+    private final double kx;
+    private final double ky;
+
+    /**
+     * A projection for the points between two latitudes.
+     * @param minLat The southernmost latitude.
+     * @param maxLat The northernmost latitude.
+     */
+    Equirectangular(double minLat, double maxLat) {
+        double farthest = Math.min(90, Math.max(Math.abs(minLat), Math.abs(maxLat)));
+        kx = SegmentIndex.METERS_PER_DEGREE * Math.cos(Math.toRadians(farthest)) * SAFETY;
+        ky = SegmentIndex.METERS_PER_DEGREE * SAFETY;
+    }
+
+    /** @return the distance in meters between two points, at most the great-circle one. */
+    double meters(double lonV, double latV, double lonW, double latW) {
+        double dx = (lonV - lonW) * kx;
+        double dy = (latV - latW) * ky;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Measure the distances from a point to the first count points of two arrays.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @param lons The longitudes of the other points.
+     * @param lats The latitudes of the other points.
+     * @param count How many of the other points to measure.
+     * @param out Receives the distance to point i at out[i].
+     */
+    void meters(double lon, double lat, double[] lons, double[] lats, int count,
+                double[] out) {
+        for (int i = 0; i < count; i += 1) {
+            double dx = (lons[i] - lon) * kx;
+            double dy = (lats[i] - lat) * ky;
+            out[i] = Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+
+    /**
+     * Find the point nearest to a given one, measuring on the plane tangent to the earth at
+     * the given point, which ranks points a few kilometers away as the great-circle
+     * distance does.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @param lons The longitudes of the other points.
+     * @param lats The latitudes of the other points.
+     * @return The index of the nearest point, -1 if there are none.
+     */
+    static int nearest(double lon, double lat, double[] lons, double[] lats) {
+        double kx = Math.cos(Math.toRadians(lat));
+        int best = -1;
+        double bestSquare = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < lons.length; i += 1) {
+            double dx = (lons[i] - lon) * kx;
+            double dy = lats[i] - lat;
+            double square = dx * dx + dy * dy;
+            if (square < bestSquare) {
+                bestSquare = square;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -5,6 +5,7 @@ import org.xml.sax.helpers.DefaultHandler;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -47,6 +48,14 @@ public class GraphBuildingHandler extends DefaultHandler {
         way = null;
     }
 
+    /**
+     * @param tags The tags of a way.
+     * @return whether the way is one of the roads kept in the graph.
+     */
+    static boolean isRoad(Map<String, String> tags) {
+        return ALLOWED_HIGHWAY_TYPES.contains(tags.get("highway"));
+    }
+
     /**
      * Called at the beginning of an element. Typically, you will want to handle each element in
      * here, and you may want to track the parent element.
@@ -127,7 +136,6 @@ public class GraphBuildingHandler extends DefaultHandler {
 
             String name = attributes.getValue("v");
             node.infos.put("name:en", name);
-            g.search.add(node.infos.get("name:en"), node.id);
 //            System.out.println("Node's name: " + attributes.getValue("v"));
         }
     }
@@ -164,7 +172,10 @@ public class GraphBuildingHandler extends DefaultHandler {
                 }
                 /** mark the way node with this way name. */
                 for (long id : way.wayNodes) {
-                    g.nodes.get(id).infos.put("wayName", wayname);
+                    /* like connectNodes, skip nodes the file does not have. */
+                    if (g.nodes.containsKey(id)) {
+                        g.nodes.get(id).infos.put("wayName", wayname);
+                    }
                 }
                 validWay = false;
             }
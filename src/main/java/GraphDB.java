@@ -4,18 +4,26 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.util.ArrayList;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -25,6 +33,8 @@ import java.util.List;
  *
  */
 public class GraphDB {
+    /** Mean radius of the earth in miles, as used by distance. */
+    static final double EARTH_RADIUS_MILES = 3963;
     /** Your instance variables for storing the graph. You should consider
      * creating helper classes, e.g. Node, Edge, etc. */
 
@@ -32,6 +42,20 @@ public class GraphDB {
     Map<Long, Way> ways;
     Map<Long, Node> removedNodes;
     Trie search = new Trie();
+    /** Array form of the cleaned graph, used by the many-vertex searches. */
+    CompactGraph compact;
+    /** The compact graph with its degree-2 chains collapsed, used for routing. */
+    ContractedGraph contracted;
+    /** The ways with a node in the graph, in the order of ways. */
+    private Way[] indexedWays;
+    /** Bounding boxes of indexedWays, in longitude and latitude. */
+    private RTree wayIndex;
+    /** The nodes with a name, in the graph or removed from it. */
+    private Node[] places;
+    /** The locations of places, as boxes of a single point. */
+    private RTree placeIndex;
+    /** See footprint. */
+    private Map<String, Object> footprint;
 
     /**
      * Example constructor shows how to create and start an XML parser.
@@ -39,6 +63,41 @@ public class GraphDB {
      * @param dbPath Path to the XML file to be parsed.
      */
     public GraphDB(String dbPath) {
+        this(dbPath, 0, false);
+    }
+
+    /**
+     * Parse the OSM file and build the graph, optionally without its small islands.
+     * @param dbPath Path to the XML file to be parsed.
+     * @param minComponent Remove the nodes of every connected component with fewer nodes
+     *                     than this, such as parking lots cut off by the extract boundary.
+     *                     The removed nodes can still be found by the location search.
+     * @param snapLargest Whether to snap points only to the largest component.
+     */
+    public GraphDB(String dbPath, int minComponent, boolean snapLargest) {
+        read(dbPath);
+        indexNames();
+        build(minComponent, snapLargest);
+    }
+
+    private GraphDB() {
+    }
+
+    /**
+     * Parse the OSM file without building anything from it, for loading a graph in stages:
+     * indexNames and build are then called on the result, and indexNames must complete
+     * before build, as build removes the nodes indexNames reads.
+     * @param dbPath Path to the XML file to be parsed.
+     * @return The graph with the nodes and ways of the file.
+     */
+    static GraphDB parse(String dbPath) {
+        GraphDB g = new GraphDB();
+        g.read(dbPath);
+        return g;
+    }
+
+    /** Parse the OSM file into nodes and ways. */
+    private void read(String dbPath) {
         nodes = new LinkedHashMap<>();
         ways = new LinkedHashMap<>();
         try {
@@ -60,7 +119,123 @@ public class GraphDB {
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Add the name of every parsed node to the search trie. Only reads the node map, and
+     * must run before clean removes nodes from it.
+     */
+    void indexNames() {
+        for (Node node : nodes.values()) {
+            String name = node.infos.get("name:en");
+            if (name != null) {
+                search.add(name, node.id);
+            }
+        }
+    }
+
+    /**
+     * Apply an OSM change to a built graph, which is left as it was. The nodes and ways the
+     * change does not touch are shared with base, names are added to and removed from a
+     * copy of its search trie that shares every trie node the change does not pass through,
+     * and only the nodes on changed ways and next to deleted nodes have their adjacency and
+     * way name worked out again. The arrays, indexes and contraction are then built from the
+     * result as they are for a parsed file, without reading any XML.
+     * @param base The graph to change.
+     * @param change The change.
+     * @param minComponent See GraphDB(String, int, boolean).
+     * @param snapLargest See GraphDB(String, int, boolean).
+     */
+    GraphDB(GraphDB base, OsmChange change, int minComponent, boolean snapLargest) {
+        /* the nodes the graph was cleaned of may be connected by the change. */
+        nodes = new LinkedHashMap<>(base.nodes);
+        if (base.removedNodes != null) {
+            nodes.putAll(base.removedNodes);
+        }
+        ways = new LinkedHashMap<>(base.ways);
+        search = new Trie(base.search);
+        Set<Long> touched = new HashSet<>();
+        for (OsmChange.Change c : change.changes) {
+            if (c.node != null) {
+                long id = c.node.id;
+                Node old = c.action == OsmChange.Action.DELETE ? nodes.remove(id)
+                        : nodes.put(id, c.node);
+                if (old != null && old.infos.get("name:en") != null) {
+                    search.remove(old.infos.get("name:en"), id);
+                }
+                if (old != null) {
+                    touched.addAll(old.adjacency);
+                }
+                if (c.action != OsmChange.Action.DELETE) {
+                    if (c.node.infos.get("name:en") != null) {
+                        search.add(c.node.infos.get("name:en"), id);
+                    }
+                    touched.add(id);
+                }
+            } else {
+                /* a way that is no longer a road leaves the graph like a deleted one. */
+                boolean road = c.action != OsmChange.Action.DELETE
+                        && GraphBuildingHandler.isRoad(c.way.infos);
+                Way old = road ? ways.put(c.way.id, c.way) : ways.remove(c.way.id);
+                if (old != null) {
+                    touched.addAll(old.wayNodes);
+                }
+                if (road) {
+                    touched.addAll(c.way.wayNodes);
+                }
+            }
+        }
+
+        /* the touched nodes are copied, so the nodes of base keep their adjacency. */
+        Map<Long, Node> copies = new HashMap<>();
+        for (long id : touched) {
+            Node node = nodes.get(id);
+            if (node != null) {
+                Node copy = new Node(id, node.lon, node.lat);
+                copy.infos.putAll(node.infos);
+                copy.infos.remove("wayName");
+                nodes.put(id, copy);
+                copies.put(id, copy);
+            }
+        }
+        for (Way way : ways.values()) {
+            List<Long> wayNodes = way.wayNodes;
+            for (int i = 0; i < wayNodes.size(); i += 1) {
+                Node node = copies.get(wayNodes.get(i));
+                if (node == null) {
+                    continue;
+                }
+                if (i > 0 && nodes.containsKey(wayNodes.get(i - 1))) {
+                    node.adjacency.add(wayNodes.get(i - 1));
+                }
+                if (i + 1 < wayNodes.size() && nodes.containsKey(wayNodes.get(i + 1))) {
+                    node.adjacency.add(wayNodes.get(i + 1));
+                }
+                node.infos.put("wayName", way.infos.get("name:en"));
+            }
+        }
+        build(minComponent, snapLargest);
+    }
+
+    /**
+     * Clean the parsed graph and build what is derived from it, then freeze it. Contraction
+     * and the R-trees only read the cleaned graph, so they are built at the same time.
+     * @param minComponent See GraphDB(String, int, boolean).
+     * @param snapLargest See GraphDB(String, int, boolean).
+     */
+    void build(int minComponent, boolean snapLargest) {
         clean();
+        compact = new CompactGraph(this, snapLargest);
+        if (prune(minComponent)) {
+            compact = new CompactGraph(this, snapLargest);
+        }
+        CompactGraph cleaned = compact;
+        CompletableFuture<ContractedGraph> contraction =
+                CompletableFuture.supplyAsync(() -> new ContractedGraph(cleaned));
+        indexWays();
+        indexPlaces();
+        contracted = contraction.join();
+        freeze();
     }
 
     /**
@@ -92,6 +267,283 @@ public class GraphDB {
         }
     }
 
+    /**
+     * Remove the nodes of the components of compact with fewer than minSize nodes.
+     * @return whether any node was removed.
+     */
+    private boolean prune(int minSize) {
+        boolean pruned = false;
+        for (int v = 0; v < compact.size(); v += 1) {
+            if (compact.componentSizes[compact.component[v]] < minSize) {
+                long id = compact.ids[v];
+                removedNodes.put(id, nodes.remove(id));
+                pruned = true;
+            }
+        }
+        return pruned;
+    }
+
+    /** Build the R-tree over the bounding boxes of the ways, from the nodes left in the graph. */
+    private void indexWays() {
+        indexedWays = ways.values().toArray(new Way[0]);
+        int n = indexedWays.length;
+        double[] minLon = new double[n];
+        double[] minLat = new double[n];
+        double[] maxLon = new double[n];
+        double[] maxLat = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            minLon[i] = minLat[i] = Double.MAX_VALUE;
+            maxLon[i] = maxLat[i] = -Double.MAX_VALUE;
+            for (long id : indexedWays[i].wayNodes) {
+                Node node = nodes.get(id);
+                if (node != null) {
+                    minLon[i] = Math.min(minLon[i], node.lon);
+                    minLat[i] = Math.min(minLat[i], node.lat);
+                    maxLon[i] = Math.max(maxLon[i], node.lon);
+                    maxLat[i] = Math.max(maxLat[i], node.lat);
+                }
+            }
+        }
+        wayIndex = new RTree(minLon, minLat, maxLon, maxLat);
+    }
+
+    /** Build the R-tree over the named nodes, removed ones included as they are still places. */
+    private void indexPlaces() {
+        List<Node> named = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (node.infos.get("name:en") != null) {
+                named.add(node);
+            }
+        }
+        if (removedNodes != null) {
+            for (Node node : removedNodes.values()) {
+                if (node.infos.get("name:en") != null) {
+                    named.add(node);
+                }
+            }
+        }
+        places = named.toArray(new Node[0]);
+        double[] lons = new double[places.length];
+        double[] lats = new double[places.length];
+        for (int i = 0; i < places.length; i += 1) {
+            lons[i] = places[i].lon;
+            lats[i] = places[i].lat;
+        }
+        placeIndex = new RTree(lons, lats, lons, lats);
+    }
+
+    /**
+     * Returns the ways whose bounding box meets the given box, from the R-tree built when
+     * the graph was loaded.
+     * @param minLon The west edge of the box.
+     * @param minLat The south edge of the box.
+     * @param maxLon The east edge of the box.
+     * @param maxLat The north edge of the box.
+     * @return The ways in the order they were read.
+     */
+    List<Way> waysIn(double minLon, double minLat, double maxLon, double maxLat) {
+        List<Way> found = new ArrayList<>();
+        for (int i : wayIndex.search(minLon, minLat, maxLon, maxLat)) {
+            found.add(indexedWays[i]);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the way with a name nearest to a point, through the R-tree of the ways.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @return The way, or null if no way in the graph has a name.
+     */
+    Way nearestNamedWay(double lon, double lat) {
+        double kx = SegmentIndex.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        int i = wayIndex.nearest(lon, lat, kx, SegmentIndex.METERS_PER_DEGREE, j ->
+                indexedWays[j].infos.get("name:en") == null ? Double.POSITIVE_INFINITY
+                        : meters(indexedWays[j], lon, lat));
+        return i < 0 ? null : indexedWays[i];
+    }
+
+    /**
+     * Returns the node with a name nearest to a point, removed nodes included.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @return The node, or null if there are no named nodes.
+     */
+    Node nearestPlace(double lon, double lat) {
+        double kx = SegmentIndex.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        int i = placeIndex.nearest(lon, lat, kx, SegmentIndex.METERS_PER_DEGREE, j ->
+                meters(places[j].lon, places[j].lat, lon, lat));
+        return i < 0 ? null : places[i];
+    }
+
+    /**
+     * Returns the distance in meters from a point to the nearest point of a way, along the
+     * segments between its nodes in the graph.
+     * @param way The way.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @return The distance, infinite if no node of the way is in the graph.
+     */
+    double meters(Way way, double lon, double lat) {
+        double kx = SegmentIndex.METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        double ky = SegmentIndex.METERS_PER_DEGREE;
+        double best = Double.POSITIVE_INFINITY;
+        Node last = null;
+        for (long id : way.wayNodes) {
+            Node node = nodes.get(id);
+            if (node == null) {
+                last = null;
+                continue;
+            }
+            double bx = (node.lon - lon) * kx, by = (node.lat - lat) * ky;
+            double t = 0;
+            double ax = bx, ay = by;
+            if (last != null) {
+                ax = (last.lon - lon) * kx;
+                ay = (last.lat - lat) * ky;
+                double dx = bx - ax, dy = by - ay;
+                double len = dx * dx + dy * dy;
+                t = len == 0 ? 0 : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / len));
+            }
+            double px = ax + t * (bx - ax), py = ay + t * (by - ay);
+            best = Math.min(best, px * px + py * py);
+            last = node;
+        }
+        return Math.sqrt(best);
+    }
+
+    /**
+     * Returns the distance in meters between two points, on the plane tangent to the earth
+     * at the second one. Close to the great-circle distance for points a few kilometers apart.
+     */
+    static double meters(double lonV, double latV, double lonW, double latW) {
+        double dx = (lonV - lonW) * SegmentIndex.METERS_PER_DEGREE
+                * Math.cos(Math.toRadians(latW));
+        double dy = (latV - latW) * SegmentIndex.METERS_PER_DEGREE;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /** @return the number of bytes taken by the R-tree of the ways and its array of them. */
+    long wayIndexBytes() {
+        return wayIndex.bytes() + (long) HeapFootprint.REFERENCE * indexedWays.length;
+    }
+
+    /** @return the number of nodes with a name, in the graph or removed from it. */
+    int placeCount() {
+        return places.length;
+    }
+
+    /** @return the number of bytes taken by the R-tree of the places and its array of them. */
+    long placeIndexBytes() {
+        return placeIndex.bytes() + (long) HeapFootprint.REFERENCE * places.length;
+    }
+
+    /**
+     * The estimated heap taken by the objects of the graph, walked on the first call only as
+     * the graph does not change once built.
+     * @return A map of the "nodes", "ways", "removed_nodes" and "search_trie", each with its
+     * "count" and "bytes", see HeapFootprint.
+     */
+    synchronized Map<String, Object> footprint() {
+        if (footprint == null) {
+            footprint = Collections.unmodifiableMap(HeapFootprint.objects(this));
+        }
+        return footprint;
+    }
+
+    /**
+     * Make the node and way maps read-only. A built graph is shared by every request running
+     * on its snapshot, and is replaced as a whole instead of being changed in place.
+     */
+    private void freeze() {
+        nodes = Collections.unmodifiableMap(nodes);
+        ways = Collections.unmodifiableMap(ways);
+        if (removedNodes != null) {
+            removedNodes = Collections.unmodifiableMap(removedNodes);
+        }
+    }
+
+    /**
+     * A hash of the ways and the coordinates of their nodes, which changes whenever the map
+     * data does. Caches of drawn tiles are kept apart by it.
+     * @return The fingerprint.
+     */
+    long fingerprint() {
+        long fingerprint = 17;
+        for (Way way : ways.values()) {
+            fingerprint = 31 * fingerprint + way.id;
+            for (long id : way.wayNodes) {
+                Node node = nodes.get(id);
+                if (node != null) {
+                    fingerprint = 31 * fingerprint + Double.doubleToLongBits(node.lon);
+                    fingerprint = 31 * fingerprint + Double.doubleToLongBits(node.lat);
+                }
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Write the graph as an OSM XML document that this class can parse again: every node,
+     * removed ones included, by increasing id with its name, then the ways with their tags.
+     * Elements the parser dropped, such as ways that are not roads, are not in it.
+     * @param out Where to write the document; it is not closed.
+     * @throws XMLStreamException If the document cannot be written.
+     */
+    void writeOsm(OutputStream out) throws XMLStreamException {
+        List<Node> all = new ArrayList<>(nodes.values());
+        if (removedNodes != null) {
+            all.addAll(removedNodes.values());
+        }
+        all.sort(Comparator.comparingLong(node -> node.id));
+        XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out,
+                "UTF-8");
+        xml.writeStartDocument("UTF-8", "1.0");
+        xml.writeCharacters("\n");
+        xml.writeStartElement("osm");
+        xml.writeAttribute("version", "0.6");
+        xml.writeCharacters("\n");
+        for (Node node : all) {
+            String name = node.infos.get("name:en");
+            if (name == null) {
+                xml.writeEmptyElement("node");
+            } else {
+                xml.writeStartElement("node");
+            }
+            xml.writeAttribute("id", Long.toString(node.id));
+            xml.writeAttribute("lat", Double.toString(node.lat));
+            xml.writeAttribute("lon", Double.toString(node.lon));
+            if (name != null) {
+                writeTag(xml, "name:en", name);
+                xml.writeEndElement();
+            }
+            xml.writeCharacters("\n");
+        }
+        for (Way way : ways.values()) {
+            xml.writeStartElement("way");
+            xml.writeAttribute("id", Long.toString(way.id));
+            for (long id : way.wayNodes) {
+                xml.writeEmptyElement("nd");
+                xml.writeAttribute("ref", Long.toString(id));
+            }
+            for (Map.Entry<String, String> tag : way.infos.entrySet()) {
+                writeTag(xml, tag.getKey(), tag.getValue());
+            }
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+        }
+        xml.writeEndElement();
+        xml.writeEndDocument();
+        xml.flush();
+    }
+
+    private static void writeTag(XMLStreamWriter xml, String k, String v)
+            throws XMLStreamException {
+        xml.writeEmptyElement("tag");
+        xml.writeAttribute("k", k);
+        xml.writeAttribute("v", v);
+    }
+
     /**
      * Returns an iterable of all vertex IDs in the graph.
      * @return An iterable of id's of all vertices in the graph.
@@ -131,7 +583,7 @@ public class GraphDB {
         double a = Math.sin(dphi / 2.0) * Math.sin(dphi / 2.0);
         a += Math.cos(phi1) * Math.cos(phi2) * Math.sin(dlambda / 2.0) * Math.sin(dlambda / 2.0);
         double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-        return 3963 * c;
+        return EARTH_RADIUS_MILES * c;
     }
 
     /**
@@ -162,23 +614,15 @@ public class GraphDB {
     }
 
     /**
-     * Returns the vertex closest to the given longitude and latitude.
+     * Returns the vertex closest to the given longitude and latitude, by a scan of the
+     * coordinate arrays of the compact graph, which holds the same vertices.
      * @param lon The target longitude.
      * @param lat The target latitude.
-     * @return The id of the node in the graph closest to the target.
+     * @return The id of the node in the graph closest to the target, -1 if there are none.
      */
     long closest(double lon, double lat) {
-        double d = Double.MAX_VALUE;
-        long closestId = -1;
-        for (long id : nodes.keySet()) {
-            double idlon = lon(id);
-            double idlat = lat(id);
-            if (distance(lon, lat, idlon, idlat) < d) {
-                closestId = id;
-                d = distance(lon, lat, idlon, idlat);
-            }
-        }
-        return closestId;
+        int v = Equirectangular.nearest(lon, lat, compact.lons, compact.lats);
+        return v < 0 ? -1 : compact.ids[v];
     }
 
     /**
@@ -266,9 +710,23 @@ public class GraphDB {
     /** nested Ties class. */
     public class Trie {
         TrieNode root;
+        /** The trie nodes of a copied trie that are its own, null if all of them are. */
+        private Set<TrieNode> owned;
+
         public Trie() {
             root = new TrieNode();
         }
+
+        /**
+         * A copy of base that shares its trie nodes until a change passes through them, when
+         * they are copied first, so base is never changed.
+         * @param base The trie to copy.
+         */
+        Trie(Trie base) {
+            owned = Collections.newSetFromMap(new IdentityHashMap<>());
+            root = copy(base.root);
+        }
+
         public class TrieNode {
             boolean exists;
             Map<Character, TrieNode> links;
@@ -302,12 +760,7 @@ public class GraphDB {
             int endCount = 0;
             for (char i: working) {
                 endCount += 1;
-                if (current.links.containsKey(i)) {
-                    current = current.links.get(i);
-                } else {
-                    current.links.put(i, new TrieNode());
-                    current = current.links.get(i);
-                }
+                current = child(current, i);
                 if (endCount == working.length) { // last node
                     current.exists = true;
                     if (current.fullName == null) { //save memory
@@ -322,6 +775,56 @@ public class GraphDB {
             }
         }
 
+        /**
+         * Remove one location with a name, added before by add.
+         * @param name The name it was added with.
+         * @param id The id it was added with.
+         */
+        void remove(String name, long id) {
+            String cleaned = cleanString(name);
+            if (findTrieNode(cleaned) == null) {
+                return;
+            }
+            TrieNode current = root;
+            for (char i : cleaned.toCharArray()) {
+                current = child(current, i);
+            }
+            if (current.fullName != null) {
+                current.fullName.remove(name);
+                current.exists = !current.fullName.isEmpty();
+            }
+            if (current.locationID != null) {
+                current.locationID.remove(id);
+            }
+        }
+
+        /** @return the child of an own trie node for a letter, created or copied if need be. */
+        private TrieNode child(TrieNode node, char letter) {
+            TrieNode next = node.links.get(letter);
+            if (next == null) {
+                next = new TrieNode();
+                if (owned != null) {
+                    owned.add(next);
+                }
+                node.links.put(letter, next);
+            } else if (owned != null && !owned.contains(next)) {
+                next = copy(next);
+                node.links.put(letter, next);
+            }
+            return next;
+        }
+
+        /** @return an own copy of a trie node, sharing its children. */
+        private TrieNode copy(TrieNode node) {
+            TrieNode copy = new TrieNode();
+            copy.exists = node.exists;
+            copy.links = new HashMap<>(node.links);
+            copy.fullName = node.fullName == null ? null : new ArrayList<>(node.fullName);
+            copy.locationID = node.locationID == null ? null : new HashSet<>(node.locationID);
+            owned.add(copy);
+            return copy;
+        }
+
         //retrieve all strings children of this node
         public void retrieve(TrieNode a, Set<String> result) {
             if (a.exists) {
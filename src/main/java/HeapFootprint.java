@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates of the heap taken by the structures of the server, worked out from their sizes
+ * rather than measured, so the heap of a deployment can be sized from the data it serves.
+ * The model is that of a 64-bit JVM with compressed references, as used for heaps below
+ * 32 GB: 12 bytes of object header, 4 bytes per reference, 16 bytes of array header, and
+ * every object padded to a multiple of 8 bytes. Strings are counted as Latin-1, and boxed
+ * values the JVM caches, such as small Longs, as free. An object reachable from two
+ * structures, e.g. a node shared by a snapshot made by an OSM change and the one it was made
+ * from, is counted in both.
+ * The node, way and trie objects of a graph are walked once and the result is kept with the
+ * graph, which never changes once built; everything else is counted from array lengths and
+ * cache sizes, so the report is cheap enough to poll.
+ */
+class HeapFootprint {
+    static final int HEADER = 12;
+    static final int REFERENCE = 4;
+    static final int ARRAY_HEADER = 16;
+    /** A boxed Long or Double. */
+    static final long LONG = align(HEADER + 8);
+    /** A boxed Integer or Character. */
+    static final long INTEGER = align(HEADER + 4);
+    private static final long STRING = align(HEADER + REFERENCE + 4 + 2);
+    private static final long ARRAY_LIST = align(HEADER + 2 * 4 + REFERENCE);
+    private static final long HASH_MAP = align(HEADER + 4 * REFERENCE + 4 * 4);
+    private static final long LINKED_HASH_MAP = align(HEADER + 6 * REFERENCE + 4 * 4 + 1);
+    /** A HashSet, with the view of the keys of its map that iterating it leaves behind. */
+    private static final long HASH_SET = 2 * align(HEADER + REFERENCE);
+    private static final long ENTRY = align(HEADER + 4 + 3 * REFERENCE);
+    private static final long LINKED_ENTRY = align(HEADER + 4 + 5 * REFERENCE);
+    private static final long NODE = align(HEADER + 3 * 8 + 2 * REFERENCE);
+    private static final long WAY = align(HEADER + 8 + 2 * REFERENCE);
+    /** A trie node, with the reference to its trie that an inner class has. */
+    private static final long TRIE_NODE = align(HEADER + 1 + 4 * REFERENCE);
+
+    /** @return bytes rounded up to the 8 byte alignment of objects. */
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /** @return the bytes of an array of length elements of elementBytes each. */
+    static long array(long length, int elementBytes) {
+        return align(ARRAY_HEADER + length * elementBytes);
+    }
+
+    /** @return the bytes of a string, 0 for null. */
+    static long string(String s) {
+        return s == null ? 0 : STRING + array(s.length(), 1);
+    }
+
+    /** @return the bytes of a Long boxed from value, 0 if the JVM caches it. */
+    static long boxed(long value) {
+        return value >= -128 && value <= 127 ? 0 : LONG;
+    }
+
+    /** @return the bytes of the table of a hash map filled to size, which is allocated on the
+     * first put and doubled whenever it is three quarters full. */
+    private static long table(int size) {
+        if (size == 0) {
+            return 0;
+        }
+        long capacity = 16;
+        while (size > capacity * 3 / 4) {
+            capacity *= 2;
+        }
+        return array(capacity, REFERENCE);
+    }
+
+    /** @return the bytes of a HashMap of size entries, without its keys and values. */
+    static long hashMap(int size) {
+        return HASH_MAP + table(size) + size * ENTRY;
+    }
+
+    /** @return the bytes of a LinkedHashMap of size entries, without its keys and values. */
+    static long linkedHashMap(int size) {
+        return LINKED_HASH_MAP + table(size) + size * LINKED_ENTRY;
+    }
+
+    /** @return the bytes of a HashSet of size elements, without the elements. */
+    static long hashSet(int size) {
+        return HASH_SET + hashMap(size);
+    }
+
+    /** @return the bytes of an ArrayList grown to size elements, without the elements. */
+    static long arrayList(int size) {
+        long capacity = 0;
+        if (size > 0) {
+            capacity = 10;
+            while (capacity < size) {
+                capacity += capacity >> 1;
+            }
+        }
+        return ARRAY_LIST + array(capacity, REFERENCE);
+    }
+
+    /** @return the count and bytes of a structure, as the report lists them. */
+    static Map<String, Object> structure(long count, long bytes) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("count", count);
+        item.put("bytes", bytes);
+        return item;
+    }
+
+    /**
+     * Walk the node, way and trie objects of a graph, see GraphDB.footprint.
+     * @return A map of the "nodes", "ways", "removed_nodes" and "search_trie" of g, each
+     * with its "count" and "bytes".
+     */
+    static Map<String, Object> objects(GraphDB g) {
+        Map<String, Object> structures = new LinkedHashMap<>();
+        structures.put("nodes", structure(g.nodes.size(),
+                linkedHashMap(g.nodes.size()) + nodes(g.nodes)));
+        long ways = linkedHashMap(g.ways.size());
+        for (GraphDB.Way way : g.ways.values()) {
+            ways += WAY + boxed(way.id) + arrayList(way.wayNodes.size());
+            for (long id : way.wayNodes) {
+                ways += boxed(id);
+            }
+            ways += hashMap(way.infos.size());
+            for (Map.Entry<String, String> tag : way.infos.entrySet()) {
+                ways += string(tag.getKey()) + string(tag.getValue());
+            }
+        }
+        structures.put("ways", structure(g.ways.size(), ways));
+        int removed = g.removedNodes == null ? 0 : g.removedNodes.size();
+        structures.put("removed_nodes", structure(removed,
+                hashMap(removed) + (removed == 0 ? 0 : nodes(g.removedNodes))));
+        long count = 0;
+        long trie = 0;
+        List<GraphDB.Trie.TrieNode> stack = new ArrayList<>();
+        stack.add(g.search.root);
+        while (!stack.isEmpty()) {
+            GraphDB.Trie.TrieNode node = stack.remove(stack.size() - 1);
+            count += 1;
+            /* the names are those of the nodes, and the characters are cached boxes. */
+            trie += TRIE_NODE + hashMap(node.links.size());
+            if (node.fullName != null) {
+                trie += arrayList(node.fullName.size());
+            }
+            if (node.locationID != null) {
+                trie += hashSet(node.locationID.size());
+                for (long id : node.locationID) {
+                    trie += boxed(id);
+                }
+            }
+            stack.addAll(node.links.values());
+        }
+        structures.put("search_trie", structure(count, trie));
+        return structures;
+    }
+
+    /** @return the bytes of the nodes of a map with their keys, without the map. */
+    private static long nodes(Map<Long, GraphDB.Node> nodes) {
+        long bytes = 0;
+        for (GraphDB.Node node : nodes.values()) {
+            bytes += NODE + boxed(node.id) + hashSet(node.adjacency.size());
+            for (long id : node.adjacency) {
+                bytes += boxed(id);
+            }
+            /* the way name is the string of the way, and the keys are literals. */
+            bytes += hashMap(node.infos.size()) + string(node.infos.get("name:en"));
+        }
+        return bytes;
+    }
+
+    /**
+     * @param regions The snapshot, fully loaded.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "heap" : Object, the "used_bytes", "committed_bytes" and "max_bytes" of the heap, as
+     *          the JVM reports them. <br>
+     * "estimated_bytes" : Number, the sum of the estimates below. <br>
+     * "regions" : Object[], for every region its "name", the "vertices" and directed
+     *             "edges" of its compact graph, "graph_bytes", the bytes of its graph
+     *             structures, "bytes_per_vertex" and "bytes_per_edge", the graph bytes over
+     *             the vertices and over the edges, "structures", the "count" and "bytes" of
+     *             every structure, and "caches", the "entries", "bytes" and "budget_bytes" or
+     *             "budget_entries" of its caches. <br>
+     * "overlay" : Object, the "count" of boundary nodes and "bytes" of the overlay graph. <br>
+     * "disk_cache" : Object, the "entries" and "bytes" of the index of the disk cache on the
+     *                heap, and its "disk_bytes", "mapped_bytes" and "budget_bytes". <br>
+     */
+    static Map<String, Object> report(Regions regions) {
+        long estimated = 0;
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (Regions.Region r : regions.regions) {
+            GraphDB g = r.graph;
+            Map<String, Object> structures = new LinkedHashMap<>(g.footprint());
+            structures.put("compact_graph", structure(g.compact.size(), g.compact.bytes()));
+            structures.put("contracted_graph", structure(g.contracted.core.length,
+                    g.contracted.bytes()));
+            structures.put("way_index", structure(g.ways.size(), g.wayIndexBytes()));
+            structures.put("place_index", structure(g.placeCount(), g.placeIndexBytes()));
+            structures.put("tiles", structure(g.ways.size(), r.renderer.bytes()));
+            structures.put("vector_tiles", structure(g.ways.size(), r.vectorTiles.bytes()));
+            long graphBytes = 0;
+            for (Object item : structures.values()) {
+                graphBytes += (Long) ((Map<?, ?>) item).get("bytes");
+            }
+            Map<String, Object> caches = new LinkedHashMap<>();
+            caches.put("tile_cache", r.renderer.cacheFootprint());
+            caches.put("route_cache", g.contracted.routes.footprint());
+            long cacheBytes = 0;
+            for (Object item : caches.values()) {
+                cacheBytes += (Long) ((Map<?, ?>) item).get("bytes");
+            }
+            int vertices = g.compact.size();
+            int edges = g.compact.targets.length;
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("name", r.name);
+            item.put("vertices", vertices);
+            item.put("edges", edges);
+            item.put("graph_bytes", graphBytes);
+            item.put("bytes_per_vertex", vertices == 0 ? 0 : (double) graphBytes / vertices);
+            item.put("bytes_per_edge", edges == 0 ? 0 : (double) graphBytes / edges);
+            item.put("structures", structures);
+            item.put("caches", caches);
+            list.add(item);
+            estimated += graphBytes + cacheBytes;
+        }
+        Map<String, Object> overlay = regions.overlayFootprint();
+        Map<String, Object> disk = DiskCache.shared().footprint();
+        estimated += (Long) overlay.get("bytes") + (Long) disk.get("bytes");
+
+        Runtime rt = Runtime.getRuntime();
+        Map<String, Object> heap = new HashMap<>();
+        heap.put("used_bytes", rt.totalMemory() - rt.freeMemory());
+        heap.put("committed_bytes", rt.totalMemory());
+        heap.put("max_bytes", rt.maxMemory());
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("heap", heap);
+        report.put("estimated_bytes", estimated);
+        report.put("regions", list);
+        report.put("overlay", overlay);
+        report.put("disk_cache", disk);
+        return report;
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reachability ("isochrone") analysis: everything that can be reached from one vertex
+ * within one or more road distances. All thresholds are answered by a single Dijkstra sweep
+ * bounded by the largest threshold. As Dijkstra settles vertices in order of distance, the
+ * vertices within each threshold are a prefix of the settle order.
+ */
+public class Isochrone {
+    /** Upper bound on the number of grid cells used to trace one polygon. */
+    private static final int MAX_CELLS = 1 << 20;
+
+    /** Vertex indices in the order they were settled. */
+    final int[] order;
+    /** Distance in meters of each vertex of order. */
+    final double[] dists;
+    /** The thresholds in meters, in ascending order. */
+    final double[] thresholds;
+    /** counts[k] vertices of order lie within thresholds[k]. */
+    final int[] counts;
+
+    private Isochrone(int[] order, double[] dists, double[] thresholds, int[] counts) {
+        this.order = order;
+        this.dists = dists;
+        this.thresholds = thresholds;
+        this.counts = counts;
+    }
+
+    /**
+     * Run the bounded sweep.
+     * @param g The compact graph to use.
+     * @param s A reset search state for g.
+     * @param source The vertex the distances are measured from.
+     * @param thresholds The road distances in meters, in any order.
+     * @return The vertices reached within each threshold.
+     */
+    static Isochrone reach(CompactGraph g, SearchState s, int source, double[] thresholds) {
+        double[] sorted = thresholds.clone();
+        Arrays.sort(sorted);
+        double limit = sorted[sorted.length - 1];
+
+        int[] order = new int[64];
+        double[] dists = new double[64];
+        int size = 0;
+        s.relax(source, 0, 0, -1);
+        while (!s.isEmpty() && s.peekKey() <= limit) {
+            int v = s.poll();
+            double dv = s.dist(v);
+            if (size == order.length) {
+                order = Arrays.copyOf(order, size * 2);
+                dists = Arrays.copyOf(dists, size * 2);
+            }
+            order[size] = v;
+            dists[size] = dv;
+            size += 1;
+            for (int e = g.offsets[v]; e < g.offsets[v + 1]; e += 1) {
+                s.relax(g.targets[e], dv + g.lengths[e], 0, v);
+            }
+        }
+
+        int[] counts = new int[sorted.length];
+        int k = 0;
+        for (int i = 0; i < size; i += 1) {
+            while (dists[i] > sorted[k]) {
+                counts[k] = i;
+                k += 1;
+            }
+        }
+        for (; k < sorted.length; k += 1) {
+            counts[k] = size;
+        }
+        return new Isochrone(Arrays.copyOf(order, size), Arrays.copyOf(dists, size),
+                sorted, counts);
+    }
+
+    /**
+     * Approximate the area reached within one threshold by a grid: every cell containing a
+     * reached vertex, or crossed by the reachable part of a road, is filled, and the
+     * outline of the filled cells is traced into closed rings.
+     * @param g The compact graph that was searched.
+     * @param k The index of the threshold.
+     * @param cellMeters The width and height of the grid cells in meters, coarsened if the
+     *                   area would need more than MAX_CELLS cells.
+     * @return The rings of the area, each a list of {lon, lat} corners with the first
+     * corner repeated at the end.
+     */
+    List<List<double[]>> polygon(CompactGraph g, int k, double cellMeters) {
+        List<List<double[]>> rings = new ArrayList<>();
+        int count = counts[k];
+        if (count == 0) {
+            return rings;
+        }
+        /* a local equirectangular grid is accurate enough at city scale. The bounding box
+         * also covers the partly reachable ends of the roads leaving the reached vertices. */
+        double threshold = thresholds[k];
+        double minLon = Double.MAX_VALUE, minLat = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        for (int i = 0; i < count; i += 1) {
+            int v = order[i];
+            for (int e = g.offsets[v]; e <= g.offsets[v + 1]; e += 1) {
+                double lon = g.lons[v];
+                double lat = g.lats[v];
+                if (e < g.offsets[v + 1]) {
+                    int w = g.targets[e];
+                    double t = reachable(g, i, e, threshold);
+                    lon += t * (g.lons[w] - g.lons[v]);
+                    lat += t * (g.lats[w] - g.lats[v]);
+                }
+                minLon = Math.min(minLon, lon);
+                maxLon = Math.max(maxLon, lon);
+                minLat = Math.min(minLat, lat);
+                maxLat = Math.max(maxLat, lat);
+            }
+        }
+        double metersPerDegLat = Math.toRadians(1) * GraphDB.EARTH_RADIUS_MILES
+                * CompactGraph.METERS_PER_MILE;
+        double metersPerDegLon = metersPerDegLat
+                * Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        /* coarsen the grid rather than allocating an unbounded one. */
+        double area = (maxLon - minLon) * metersPerDegLon * (maxLat - minLat) * metersPerDegLat;
+        cellMeters = Math.max(cellMeters, Math.sqrt(area / MAX_CELLS));
+        double cellLon = cellMeters / metersPerDegLon;
+        double cellLat = cellMeters / metersPerDegLat;
+        /* one empty cell of margin on every side keeps the outline closed. */
+        double originLon = minLon - cellLon;
+        double originLat = minLat - cellLat;
+        int cols = (int) ((maxLon - originLon) / cellLon) + 2;
+        int rows = (int) ((maxLat - originLat) / cellLat) + 2;
+        boolean[][] filled = new boolean[rows][cols];
+
+        for (int i = 0; i < count; i += 1) {
+            int v = order[i];
+            filled[(int) ((g.lats[v] - originLat) / cellLat)]
+                    [(int) ((g.lons[v] - originLon) / cellLon)] = true;
+            /* walk each road out of v as far as the remaining distance allows. */
+            for (int e = g.offsets[v]; e < g.offsets[v + 1]; e += 1) {
+                int w = g.targets[e];
+                double reach = reachable(g, i, e, threshold);
+                int steps = (int) (2 * reach * g.lengths[e] / cellMeters);
+                for (int step = 1; step <= steps; step += 1) {
+                    double t = reach * step / steps;
+                    double lon = g.lons[v] + t * (g.lons[w] - g.lons[v]);
+                    double lat = g.lats[v] + t * (g.lats[w] - g.lats[v]);
+                    filled[(int) ((lat - originLat) / cellLat)]
+                            [(int) ((lon - originLon) / cellLon)] = true;
+                }
+            }
+        }
+
+        /* collect the cell sides between a filled and an empty cell, oriented so the filled
+         * cell is on the left, keyed by their start corner. */
+        Map<Long, List<Long>> sides = new HashMap<>();
+        for (int r = 0; r < rows; r += 1) {
+            for (int c = 0; c < cols; c += 1) {
+                if (!filled[r][c]) {
+                    continue;
+                }
+                if (r == 0 || !filled[r - 1][c]) {
+                    addSide(sides, corner(r, c), corner(r, c + 1));
+                }
+                if (c == cols - 1 || !filled[r][c + 1]) {
+                    addSide(sides, corner(r, c + 1), corner(r + 1, c + 1));
+                }
+                if (r == rows - 1 || !filled[r + 1][c]) {
+                    addSide(sides, corner(r + 1, c + 1), corner(r + 1, c));
+                }
+                if (c == 0 || !filled[r][c - 1]) {
+                    addSide(sides, corner(r + 1, c), corner(r, c));
+                }
+            }
+        }
+
+        /* chain the sides into rings, dropping the corners where a ring goes straight on. */
+        while (!sides.isEmpty()) {
+            long start = sides.keySet().iterator().next();
+            List<Long> corners = new ArrayList<>();
+            long at = start;
+            do {
+                List<Long> out = sides.get(at);
+                long next = out.remove(out.size() - 1);
+                if (out.isEmpty()) {
+                    sides.remove(at);
+                }
+                int size = corners.size();
+                if (size >= 2 && straight(corners.get(size - 2), corners.get(size - 1), at)) {
+                    corners.set(size - 1, at);
+                } else {
+                    corners.add(at);
+                }
+                at = next;
+            } while (at != start && sides.containsKey(at));
+            List<double[]> ring = new ArrayList<>();
+            for (long c : corners) {
+                ring.add(new double[]{originLon + cornerCol(c) * cellLon,
+                    originLat + cornerRow(c) * cellLat});
+            }
+            ring.add(ring.get(0));
+            rings.add(ring);
+        }
+        return rings;
+    }
+
+    /** @return the fraction of edge e, leaving order[i], that lies within threshold. */
+    private double reachable(CompactGraph g, int i, int e, double threshold) {
+        double length = g.lengths[e];
+        return length <= 0 ? 1 : Math.min(1, (threshold - dists[i]) / length);
+    }
+
+    private static long corner(int row, int col) {
+        return ((long) row << 32) | col;
+    }
+
+    private static int cornerRow(long corner) {
+        return (int) (corner >>> 32);
+    }
+
+    private static int cornerCol(long corner) {
+        return (int) corner;
+    }
+
+    private static boolean straight(long a, long b, long c) {
+        return (cornerRow(a) == cornerRow(b) && cornerRow(b) == cornerRow(c))
+                || (cornerCol(a) == cornerCol(b) && cornerCol(b) == cornerCol(c));
+    }
+
+    private static void addSide(Map<Long, List<Long>> sides, long from, long to) {
+        List<Long> out = sides.get(from);
+        if (out == null) {
+            out = new ArrayList<>(1);
+            sides.put(from, out);
+        }
+        out.add(to);
+    }
+}
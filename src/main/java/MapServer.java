@@ -2,22 +2,41 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 
 
 /* Maven is used to pull in these dependencies. */
-import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.xml.sax.SAXException;
 import static spark.Spark.*;
 
 /**
@@ -30,7 +49,8 @@ import static spark.Spark.*;
 public class MapServer {
     /**
      * The root upper left/lower right longitudes and latitudes represent the bounding box of
-     * the root tile, as the images in the img/ folder are scraped.
+     * the root tile, as the images in the img/ folder are scraped. This is the region served
+     * when no region list is configured, see Regions.
      * Longitude == x-axis; latitude == y-axis.
      */
 //    public static final double ROOT_ULLAT = 37.892195547244356, ROOT_ULLON = -122.2998046875,
@@ -66,10 +86,58 @@ public class MapServer {
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat : start point latitude,<br> start_lon : start point longitude,<br>
-     * end_lat : end point latitude, <br>end_lon : end point longitude.
+     * end_lat : end point latitude, <br>end_lon : end point longitude.<br>
+     * It may also have "alternatives", the number of alternative routes wanted besides the
+     * best one, 0 or more; more than MAX_ALTERNATIVES are taken as MAX_ALTERNATIVES.
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Each matrix request to the server will have the following parameters,
+     * each a list of points written as "lat,lon" and separated by ";".<br>
+     * sources : the points distances are measured from,<br>
+     * targets : the points distances are measured to.<br>
+     * At most MAX_MATRIX_CELLS sources times targets.
+     **/
+    private static final String[] REQUIRED_MATRIX_REQUEST_PARAMS = {"sources", "targets"};
+    /**
+     * Each isochrone request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lat : center point latitude,<br> lon : center point longitude.<br>
+     * It also has "distances", a comma separated list of road distances in kilometers, and
+     * may have "output" (either "polygon", the default, or "nodes") and "cell", the grid
+     * cell size of the polygons in meters.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lat", "lon"};
+    /**
+     * Each reverse geocoding request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lat : point latitude,<br> lon : point longitude.<br>
+     **/
+    private static final String[] REQUIRED_REVERSE_REQUEST_PARAMS = {"lat", "lon"};
+    /** Default grid cell size of isochrone polygons in meters. */
+    private static final double ISOCHRONE_CELL_METERS = 100;
+    /** Largest number of start/end pairs accepted by one batch route request. */
+    private static final int MAX_BATCH_ROUTES = 10000;
+    /** Largest number of sources times targets accepted by one matrix request. */
+    private static final int MAX_MATRIX_CELLS = 10000;
+    /** Largest number of alternatives to the best route returned by one route request. */
+    private static final int MAX_ALTERNATIVES = 3;
+    /** Largest number of ways returned by one ways request. */
+    private static final int MAX_WAYS = 5000;
+    /** HTTP response for requests rejected because the server is busy. */
+    private static final int BUSY_RESPONSE = 503;
+    /** HTTP response of the liveness probe once loading the map data failed. */
+    private static final int FAILED_RESPONSE = 500;
+    /** Endpoints that need the tiles, the graphs, and the whole snapshot, see Regions. */
+    private static final String[] TILE_PATHS = {"/raster", "/vtile/*"};
+    private static final String[] SEARCH_PATHS = {"/search", "/ways", "/reverse"};
+    private static final String[] ROUTE_PATHS = {"/route", "/matrix", "/isochrone",
+        "/batch_route", "/reload", "/osm_change", "/osm_export", "/penalties", "/heap_status"};
+    /** When the server started, in milliseconds since the epoch. */
+    private static final long STARTED_AT = System.currentTimeMillis();
+    /** HTTP response for a reload requested while another one is running. */
+    private static final int RELOAD_BUSY_RESPONSE = 409;
 
     /**
      * The result of rastering must be a map containing all of the
@@ -78,11 +146,36 @@ public class MapServer {
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
-    private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /** The map data being served. A reload replaces it as a whole. */
+    private static final AtomicReference<Regions> CURRENT = new AtomicReference<>();
+    private static Reloader reloader;
+    private static Prefetcher prefetcher;
+    private static RoadOverlay overlay;
+    /** The rasters being drawn, by region, render grid and route. */
+    private static final SingleFlight<List<Object>, Raster> RASTERS = new SingleFlight<>();
+    /** The routes being searched, see Regions.routeKey. */
+    private static final SingleFlight<List<Object>, Map<String, Object>> ROUTES =
+            new SingleFlight<>();
+    /** Request attribute holding the snapshot a request runs on from start to end. */
+    private static final String SNAPSHOT_ATTRIBUTE = "snapshot";
+    /**
+     * The route drawn on the rasters: the one /route found last, published once its response
+     * is made. Requests search in local paths, as several run at once.
+     */
+    private static volatile List<Long> route = new LinkedList<>();
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
+    /** A drawn raster with its parameters, shared by the requests for it and never changed. */
+    private static class Raster {
+        final Map<String, Object> params;
+        final ByteArrayOutputStream png;
+
+        Raster(Map<String, Object> params, ByteArrayOutputStream png) {
+            this.params = params;
+            this.png = png;
+        }
+    }
+
 
     /**
      * Place any initialization statements that will be run before the server main loop here.
@@ -90,8 +183,40 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
-        rasterer = new Rasterer();
+        startInitialize().join();
+    }
+
+    /**
+     * Initialize as initialize does, without waiting for the map data to load: the snapshot
+     * is served at once, each part of it as soon as it is loaded, see Regions.load.
+     * @return Completes once the map data is loaded.
+     */
+    private static CompletableFuture<Void> startInitialize() {
+        /* open the disk cache first, so it serves from the first request on. */
+        DiskCache.shared();
+        prefetcher = new Prefetcher();
+        overlay = new RoadOverlay(CURRENT);
+        reloader = new Reloader(CURRENT, () -> new Regions(defaultRegion()), overlay::swap,
+                prefetcher::warm);
+        return reloader.loadInitial(new Regions(Regions.readRegions(defaultRegion())));
+    }
+
+    /** @return the region served when there is no region list, see Regions. */
+    private static Regions.Region defaultRegion() {
+        return new Regions.Region("default", OSM_DB_PATH, IMG_ROOT, ROOT_ULLAT, ROOT_ULLON,
+                ROOT_LRLAT, ROOT_LRLON);
+    }
+
+    /**
+     * Answer a request with a 503 unless the part of the snapshot it needs is loaded.
+     * @param ready Whether the part is loaded.
+     * @param part The name of the part.
+     */
+    private static void requireReady(spark.Response res, boolean ready, String part) {
+        if (!ready) {
+            res.header("Retry-After", String.valueOf(Workers.RETRY_AFTER_SECONDS));
+            halt(BUSY_RESPONSE, "Server starting (" + part + " not loaded) - retry later.");
+        }
     }
 
     /**
@@ -109,7 +234,12 @@ public class MapServer {
     public static void main(String[] args) {
         /** assign the Heroku port. */
         port(getHerokuAssignedPort());
-        initialize();
+        threadPool(Workers.serverThreads());
+        /* the map data loads while the endpoints are set up and served. */
+        startInitialize().exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        });
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -119,42 +249,375 @@ public class MapServer {
             response.header("Access-Control-Allow-Headers", "*");
         });
 
+        /* Every request runs on the snapshot that was current when it arrived, even if a
+         * reload swaps in a new one meanwhile. */
+        before((request, response) -> {
+            Regions snapshot = CURRENT.get();
+            snapshot.inFlight.incrementAndGet();
+            request.attribute(SNAPSHOT_ATTRIBUTE, snapshot);
+        });
+        afterAfter((request, response) -> {
+            Regions snapshot = request.attribute(SNAPSHOT_ATTRIBUTE);
+            if (snapshot != null) {
+                snapshot.inFlight.decrementAndGet();
+            }
+        });
+
+        /* While the map data loads, an endpoint is served once the part of the snapshot it
+         * needs is loaded, and told to come back later before. */
+        for (String path : TILE_PATHS) {
+            before(path, (request, response) -> {
+                Regions snapshot = request.attribute(SNAPSHOT_ATTRIBUTE);
+                requireReady(response, snapshot.tilesReady, "tiles");
+            });
+        }
+        for (String path : SEARCH_PATHS) {
+            before(path, (request, response) -> {
+                Regions snapshot = request.attribute(SNAPSHOT_ATTRIBUTE);
+                requireReady(response, snapshot.searchReady, "search");
+            });
+        }
+        for (String path : ROUTE_PATHS) {
+            before(path, (request, response) -> {
+                Regions snapshot = request.attribute(SNAPSHOT_ATTRIBUTE);
+                requireReady(response, snapshot.routesReady, "routes");
+            });
+        }
+
+        /* Requests over the limit of their endpoint are told to come back later. */
+        exception(Workers.Busy.class, (e, request, response) -> {
+            response.status(BUSY_RESPONSE);
+            response.header("Retry-After", String.valueOf(Workers.RETRY_AFTER_SECONDS));
+            response.body(e.getMessage());
+        });
+
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
          * the request handlers. */
         get("/raster", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            /* the region whose tiles cover most of the query box serves it. */
+            Regions.Region region = regions.regionFor(params.get("ullon"),
+                    params.get("ullat"), params.get("lrlon"), params.get("lrlat"));
+            Map<String, Object> rasteredImgParams = new HashMap<>();
+            rasteredImgParams.put("query_success", false);
+            /* getMapRaster() picks the tiles, which decide the image with the route. */
+            if (region != null) {
+                rasteredImgParams = region.rasterer.getMapRaster(params);
+            }
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
-            if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+            if (!rasterSuccess) {
+                return Responses.json(req, res, rasteredImgParams);
             }
-
-            /* Encode response to Json */
-            Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
+            String[][] grid = (String[][]) rasteredImgParams.get("render_grid");
+            List<Long> drawn = route;
+            Map<String, Object> found = rasteredImgParams;
+            /* identical viewports arriving together, e.g. the initial one of many clients,
+             * share one image. */
+            Raster raster = RASTERS.call(Arrays.asList(region, Arrays.deepToString(grid), drawn),
+                    () -> Workers.RASTER.call(() -> {
+                        /* rasters without a route are the same after a restart. */
+                        String key = "raster/" + region.renderer.rasterVersion() + "/"
+                                + Arrays.deepToString(grid);
+                        byte[] cached = drawn.isEmpty() ? DiskCache.shared().get(key) : null;
+                        /* The png image is written to the ByteArrayOutputStream */
+                        ByteArrayOutputStream os = new ByteArrayOutputStream();
+                        if (cached != null) {
+                            found.put("raster_width", grid[0].length * TILE_SIZE);
+                            found.put("raster_height", grid.length * TILE_SIZE);
+                            os.write(cached, 0, cached.length);
+                        } else {
+                            writeImagesToOutputStream(regions, found, region, drawn, os);
+                            if (drawn.isEmpty()) {
+                                DiskCache.shared().put(key, os.toByteArray());
+                            }
+                        }
+                        return new Raster(found, os);
+                    }));
+            prefetcher.viewport(region, grid);
+            /* Encode response to Json, the image in base64 as it is written */
+            return Responses.json(req, res, raster.params, "b64_encoded_image_data",
+                    raster.png);
         });
 
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
-            Map<String, Object> routeParams = new HashMap<>();
-            routeParams.put("routing_success", !route.isEmpty());
-            routeParams.put("directions_success", directions.length() > 0);
-            routeParams.put("directions", directions);
-            Gson gson = new Gson();
-            return gson.toJson(routeParams);
+            Profile profile = getProfileParam(req);
+            int alternatives = 0;
+            if (req.queryParams("alternatives") != null) {
+                alternatives = getCountParam(req, "alternatives", MAX_ALTERNATIVES);
+            }
+            final int count = alternatives + 1;
+            /* identical routes asked for together, between the same snapped points, are
+             * searched once. */
+            List<Object> key = regions.routeKey(params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                    profile, count);
+            return Responses.json(req, res, ROUTES.call(key, () -> Workers.ROUTE.call(() -> {
+                List<List<Long>> routes = null;
+                List<Long> found;
+                if (count > 1) {
+                    routes = regions.routes(params.get("start_lon"), params.get("start_lat"),
+                            params.get("end_lon"), params.get("end_lat"), profile, count);
+                    found = routes.isEmpty() ? new LinkedList<>() : routes.get(0);
+                } else {
+                    found = regions.shortestPath(params.get("start_lon"),
+                            params.get("start_lat"), params.get("end_lon"),
+                            params.get("end_lat"), profile);
+                }
+                String directions = getDirectionsText(regions, found);
+                Map<String, Object> routeParams = new HashMap<>();
+                routeParams.put("routing_success", !found.isEmpty());
+                routeParams.put("directions_success", directions.length() > 0);
+                routeParams.put("directions", directions);
+                routeParams.put("polyline", Responses.polyline(routeNodes(regions, found)));
+                if (routes != null) {
+                    routeParams.put("alternatives", getAlternatives(regions, routes));
+                }
+                /* the rasters draw the route found last. */
+                route = found;
+                return routeParams;
+            })));
+        });
+
+        /* Define the distance matrix endpoint for HTTP GET requests. */
+        get("/matrix", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            List<double[]> sources = getPointsParam(req, REQUIRED_MATRIX_REQUEST_PARAMS[0]);
+            List<double[]> targets = getPointsParam(req, REQUIRED_MATRIX_REQUEST_PARAMS[1]);
+            if ((long) sources.size() * targets.size() > MAX_MATRIX_CELLS) {
+                halt(HALT_RESPONSE, "Request failed - at most " + MAX_MATRIX_CELLS
+                        + " sources times targets.");
+            }
+            Profile profile = getProfileParam(req);
+            return Workers.ROUTE.call(() -> {
+                return Responses.json(req, res,
+                        getDistanceMatrix(regions, sources, targets, profile));
+            });
+        });
+
+        /* Define the isochrone endpoint for HTTP GET requests. */
+        get("/isochrone", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            double[] thresholds = getNumbersParam(req, "distances");
+            boolean nodesOnly = "nodes".equals(req.queryParams("output"));
+            double cell = ISOCHRONE_CELL_METERS;
+            if (req.queryParams("cell") != null) {
+                cell = getNumbersParam(req, "cell")[0];
+            }
+            final double cellMeters = cell;
+            return Workers.ROUTE.call(() -> {
+                return Responses.json(req, res, getIsochrones(regions, params.get("lon"),
+                        params.get("lat"), thresholds, nodesOnly, cellMeters));
+            });
+        });
+
+        /* Define the vector tile endpoint for HTTP GET requests, /vtile/{z}/{x}/{y} with an
+         * optional ".mvt" or ".pbf" after y, answered with a Mapbox Vector Tile. */
+        get("/vtile/:z/:x/:y", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            int[] zxy = getTileParams(req);
+            return Workers.RASTER.call(() -> Responses.bytes(req, res,
+                    "application/vnd.mapbox-vector-tile",
+                    getVectorTile(regions, zxy[0], zxy[1], zxy[2])));
+        });
+
+        /* Define the batch routing endpoint for HTTP POST requests. The body is a Json array
+         * of objects holding the route request parameters, the results are streamed back as
+         * one Json object per line in the order they complete. With "full" every result has
+         * the node ids of its route, with "polyline" its encoded polyline. */
+        post("/batch_route", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            List<Map<String, Double>> pairs = getBatchRouteParams(req);
+            Profile profile = getProfileParam(req);
+            return Workers.BATCH_ROUTE.call(() -> {
+                res.type("application/x-ndjson");
+                OutputStream os = Responses.stream(req, res);
+                batchRoute(regions, pairs, profile, req.queryParams().contains("full"),
+                        req.queryParams().contains("polyline"), os);
+                os.close();
+                return "";
+            });
+        });
+
+        /* Define the endpoint for the ways in a bounding box, /ways?bbox=west,south,east,north
+         * in degrees. */
+        get("/ways", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            double[] bbox = getBoxParam(req, "bbox");
+            return Workers.SEARCH.call(() -> Responses.json(req, res, getWays(regions, bbox)));
+        });
+
+        /* Define the reverse geocoding endpoint, the named way and place nearest to a point. */
+        get("/reverse", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_REVERSE_REQUEST_PARAMS);
+            return Workers.SEARCH.call(() -> Responses.json(req, res,
+                    getReverse(regions, params.get("lon"), params.get("lat"))));
+        });
+
+        /* Define the API endpoint listing the map regions. */
+        get("/regions", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            List<Map<String, Object>> list = new ArrayList<>();
+            for (Regions.Region r : regions.regions) {
+                Map<String, Object> item = new HashMap<>();
+                item.put("name", r.name);
+                item.put("ullat", r.ullat);
+                item.put("ullon", r.ullon);
+                item.put("lrlat", r.lrlat);
+                item.put("lrlon", r.lrlon);
+                list.add(item);
+            }
+            return Responses.json(req, res, list);
+        });
+
+        /* Define the API endpoint for reloading the map data in the background. */
+        post("/reload", (req, res) -> {
+            if (!reloader.start()) {
+                res.status(RELOAD_BUSY_RESPONSE);
+            }
+            return Responses.json(req, res, reloader.status());
+        });
+
+        /* Define the API endpoint for applying an OSM change file, the body, optionally
+         * gzipped, to the map data being served. Like a reload it builds a new snapshot in the
+         * background; a reload from the map data drops the changes applied since. */
+        post("/osm_change", (req, res) -> {
+            OsmChange change = null;
+            try (InputStream body = "gzip".equals(req.headers("Content-Encoding"))
+                    ? new GZIPInputStream(req.raw().getInputStream())
+                    : req.raw().getInputStream()) {
+                change = OsmChange.parse(body);
+            } catch (SAXException | IOException e) {
+                halt(HALT_RESPONSE, "Incorrect body - not an osmChange document: "
+                        + e.getMessage());
+            }
+            OsmChange parsed = change;
+            if (!reloader.start(() -> new Regions(CURRENT.get(), parsed))) {
+                res.status(RELOAD_BUSY_RESPONSE);
+            }
+            Map<String, Object> status = reloader.status();
+            int[] counts = change.counts();
+            status.put("nodes", counts[0]);
+            status.put("ways", counts[1]);
+            return Responses.json(req, res, status);
+        });
+
+        /* Define the API endpoint exporting the graph of a region, the first one by default,
+         * as an OSM XML file the server can load. */
+        get("/osm_export", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            Regions.Region region = regions.regions.get(0);
+            if (req.queryParams("region") != null) {
+                region = regions.region(req.queryParams("region"));
+                if (region == null) {
+                    halt(HALT_RESPONSE, "Incorrect parameters - no such region.");
+                }
+            }
+            GraphDB graph = region.graph;
+            return Workers.EXPORT.call(() -> {
+                res.type("application/xml");
+                OutputStream os = Responses.stream(req, res);
+                graph.writeOsm(os);
+                os.close();
+                return "";
+            });
+        });
+
+        /* Define the API endpoints for road penalties and closures. A rule targets "way", or
+         * the road between nodes "from" and "to", and either multiplies its cost by "factor"
+         * or closes it with "closed", for "ttl" seconds or until it is deleted. */
+        post("/penalties", (req, res) -> {
+            RoadOverlay.Target target = getTargetParams(req);
+            double factor = Double.POSITIVE_INFINITY;
+            if (!req.queryParams().contains("closed")) {
+                factor = getNumbersParam(req, "factor")[0];
+                if (factor < 1) {
+                    halt(HALT_RESPONSE, "Incorrect parameters - factor must be at least 1.");
+                }
+            }
+            long ttl = 0;
+            if (req.queryParams("ttl") != null) {
+                ttl = Math.round(getNumbersParam(req, "ttl")[0] * 1000);
+            }
+            int segments = overlay.set(target, factor, ttl);
+            if (segments == 0) {
+                halt(HALT_RESPONSE, "Incorrect parameters - no such way or road.");
+            }
+            Map<String, Object> status = overlay.status();
+            status.put("segments", segments);
+            return Responses.json(req, res, status);
+        });
+        delete("/penalties", (req, res) -> {
+            if (!overlay.remove(getTargetParams(req))) {
+                halt(HALT_RESPONSE, "Incorrect parameters - no rule for this way or road.");
+            }
+            return Responses.json(req, res, overlay.status());
+        });
+        get("/penalties", (req, res) -> {
+            return Responses.json(req, res, overlay.status());
+        });
+
+        /* Define the API endpoint for the state of the tile prefetcher. */
+        get("/prefetch_status", (req, res) -> {
+            return Responses.json(req, res, prefetcher.status());
+        });
+
+        /* Define the API endpoint for the requests that shared a computation. */
+        get("/coalesce_status", (req, res) -> {
+            Map<String, Object> status = new HashMap<>();
+            status.put("raster", RASTERS.status());
+            status.put("route", ROUTES.status());
+            return Responses.json(req, res, status);
+        });
+
+        /* Define the API endpoint for the state of the disk cache. */
+        get("/disk_cache_status", (req, res) -> {
+            return Responses.json(req, res, DiskCache.shared().status());
+        });
+
+        /* Define the API endpoint for the estimated heap taken by the map data and caches. */
+        get("/heap_status", (req, res) -> {
+            Regions snapshot = req.attribute(SNAPSHOT_ATTRIBUTE);
+            return Responses.json(req, res, HeapFootprint.report(snapshot));
+        });
+
+        /* Define the liveness probe: the server answers, unless loading its map data failed,
+         * which only a restart can mend. */
+        get("/live", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            Map<String, Object> status = new HashMap<>();
+            status.put("alive", !regions.loadFailed());
+            status.put("uptime_ms", System.currentTimeMillis() - STARTED_AT);
+            if (regions.loadFailed()) {
+                res.status(FAILED_RESPONSE);
+            }
+            return Responses.json(req, res, status);
+        });
+
+        /* Define the readiness probe: a 503 until the map data is loaded, with the parts of it
+         * that are served already and the stages of loading done. */
+        get("/ready", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
+            if (!regions.routesReady) {
+                res.status(BUSY_RESPONSE);
+            }
+            return Responses.json(req, res, regions.loadStatus());
+        });
+
+        /* Define the API endpoint for the progress of the last reload. */
+        get("/reload_status", (req, res) -> {
+            return Responses.json(req, res, reloader.status());
         });
 
         /* Define the API endpoint for clearing the current route. */
@@ -165,18 +628,20 @@ public class MapServer {
 
         /* Define the API endpoint for search */
         get("/search", (req, res) -> {
+            Regions regions = req.attribute(SNAPSHOT_ATTRIBUTE);
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
-            Gson gson = new Gson();
-            /* Search for actual location data. */
-            if (reqParams.contains("full")) {
-                List<Map<String, Object>> data = getLocations(term);
-                return gson.toJson(data);
-            } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
-                return gson.toJson(matches);
-            }
+            return Workers.SEARCH.call(() -> {
+                /* Search for actual location data. */
+                if (reqParams.contains("full")) {
+                    List<Map<String, Object>> data = getLocations(regions, term);
+                    return Responses.json(req, res, data);
+                } else {
+                    /* Search for prefix matching strings. */
+                    List<String> matches = getLocationsByPrefix(regions, term);
+                    return Responses.json(req, res, matches);
+                }
+            });
         });
 
         /* Define map application redirect */
@@ -212,12 +677,459 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Validate & return the zoom, column and row of a vector tile request.
+     * @param req HTTP Request.
+     * @return {z, x, y}.
+     */
+    private static int[] getTileParams(spark.Request req) {
+        int[] zxy = new int[3];
+        try {
+            zxy[0] = Integer.parseInt(req.params(":z"));
+            zxy[1] = Integer.parseInt(req.params(":x"));
+            zxy[2] = Integer.parseInt(req.params(":y").replaceFirst("\\.(mvt|pbf)$", ""));
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect tile - use /vtile/z/x/y.");
+        }
+        if (zxy[0] < 0 || zxy[0] > VectorTiles.MAX_ZOOM || zxy[1] < 0 || zxy[2] < 0
+                || zxy[1] >= 1 << zxy[0] || zxy[2] >= 1 << zxy[0]) {
+            halt(HALT_RESPONSE, "Incorrect tile - out of range.");
+        }
+        return zxy;
+    }
+
+    /**
+     * Validate & return the optional "profile" parameter, "shortest" or "fastest".
+     * @param req HTTP Request.
+     * @return The profile, SHORTEST if the parameter is absent.
+     */
+    private static Profile getProfileParam(spark.Request req) {
+        Profile profile = Profile.parse(req.queryParams("profile"));
+        if (profile == null) {
+            halt(HALT_RESPONSE, "Incorrect profile - use shortest or fastest.");
+        }
+        return profile;
+    }
+
+    /**
+     * Validate & return a list of points given as "lat,lon;lat,lon;..." in one parameter.
+     * @param req HTTP Request.
+     * @param param Name of the parameter.
+     * @return The points, each as {lon, lat}.
+     */
+    private static List<double[]> getPointsParam(spark.Request req, String param) {
+        String value = req.queryParams(param);
+        if (value == null || value.trim().isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        List<double[]> points = new ArrayList<>();
+        for (String point : value.split(";")) {
+            String[] latLon = point.split(",");
+            if (latLon.length != 2) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide points as lat,lon.");
+            }
+            try {
+                double lat = Double.parseDouble(latLon[0].trim());
+                double lon = Double.parseDouble(latLon[1].trim());
+                points.add(new double[]{lon, lat});
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Validate & return a comma separated list of positive numbers given in one parameter.
+     * @param req HTTP Request.
+     * @param param Name of the parameter.
+     * @return The numbers.
+     */
+    private static double[] getNumbersParam(spark.Request req, String param) {
+        String value = req.queryParams(param);
+        if (value == null || value.trim().isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        String[] parts = value.split(",");
+        double[] numbers = new double[parts.length];
+        for (int i = 0; i < parts.length; i += 1) {
+            try {
+                numbers[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+            if (!(numbers[i] > 0) || Double.isInfinite(numbers[i])) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide positive numbers.");
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * Validate & return a count given in one parameter, a whole number of 0 or more.
+     * @param req HTTP Request.
+     * @param param Name of the parameter.
+     * @param max The largest count returned; larger counts are taken as max.
+     * @return The count.
+     */
+    private static int getCountParam(spark.Request req, String param, int max) {
+        String value = req.queryParams(param);
+        if (value == null || value.trim().isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        long count = 0;
+        try {
+            count = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            halt(HALT_RESPONSE, "Incorrect parameters - provide a whole number.");
+        }
+        if (count < 0) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide a number of 0 or more.");
+        }
+        return (int) Math.min(max, count);
+    }
+
+    /**
+     * Validate & return the target of a road rule, given as "way" or as "from" and "to".
+     * @param req HTTP Request.
+     * @return The target.
+     */
+    private static RoadOverlay.Target getTargetParams(spark.Request req) {
+        try {
+            if (req.queryParams("way") != null) {
+                return new RoadOverlay.Target(Long.parseLong(req.queryParams("way").trim()),
+                        0, 0);
+            } else if (req.queryParams("from") != null && req.queryParams("to") != null) {
+                return new RoadOverlay.Target(RoadOverlay.NO_WAY,
+                        Long.parseLong(req.queryParams("from").trim()),
+                        Long.parseLong(req.queryParams("to").trim()));
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            halt(HALT_RESPONSE, "Incorrect parameters - provide node or way ids.");
+        }
+        halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        return null;
+    }
+
+    /**
+     * Validate & return a bounding box given as "west,south,east,north" in one parameter.
+     * @param req HTTP Request.
+     * @param param Name of the parameter.
+     * @return The box as {west, south, east, north}.
+     */
+    private static double[] getBoxParam(spark.Request req, String param) {
+        String value = req.queryParams(param);
+        if (value == null || value.trim().isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide west,south,east,north.");
+        }
+        double[] box = new double[4];
+        for (int i = 0; i < 4; i += 1) {
+            try {
+                box[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+        }
+        if (!(box[0] <= box[2]) || !(box[1] <= box[3])) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide west,south,east,north.");
+        }
+        return box;
+    }
+
+    /**
+     * Validate & return the start/end pairs in the Json body of a batch route request.
+     * @param req HTTP Request.
+     * @return One map of route request parameters per pair.
+     */
+    private static List<Map<String, Double>> getBatchRouteParams(spark.Request req) {
+        List<Map<String, Double>> pairs = null;
+        try {
+            Type type = new TypeToken<List<Map<String, Double>>>() { }.getType();
+            pairs = Responses.GSON.fromJson(req.body(), type);
+        } catch (JsonParseException e) {
+            e.printStackTrace();
+            halt(HALT_RESPONSE, "Incorrect body - provide a Json array of routes.");
+        }
+        if (pairs == null || pairs.isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        } else if (pairs.size() > MAX_BATCH_ROUTES) {
+            halt(HALT_RESPONSE, "Request failed - at most " + MAX_BATCH_ROUTES + " routes.");
+        }
+        for (Map<String, Double> pair : pairs) {
+            for (String param : REQUIRED_ROUTE_REQUEST_PARAMS) {
+                if (pair == null || pair.get(param) == null) {
+                    halt(HALT_RESPONSE, "Request failed - parameters missing.");
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Route every start/end pair on the batch route pool and write each result to os as a
+     * line of Json as soon as it is ready. At most two routes per worker are queued at a
+     * time, so a large batch does not flood the pool, and the batch stops early if the
+     * client goes away. Unlike /route this does not change the route drawn on the map.
+     * @param pairs The route request parameters of each pair.
+     * @param profile What the routes minimize.
+     * @param full Whether to include the node ids of each route.
+     * @param polyline Whether to include the encoded polyline of each route.
+     * @param os The response stream.
+     * @throws IOException If writing to the client fails.
+     */
+    private static void batchRoute(Regions regions, List<Map<String, Double>> pairs,
+                                   Profile profile, boolean full, boolean polyline,
+                                   OutputStream os)
+            throws IOException {
+        Writer out = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+        CompletionService<Map<String, Object>> done =
+                new ExecutorCompletionService<>(Workers.BATCH_ROUTE_POOL);
+        int window = 2 * Workers.CORES;
+        int submitted = 0;
+        /* the pair of every pending result, which come back in the order they finish. */
+        Map<Future<Map<String, Object>>, Integer> pending = new HashMap<>();
+        try {
+            while (submitted < pairs.size() || !pending.isEmpty()) {
+                while (submitted < pairs.size() && pending.size() < window) {
+                    final int index = submitted;
+                    pending.put(done.submit(() -> routePair(regions, index, pairs.get(index),
+                            profile, full, polyline)), index);
+                    submitted += 1;
+                }
+                Future<Map<String, Object>> future = done.take();
+                int index = pending.remove(future);
+                Map<String, Object> result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    result = new HashMap<>();
+                    result.put("index", index);
+                    result.put("routing_success", false);
+                    result.put("error", String.valueOf(e.getCause()));
+                }
+                Responses.GSON.toJson(result, out);
+                out.write('\n');
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Route one pair of a batch. Runs on a batch route worker. A pair within one region is
+     * searched on that region's compact graph, a pair across regions goes through the
+     * region overlay and reports neither a duration nor a settled count.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "index" : Number, the position of the pair in the request. <br>
+     * "routing_success" : Boolean, whether a route was found. <br>
+     * "error" : String, why routing the pair failed, in place of the route, filled in by
+     *           batchRoute. <br>
+     * "distance" : Number, the length of the route in meters. <br>
+     * "duration" : Number, the travel time of the route in seconds. <br>
+     * "nodes" : Number, the number of nodes on the route. <br>
+     * "settled" : Number, the number of junctions and dead ends the search settled. <br>
+     * "time_ms" : Number, the time spent snapping and searching in milliseconds. <br>
+     * "route" : Number[], the node ids of the route, only if full is set. <br>
+     * "polyline" : String, the encoded polyline of the route, only if polyline is set. <br>
+     */
+    private static Map<String, Object> routePair(Regions regions, int index,
+                                                 Map<String, Double> pair, Profile profile,
+                                                 boolean full, boolean polyline) {
+        long begin = System.nanoTime();
+        Map<String, Object> result = new HashMap<>();
+        result.put("index", index);
+        double stlon = pair.get("start_lon"), stlat = pair.get("start_lat");
+        double destlon = pair.get("end_lon"), destlat = pair.get("end_lat");
+        Regions.Region region = regions.regionAt(stlon, stlat);
+        long[] ids = null;
+        double distance = 0;
+        if (region == regions.regionAt(destlon, destlat)) {
+            CompactGraph g = region.graph.compact;
+            SearchState s = SearchState.get(g);
+            SegmentIndex.Snap start = g.snap(stlon, stlat);
+            SegmentIndex.Snap dest = g.snap(destlon, destlat);
+            if (start != null && dest != null) {
+                int[] path = Router.shortestPath(region.graph.contracted, s, start, dest,
+                        profile);
+                if (path != null) {
+                    ids = new long[path.length];
+                    for (int i = 0; i < path.length; i += 1) {
+                        ids[i] = g.ids[path[i]];
+                    }
+                    distance = Router.pathCost(g, path, g.lengths);
+                    double duration = Router.pathCost(g, path, g.times);
+                    result.put("duration", Math.round(duration * 10) / 10.0);
+                }
+            }
+            result.put("settled", s.settledCount);
+        } else {
+            List<Long> path = regions.shortestPath(stlon, stlat, destlon, destlat, profile);
+            if (!path.isEmpty()) {
+                ids = new long[path.size()];
+                for (int i = 0; i < ids.length; i += 1) {
+                    ids[i] = path.get(i);
+                    if (i > 0) {
+                        GraphDB.Node v = regions.node(ids[i - 1]);
+                        GraphDB.Node w = regions.node(ids[i]);
+                        distance += GraphDB.distance(v.lon, v.lat, w.lon, w.lat)
+                                * CompactGraph.METERS_PER_MILE;
+                    }
+                }
+            }
+        }
+        result.put("routing_success", ids != null);
+        if (ids != null) {
+            result.put("distance", Math.round(distance * 10) / 10.0);
+            result.put("nodes", ids.length);
+            if (full) {
+                result.put("route", ids);
+            }
+            if (polyline) {
+                List<Long> path = new ArrayList<>(ids.length);
+                for (long id : ids) {
+                    path.add(id);
+                }
+                result.put("polyline", Responses.polyline(routeNodes(regions, path)));
+            }
+        }
+        result.put("time_ms", (System.nanoTime() - begin) / 1e6);
+        return result;
+    }
+
+    /**
+     * Find the ways whose bounding box meets a box, in every region, through the R-tree of
+     * each region's graph. A way shared by two regions is listed once.
+     * @param regions The snapshot to use.
+     * @param bbox The box as {west, south, east, north}.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "ways" : Object[], every way with its "id", "highway", "name" (if it has one) and
+     *          "polyline", the encoded polyline of its nodes. <br>
+     * "count" : Number, the number of ways listed. <br>
+     * "truncated" : Boolean, whether there were more than MAX_WAYS ways in the box and only
+     *               the first MAX_WAYS are listed. <br>
+     */
+    public static Map<String, Object> getWays(Regions regions, double[] bbox) {
+        List<Map<String, Object>> list = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        boolean truncated = false;
+        for (Regions.Region r : regions.regions) {
+            for (GraphDB.Way way : r.graph.waysIn(bbox[0], bbox[1], bbox[2], bbox[3])) {
+                if (!seen.add(way.id)) {
+                    continue;
+                }
+                if (list.size() == MAX_WAYS) {
+                    truncated = true;
+                    break;
+                }
+                List<GraphDB.Node> nodes = new ArrayList<>();
+                for (long id : way.wayNodes) {
+                    GraphDB.Node v = r.graph.nodes.get(id);
+                    if (v != null) {
+                        nodes.add(v);
+                    }
+                }
+                Map<String, Object> item = new HashMap<>();
+                item.put("id", way.id);
+                item.put("highway", way.infos.get("highway"));
+                if (way.infos.get("name:en") != null) {
+                    item.put("name", way.infos.get("name:en"));
+                }
+                item.put("polyline", Responses.polyline(nodes));
+                list.add(item);
+            }
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("ways", list);
+        result.put("count", list.size());
+        result.put("truncated", truncated);
+        return result;
+    }
+
+    /**
+     * Find the way with a name and the named place nearest to a point, over every region,
+     * through the R-trees of each region's graph.
+     * @param regions The snapshot to use.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "reverse_success" : Boolean, whether a named way or place was found. <br>
+     * "way" : Object, the nearest named way with its "id", "name", "highway" and "distance"
+     *         in meters, left out if there is none. <br>
+     * "place" : Object, the nearest named node with its "id", "name", "lat", "lon" and
+     *           "distance" in meters, left out if there is none. Nodes off the road graph
+     *           are included. <br>
+     */
+    public static Map<String, Object> getReverse(Regions regions, double lon, double lat) {
+        Map<String, Object> way = null;
+        Map<String, Object> place = null;
+        double wayMeters = Double.POSITIVE_INFINITY;
+        double placeMeters = Double.POSITIVE_INFINITY;
+        for (Regions.Region r : regions.regions) {
+            GraphDB.Way w = r.graph.nearestNamedWay(lon, lat);
+            if (w != null && r.graph.meters(w, lon, lat) < wayMeters) {
+                wayMeters = r.graph.meters(w, lon, lat);
+                way = new HashMap<>();
+                way.put("id", w.id);
+                way.put("name", w.infos.get("name:en"));
+                way.put("highway", w.infos.get("highway"));
+                way.put("distance", Math.round(wayMeters * 10) / 10.0);
+            }
+            GraphDB.Node v = r.graph.nearestPlace(lon, lat);
+            if (v != null && GraphDB.meters(v.lon, v.lat, lon, lat) < placeMeters) {
+                placeMeters = GraphDB.meters(v.lon, v.lat, lon, lat);
+                place = new HashMap<>();
+                place.put("id", v.id);
+                place.put("name", v.infos.get("name:en"));
+                place.put("lat", v.lat);
+                place.put("lon", v.lon);
+                place.put("distance", Math.round(placeMeters * 10) / 10.0);
+            }
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("reverse_success", way != null || place != null);
+        result.put("way", way);
+        result.put("place", place);
+        return result;
+    }
+
+    /**
+     * Returns a vector tile of the region that covers most of it.
+     * @param regions The snapshot to use.
+     * @param z The zoom level.
+     * @param x The tile column.
+     * @param y The tile row.
+     * @return The encoded tile, empty if no road crosses it.
+     */
+    public static byte[] getVectorTile(Regions regions, int z, int x, int y) {
+        Regions.Region region = regions.regionFor(VectorTiles.tileLon(z, x),
+                VectorTiles.tileLat(z, y), VectorTiles.tileLon(z, x + 1),
+                VectorTiles.tileLat(z, y + 1));
+        if (region == null) {
+            return new byte[0];
+        }
+        return region.vectorTiles.tile(z, x, y);
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
+     * The given route is drawn over the tiles.
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
+    private static void writeImagesToOutputStream(Regions regions,
+                                                  Map<String, Object> rasteredImageParams,
+                                                  Regions.Region region, List<Long> route,
                                                   ByteArrayOutputStream os) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
         int numVertTiles = renderGrid.length;
@@ -228,9 +1140,21 @@ public class MapServer {
         Graphics graphic = img.getGraphics();
         int x = 0, y = 0;
 
+        /* Reading the tiles is blocking I/O, so read them all at once on the I/O pool. The
+         * region's renderer reads the scraped tiles and draws the others, see TileRenderer. */
+        List<Future<BufferedImage>> tiles = new ArrayList<>();
+        for (int r = 0; r < numVertTiles; r += 1) {
+            for (int c = 0; c < numHorizTiles; c += 1) {
+                String name = renderGrid[r][c];
+                tiles.add(Workers.IO_POOL.submit(() -> getImage(region, name)));
+            }
+        }
+
+        int tile = 0;
         for (int r = 0; r < numVertTiles; r += 1) {
             for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
+                graphic.drawImage(getTile(tiles.get(tile)), x, y, null);
+                tile += 1;
                 x += MapServer.TILE_SIZE;
                 if (x >= img.getWidth()) {
                     x = 0;
@@ -252,11 +1176,12 @@ public class MapServer {
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
+            /* nodes that a reload removed since the route was found are skipped. */
+            route.stream().map(regions::node).filter(Objects::nonNull).reduce((v, w) -> {
+                g2d.drawLine((int) ((v.lon - ullon) * (1 / wdpp)),
+                             (int) ((ullat - v.lat) * (1 / hdpp)),
+                             (int) ((w.lon - ullon) * (1 / wdpp)),
+                             (int) ((ullat - w.lat) * (1 / hdpp)));
                 return w;
             });
         }
@@ -272,19 +1197,30 @@ public class MapServer {
 
     }
 
-    private static BufferedImage getImage(String imgPath) {
+    /** Wait for a tile read by the I/O pool, null if it could not be read. */
+    private static BufferedImage getTile(Future<BufferedImage> tile) {
+        try {
+            return tile.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-//                File in = new File(imgPath);
-                InputStream in = MapServer.class.getResourceAsStream(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
-            }
+    /** A tile of the region, scraped or drawn from its road graph, see TileRenderer. */
+    private static BufferedImage getImage(Regions.Region region, String name) {
+        byte[] png = region.renderer.tile(name);
+        if (png == null) {
+            return null;
         }
-        return tileImg;
+        try {
+            return ImageIO.read(new ByteArrayInputStream(png));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
     }
 
     /**
@@ -302,7 +1238,18 @@ public class MapServer {
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        return graph.search.find(prefix);
+        return getLocationsByPrefix(CURRENT.get(), prefix);
+    }
+
+    private static List<String> getLocationsByPrefix(Regions regions, String prefix) {
+        Set<String> matches = new LinkedHashSet<>();
+        for (Regions.Region r : regions.regions) {
+            List<String> found = r.graph.search.find(prefix);
+            if (found != null) {
+                matches.addAll(found);
+            }
+        }
+        return new LinkedList<>(matches);
     }
 
     /**
@@ -318,25 +1265,130 @@ public class MapServer {
      * "id" : Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
+        return getLocations(CURRENT.get(), locationName);
+    }
+
+    private static List<Map<String, Object>> getLocations(Regions regions,
+                                                          String locationName) {
         List<Map<String, Object>> locations = new LinkedList<>();
         String cleaned = GraphDB.cleanString(locationName);
-        GraphDB.Trie.TrieNode node = graph.search.findTrieNode(cleaned);
-        if (node == null || node.locationID == null) {
-            return locations;
+        Set<Long> found = new HashSet<>();
+        for (Regions.Region r : regions.regions) {
+            GraphDB graph = r.graph;
+            GraphDB.Trie.TrieNode node = graph.search.findTrieNode(cleaned);
+            if (node == null || node.locationID == null) {
+                continue;
+            }
+            for (long id : node.locationID) {
+                /* a location in the overlap of two regions is listed once. */
+                if (!found.add(id)) {
+                    continue;
+                }
+                GraphDB.Node temp = graph.nodes.get(id);
+                if (temp == null) {
+                    temp = graph.removedNodes.get(id);
+                }
+                Map<String, Object> item = new HashMap<>();
+                item.put("lat", temp.lat);
+                item.put("lon", temp.lon);
+                item.put("name", temp.infos.get("name"));
+                item.put("id", id);
+                locations.add(item);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Snap every source and target to the graph of its region once, then compute the cost
+     * of the best path between every source and every target, see Regions.costMatrix.
+     * @param regions The snapshot to use.
+     * @param sources The source points, each as {lon, lat}.
+     * @param targets The target points, each as {lon, lat}.
+     * @param profile SHORTEST for a matrix of distances, FASTEST for one of durations.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "distances" : Number[][], distances[i][j] is the distance in meters from source i to
+     *               target j, or null if target j cannot be reached. Only for SHORTEST. <br>
+     * "durations" : Number[][], as distances, the travel time in seconds. Only for
+     *               FASTEST. <br>
+     * "matrix_success" : Boolean, whether the matrix could be computed, false if a source
+     *                    or target is in a region without roads. <br>
+     */
+    public static Map<String, Object> getDistanceMatrix(Regions regions,
+                                                        List<double[]> sources,
+                                                        List<double[]> targets,
+                                                        Profile profile) {
+        Map<String, Object> results = new HashMap<>();
+        List<double[]> points = new ArrayList<>(sources);
+        points.addAll(targets);
+        for (double[] point : points) {
+            if (regions.regionAt(point[0], point[1]).graph.compact.size() == 0) {
+                results.put("matrix_success", false);
+                return results;
+            }
         }
-        for (long id : node.locationID) {
-            GraphDB.Node temp = graph.nodes.get(id);
-            if (temp == null) {
-                temp = graph.removedNodes.get(id);
+        double[][] matrix = regions.costMatrix(sources, targets, profile);
+        Double[][] distances = new Double[matrix.length][targets.size()];
+        for (int i = 0; i < matrix.length; i += 1) {
+            for (int j = 0; j < targets.size(); j += 1) {
+                double d = matrix[i][j];
+                /* one decimal is already below the accuracy of the snapping. */
+                distances[i][j] = Double.isInfinite(d) ? null : Math.round(d * 10) / 10.0;
             }
+        }
+        results.put(profile == Profile.SHORTEST ? "distances" : "durations", distances);
+        results.put("matrix_success", true);
+        return results;
+    }
+
+    /**
+     * Find everything reachable from the vertex closest to a point within each of the given
+     * road distances, using one bounded search for all of them.
+     * @param regions The snapshot to use.
+     * @param lon The longitude of the center point.
+     * @param lat The latitude of the center point.
+     * @param kms The road distances in kilometers.
+     * @param nodesOnly Whether to return the reached nodes instead of polygons.
+     * @param cellMeters The grid cell size of the polygons in meters.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "isochrones" : List, one entry per distance in ascending order, each with "distance"
+     *                (Number, kilometers) and either "nodes" (Number[], the ids of the
+     *                reached nodes) or "rings" (Number[][][], closed rings of [lon, lat]
+     *                corners outlining the reached area). <br>
+     * "isochrone_success" : Boolean, whether the isochrones could be computed. <br>
+     */
+    public static Map<String, Object> getIsochrones(Regions regions, double lon, double lat,
+                                                    double[] kms, boolean nodesOnly,
+                                                    double cellMeters) {
+        CompactGraph g = regions.regionAt(lon, lat).graph.compact;
+        Map<String, Object> results = new HashMap<>();
+        if (g.size() == 0) {
+            results.put("isochrone_success", false);
+            return results;
+        }
+        double[] thresholds = new double[kms.length];
+        for (int i = 0; i < kms.length; i += 1) {
+            thresholds[i] = kms[i] * 1000;
+        }
+        Isochrone iso = Isochrone.reach(g, SearchState.get(g), g.closest(lon, lat), thresholds);
+        List<Map<String, Object>> isochrones = new ArrayList<>();
+        for (int k = 0; k < iso.thresholds.length; k += 1) {
             Map<String, Object> item = new HashMap<>();
-            item.put("lat", temp.lat);
-            item.put("lon", temp.lon);
-            item.put("name", temp.infos.get("name"));
-            item.put("id", id);
-            locations.add(item);
+            item.put("distance", iso.thresholds[k] / 1000);
+            if (nodesOnly) {
+                long[] ids = new long[iso.counts[k]];
+                for (int i = 0; i < ids.length; i += 1) {
+                    ids[i] = g.ids[iso.order[i]];
+                }
+                item.put("nodes", ids);
+            } else {
+                item.put("rings", iso.polygon(g, k, cellMeters));
+            }
+            isochrones.add(item);
         }
-        return locations;
+        results.put("isochrones", isochrones);
+        results.put("isochrone_success", true);
+        return results;
     }
 
     /**
@@ -361,11 +1413,48 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * @param regions The snapshot the routes were found on.
+     * @param routes The best route followed by its alternatives.
+     * @return For every alternative, a map with its "polyline" and its "distance" in meters.
+     */
+    private static List<Map<String, Object>> getAlternatives(Regions regions,
+                                                             List<List<Long>> routes) {
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (List<Long> alternative : routes.subList(Math.min(1, routes.size()),
+                routes.size())) {
+            List<GraphDB.Node> nodes = routeNodes(regions, alternative);
+            double miles = 0;
+            for (int i = 1; i < nodes.size(); i += 1) {
+                miles += GraphDB.distance(nodes.get(i - 1).lon, nodes.get(i - 1).lat,
+                        nodes.get(i).lon, nodes.get(i).lat);
+            }
+            Map<String, Object> item = new HashMap<>();
+            item.put("polyline", Responses.polyline(nodes));
+            item.put("distance", Math.round(miles * CompactGraph.METERS_PER_MILE));
+            list.add(item);
+        }
+        return list;
+    }
+
+    /** @return the nodes of a route, skipping those that a reload removed. */
+    private static List<GraphDB.Node> routeNodes(Regions regions, List<Long> path) {
+        List<GraphDB.Node> nodes = new ArrayList<>(path.size());
+        for (long id : path) {
+            GraphDB.Node v = regions.node(id);
+            if (v != null) {
+                nodes.add(v);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Takes a route and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
+    private static String getDirectionsText(Regions regions, List<Long> path) {
+        List<Router.NavigationDirection> directions = path.isEmpty() ? null
+                : Router.routeDirections(regions::node, path);
         if (directions == null || directions.isEmpty()) {
             return "";
         }
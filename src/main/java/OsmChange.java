@@ -0,0 +1,151 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * An OSM change file (osmChange, .osc): the nodes and ways created, modified and deleted
+ * between two versions of the map data, as published by the OSM replication diffs.
+ * Created and modified elements are given in full, so a modified way replaces the old one
+ * with all of its nodes and tags; deleted elements only need their id. Relations are ignored,
+ * as the graph has no use for them.
+ * See <a href="https://wiki.openstreetmap.org/wiki/OsmChange">the osmChange format</a>.
+ */
+class OsmChange {
+    /** What a change does to its element. */
+    enum Action { CREATE, MODIFY, DELETE }
+
+    /** One element of the file with what to do with it; either node or way is null. */
+    static class Change {
+        final Action action;
+        /** The node as it is after the change, only its name kept of its tags. */
+        final GraphDB.Node node;
+        /** The way as it is after the change, with all of its tags. */
+        final GraphDB.Way way;
+
+        Change(Action action, GraphDB.Node node, GraphDB.Way way) {
+            this.action = action;
+            this.node = node;
+            this.way = way;
+        }
+    }
+
+    /** The changes in the order of the file, which is the order they apply in. */
+    final List<Change> changes = new ArrayList<>();
+
+    /**
+     * Read an osmChange document.
+     * @param in The document.
+     * @return The changes it holds.
+     * @throws SAXException If the document is not a well-formed osmChange document.
+     */
+    static OsmChange parse(InputStream in) throws IOException, SAXException {
+        OsmChange change = new OsmChange();
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(in, change.new Handler());
+        } catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+        return change;
+    }
+
+    /** @return the number of changes of nodes, and of ways. */
+    int[] counts() {
+        int[] counts = new int[2];
+        for (Change c : changes) {
+            counts[c.node != null ? 0 : 1] += 1;
+        }
+        return counts;
+    }
+
+    /** Collects the changes, in the manner of GraphBuildingHandler. */
+    private class Handler extends DefaultHandler {
+        private Action action;
+        private GraphDB.Node node;
+        private GraphDB.Way way;
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attributes) throws SAXException {
+            switch (qName) {
+                case "create":
+                    action = Action.CREATE;
+                    break;
+                case "modify":
+                    action = Action.MODIFY;
+                    break;
+                case "delete":
+                    action = Action.DELETE;
+                    break;
+                case "node":
+                    long id = id(attributes, "id");
+                    /* a deleted node need not say where it was. */
+                    double lon = 0;
+                    double lat = 0;
+                    if (action != Action.DELETE) {
+                        lon = number(attributes, "lon");
+                        lat = number(attributes, "lat");
+                    }
+                    node = new GraphDB.Node(id, lon, lat);
+                    break;
+                case "way":
+                    way = new GraphDB.Way(id(attributes, "id"));
+                    break;
+                case "nd":
+                    if (way != null) {
+                        way.wayNodes.add(id(attributes, "ref"));
+                    }
+                    break;
+                case "tag":
+                    String k = attributes.getValue("k");
+                    String v = attributes.getValue("v");
+                    if (way != null) {
+                        way.infos.put(k, v);
+                    } else if (node != null && "name:en".equals(k)) {
+                        node.infos.put(k, v);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            if (qName.equals("node") || qName.equals("way")) {
+                if (action == null) {
+                    throw new SAXException(qName + " outside of create, modify or delete");
+                }
+                changes.add(new Change(action, node, way));
+                node = null;
+                way = null;
+            } else if (qName.equals("create") || qName.equals("modify")
+                    || qName.equals("delete")) {
+                action = null;
+            }
+        }
+
+        private long id(Attributes attributes, String name) throws SAXException {
+            try {
+                return Long.parseLong(attributes.getValue(name));
+            } catch (NumberFormatException e) {
+                throw new SAXException("bad " + name + ": " + attributes.getValue(name));
+            }
+        }
+
+        private double number(Attributes attributes, String name) throws SAXException {
+            try {
+                return Double.parseDouble(attributes.getValue(name));
+            } catch (NumberFormatException | NullPointerException e) {
+                throw new SAXException("bad " + name + ": " + attributes.getValue(name));
+            }
+        }
+    }
+}
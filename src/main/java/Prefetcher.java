@@ -0,0 +1,239 @@
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Warms the tile cache ahead of the requests. After a raster request the ring of tiles around
+ * its viewport and the tiles of the next depth under it are loaded, as a pan or a zoom in
+ * will ask for them next, and when a snapshot is loaded the shallow depths of every region
+ * are loaded, as every client starts from there.
+ * Prefetching only uses idle CPU: the tiles are loaded one at a time on a single thread of
+ * minimum priority, which waits whenever a raster or route request is running. The queue is
+ * bounded by MAX_QUEUED; the tiles of the latest viewport go first and the oldest ones are
+ * dropped when it is full, so prefetching never falls behind on tiles nobody asks for.
+ * The tiles of a snapshot that was replaced are dropped when the next one is warmed, so a
+ * reload never keeps the old renderers alive for tiles that are not served any more.
+ */
+public class Prefetcher {
+    /** Largest number of tiles waiting to be prefetched. */
+    private static final int MAX_QUEUED = 512;
+    /** Depths 0 to WARM_DEPTH of every region are loaded when a snapshot is loaded. */
+    private static final int WARM_DEPTH = 3;
+    /** How often a waiting prefetcher checks whether the foreground requests are done. */
+    private static final long IDLE_POLL_MILLIS = 25;
+
+    /** A tile of one region's renderer. */
+    private static class Task {
+        final TileRenderer renderer;
+        final String name;
+
+        Task(TileRenderer renderer, String name) {
+            this.renderer = renderer;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Task)) {
+                return false;
+            }
+            Task other = (Task) o;
+            return renderer == other.renderer && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(renderer), name);
+        }
+    }
+
+    private final Deque<Task> queue = new ArrayDeque<>();
+    /** The tasks in queue, to skip tiles that are queued already. */
+    private final Set<Task> queued = new HashSet<>();
+    /** The renderers of the snapshot warmed last, null before the first one. */
+    private Set<TileRenderer> current;
+
+    private long prefetched;
+    private long cached;
+    private long dropped;
+    private long stale;
+    private long pausedMillis;
+
+    Prefetcher() {
+        Thread t = new Thread(this::run, "prefetch");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Queue the neighbors of a viewport that was just served, ahead of everything queued.
+     * @param region The region that served the viewport.
+     * @param renderGrid The tile names of the viewport, as in the render grid of Rasterer.
+     */
+    void viewport(Regions.Region region, String[][] renderGrid) {
+        int[] first = TileRenderer.parse(renderGrid[0][0]);
+        int[] last = TileRenderer.parse(renderGrid[renderGrid.length - 1]
+                [renderGrid[0].length - 1]);
+        if (first == null || last == null) {
+            return;
+        }
+        int depth = first[0];
+        int size = 1 << depth;
+        Deque<String> names = new ArrayDeque<>();
+        /* a ring one tile wide around the viewport, at the same depth. */
+        for (int y = first[2] - 1; y <= last[2] + 1; y += 1) {
+            for (int x = first[1] - 1; x <= last[1] + 1; x += 1) {
+                boolean inside = x >= first[1] && x <= last[1] && y >= first[2] && y <= last[2];
+                if (!inside && x >= 0 && y >= 0 && x < size && y < size) {
+                    names.add(TileRenderer.name(depth, x, y));
+                }
+            }
+        }
+        /* the tiles covering the viewport at the next depth, after the ring. */
+        if (depth < Rasterer.MAX_DEPTH) {
+            for (int y = 2 * first[2]; y <= 2 * last[2] + 1; y += 1) {
+                for (int x = 2 * first[1]; x <= 2 * last[1] + 1; x += 1) {
+                    names.add(TileRenderer.name(depth + 1, x, y));
+                }
+            }
+        }
+        synchronized (this) {
+            /* a request still served by the snapshot before the last one. */
+            if (current != null && !current.contains(region.renderer)) {
+                return;
+            }
+            /* pushed in reverse, so the front of the queue is in the order above. */
+            Iterator<String> it = names.descendingIterator();
+            while (it.hasNext()) {
+                Task task = new Task(region.renderer, it.next());
+                if (queued.contains(task)) {
+                    queue.remove(task);
+                } else {
+                    queued.add(task);
+                }
+                queue.addFirst(task);
+            }
+            trim();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queue depths 0 to WARM_DEPTH of every region of a snapshot, behind the viewports, and
+     * drop the tiles queued for the snapshots before it.
+     * @param regions A snapshot that was just loaded.
+     */
+    void warm(Regions regions) {
+        synchronized (this) {
+            current = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Regions.Region region : regions.regions) {
+                current.add(region.renderer);
+            }
+            Iterator<Task> it = queue.iterator();
+            while (it.hasNext()) {
+                Task task = it.next();
+                if (!current.contains(task.renderer)) {
+                    it.remove();
+                    queued.remove(task);
+                    stale += 1;
+                }
+            }
+            for (Regions.Region region : regions.regions) {
+                for (int depth = 0; depth <= WARM_DEPTH; depth += 1) {
+                    for (int y = 0; y < 1 << depth; y += 1) {
+                        for (int x = 0; x < 1 << depth; x += 1) {
+                            Task task = new Task(region.renderer, TileRenderer.name(depth, x, y));
+                            if (queued.add(task)) {
+                                queue.addLast(task);
+                            }
+                        }
+                    }
+                }
+            }
+            trim();
+            notifyAll();
+        }
+    }
+
+    /** Drop the oldest tasks beyond MAX_QUEUED. */
+    private void trim() {
+        while (queue.size() > MAX_QUEUED) {
+            queued.remove(queue.removeLast());
+            dropped += 1;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Task task;
+            try {
+                idle();
+                synchronized (this) {
+                    while (queue.isEmpty()) {
+                        wait();
+                    }
+                    task = queue.removeFirst();
+                    queued.remove(task);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                boolean loaded = task.renderer.warm(task.name);
+                synchronized (this) {
+                    if (loaded) {
+                        prefetched += 1;
+                    } else {
+                        cached += 1;
+                    }
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Wait until no foreground request needs the CPU. */
+    private void idle() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        boolean waited = false;
+        while (Workers.RASTER.active() > 0 || Workers.ROUTE.active() > 0
+                || Workers.BATCH_ROUTE.active() > 0) {
+            waited = true;
+            Thread.sleep(IDLE_POLL_MILLIS);
+        }
+        if (waited) {
+            synchronized (this) {
+                pausedMillis += System.currentTimeMillis() - start;
+            }
+        }
+    }
+
+    /**
+     * @return A map of parameters for the Json response as specified: <br>
+     * "queued" : Number, tiles waiting to be prefetched. <br>
+     * "prefetched" : Number, tiles loaded ahead of the requests. <br>
+     * "already_cached" : Number, queued tiles that were in the memory cache already. <br>
+     * "dropped" : Number, queued tiles dropped because the queue was full. <br>
+     * "stale" : Number, queued tiles dropped because their snapshot was replaced. <br>
+     * "paused_ms" : Number, the time spent waiting for foreground requests. <br>
+     */
+    synchronized Map<String, Object> status() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("queued", queue.size());
+        status.put("prefetched", prefetched);
+        status.put("already_cached", cached);
+        status.put("dropped", dropped);
+        status.put("stale", stale);
+        status.put("paused_ms", pausedMillis);
+        return status;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * What a route minimizes. Each profile reads one of the edge cost arrays that CompactGraph
+ * computes when the graph is loaded, so the choice costs nothing during the search.
+ */
+public enum Profile {
+    /** Minimize the length of the route, edge costs in meters. */
+    SHORTEST,
+    /** Minimize the travel time of the route, edge costs in seconds. */
+    FASTEST;
+
+    /** @return the cost of every edge of g under this profile. */
+    double[] weights(CompactGraph g) {
+        return this == SHORTEST ? g.lengths : g.times;
+    }
+
+    /** @return the cost of every core edge of c under this profile. */
+    double[] weights(ContractedGraph c) {
+        return this == SHORTEST ? c.lengths : c.times;
+    }
+
+    /**
+     * @return the cost of every core edge of c under this profile with the penalties of a
+     * RoadOverlay, the cost without them if penalties is null.
+     */
+    double[] costs(ContractedGraph c, RoadOverlay.Penalties penalties) {
+        if (penalties == null) {
+            return weights(c);
+        }
+        return this == SHORTEST ? penalties.lengths : penalties.times;
+    }
+
+    /** @return the cost from the start of its chain to every interior vertex of c. */
+    double[] chainCosts(ContractedGraph c) {
+        return this == SHORTEST ? c.chainLengths : c.chainTimes;
+    }
+
+    /**
+     * @return a lower bound on the cost of one meter of straight-line distance in g, which
+     * turns the straight-line distance into an admissible A* heuristic.
+     */
+    double costPerMeter(CompactGraph g) {
+        return this == SHORTEST ? 1 : 1 / g.maxSpeed;
+    }
+
+    /**
+     * Reads a profile from a request parameter.
+     * @param name The parameter value, case insensitive, or null for the default.
+     * @return The profile, SHORTEST by default, or null if name is not a profile.
+     */
+    static Profile parse(String name) {
+        if (name == null) {
+            return SHORTEST;
+        }
+        for (Profile p : values()) {
+            if (p.name().equalsIgnoreCase(name)) {
+                return p;
+            }
+        }
+        return null;
+    }
+}
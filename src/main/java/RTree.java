@@ -0,0 +1,202 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * A static R-tree over bounding boxes, packed bottom up with the Sort-Tile-Recursive method:
+ * the boxes are sorted by the x of their centers into vertical slices, every slice by y, and
+ * runs of NODE_SIZE boxes in that order become the leaves. Every level above groups runs of
+ * NODE_SIZE nodes of the level below, up to a single root. All nodes are full except the last
+ * of each level, so the tree takes little more memory than the boxes themselves.
+ * The tree is stored in arrays, level by level from the boxes up: entry i has the box
+ * minX[i], minY[i], maxX[i], maxY[i], and is an indexed box if i < n, or else a node whose
+ * children are the entries first[i - n] to last[i - n].
+ * A tree is never modified after it is built. It knows nothing of what the boxes stand for
+ * and reports them by their position in the arrays it was built from.
+ * Besides boxes meeting a box, the tree finds the item nearest to a point, best first: entries
+ * are visited in the order of the distance to their box, which never exceeds the distance to
+ * anything inside it, so the search ends once the next box is farther than the best item.
+ */
+class RTree {
+    /** Children per node. */
+    private static final int NODE_SIZE = 16;
+
+    private final int n;
+    private final double[] minX, minY, maxX, maxY;
+    /** The position in the arrays the tree was built from of every indexed box. */
+    private final int[] items;
+    private final int[] first;
+    private final int[] last;
+
+    /**
+     * Pack the boxes i given by minX[i], minY[i], maxX[i], maxY[i].
+     * Boxes with minX[i] > maxX[i] are empty and left out.
+     */
+    RTree(double[] minX, double[] minY, double[] maxX, double[] maxY) {
+        Integer[] boxes = new Integer[minX.length];
+        int count = 0;
+        for (int i = 0; i < minX.length; i += 1) {
+            if (minX[i] <= maxX[i]) {
+                boxes[count++] = i;
+            }
+        }
+        Integer[] order = Arrays.copyOf(boxes, count);
+        n = count;
+        /* the x order decides the slices, the y order the leaves within a slice. */
+        Arrays.sort(order, Comparator.comparingDouble(i -> minX[i] + maxX[i]));
+        int leaves = (n + NODE_SIZE - 1) / NODE_SIZE;
+        int slice = NODE_SIZE * (int) Math.ceil(Math.sqrt(leaves));
+        for (int i = 0; i < n; i += slice) {
+            Arrays.sort(order, i, Math.min(i + slice, n),
+                    Comparator.comparingDouble(j -> minY[j] + maxY[j]));
+        }
+
+        int total = n;
+        for (int level = n; level > 1; level = (level + NODE_SIZE - 1) / NODE_SIZE) {
+            total += (level + NODE_SIZE - 1) / NODE_SIZE;
+        }
+        this.minX = new double[total];
+        this.minY = new double[total];
+        this.maxX = new double[total];
+        this.maxY = new double[total];
+        items = new int[n];
+        first = new int[total - n];
+        last = new int[total - n];
+        for (int i = 0; i < n; i += 1) {
+            items[i] = order[i];
+            this.minX[i] = minX[order[i]];
+            this.minY[i] = minY[order[i]];
+            this.maxX[i] = maxX[order[i]];
+            this.maxY[i] = maxY[order[i]];
+        }
+        int from = 0;
+        int end = n;
+        while (end - from > 1) {
+            int next = end;
+            for (int i = from; i < end; i += NODE_SIZE) {
+                int j = Math.min(i + NODE_SIZE, end) - 1;
+                first[next - n] = i;
+                last[next - n] = j;
+                this.minX[next] = Double.MAX_VALUE;
+                this.minY[next] = Double.MAX_VALUE;
+                this.maxX[next] = -Double.MAX_VALUE;
+                this.maxY[next] = -Double.MAX_VALUE;
+                for (int k = i; k <= j; k += 1) {
+                    this.minX[next] = Math.min(this.minX[next], this.minX[k]);
+                    this.minY[next] = Math.min(this.minY[next], this.minY[k]);
+                    this.maxX[next] = Math.max(this.maxX[next], this.maxX[k]);
+                    this.maxY[next] = Math.max(this.maxY[next], this.maxY[k]);
+                }
+                next += 1;
+            }
+            from = end;
+            end = next;
+        }
+    }
+
+    /** @return the number of boxes in the tree. */
+    int size() {
+        return n;
+    }
+
+    /** @return the number of bytes taken by the arrays of the tree. */
+    long bytes() {
+        return 4L * Double.BYTES * minX.length
+                + (long) Integer.BYTES * (items.length + first.length + last.length);
+    }
+
+    /**
+     * Report every box that meets the given box, edges included, in no particular order.
+     * @param found Receives the position of each box in the arrays the tree was built from.
+     */
+    void search(double qMinX, double qMinY, double qMaxX, double qMaxY, IntConsumer found) {
+        if (n == 0) {
+            return;
+        }
+        /* a path from the root visits at most NODE_SIZE siblings per level. */
+        int[] stack = new int[NODE_SIZE * 32];
+        int top = 0;
+        stack[top++] = minX.length - 1;
+        while (top > 0) {
+            int i = stack[--top];
+            if (maxX[i] < qMinX || minX[i] > qMaxX || maxY[i] < qMinY || minY[i] > qMaxY) {
+                continue;
+            }
+            if (i < n) {
+                found.accept(items[i]);
+            } else {
+                for (int k = first[i - n]; k <= last[i - n]; k += 1) {
+                    stack[top++] = k;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the positions in the arrays the tree was built from of every box that meets
+     * the given box, in increasing order.
+     */
+    int[] search(double qMinX, double qMinY, double qMaxX, double qMaxY) {
+        int[][] found = {new int[16]};
+        int[] count = {0};
+        search(qMinX, qMinY, qMaxX, qMaxY, i -> {
+            if (count[0] == found[0].length) {
+                found[0] = Arrays.copyOf(found[0], 2 * count[0]);
+            }
+            found[0][count[0]++] = i;
+        });
+        int[] result = Arrays.copyOf(found[0], count[0]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Find the item nearest to a point, by a distance the caller measures.
+     * @param x The point.
+     * @param y The point.
+     * @param kx The length of one unit of x, so the distance to a box is measured on the same
+     *           scale as the items.
+     * @param ky The length of one unit of y.
+     * @param distance The distance from the point to item i, by its position in the arrays
+     *                 the tree was built from. It must not be less than the distance to the
+     *                 item's box, and is infinite for items that are not wanted.
+     * @return The position of the nearest item, -1 if no item has a finite distance.
+     */
+    int nearest(double x, double y, double kx, double ky, IntToDoubleFunction distance) {
+        if (n == 0) {
+            return -1;
+        }
+        PriorityQueue<double[]> pq = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        int root = minX.length - 1;
+        pq.add(new double[]{boxDistance(root, x, y, kx, ky), root});
+        double best = Double.POSITIVE_INFINITY;
+        int found = -1;
+        while (!pq.isEmpty() && pq.peek()[0] < best) {
+            int i = (int) pq.poll()[1];
+            if (i < n) {
+                double d = distance.applyAsDouble(items[i]);
+                if (d < best) {
+                    best = d;
+                    found = items[i];
+                }
+            } else {
+                for (int k = first[i - n]; k <= last[i - n]; k += 1) {
+                    double d = boxDistance(k, x, y, kx, ky);
+                    if (d < best) {
+                        pq.add(new double[]{d, k});
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /** @return the distance from (x, y) to the box of entry i, 0 if the point is inside. */
+    private double boxDistance(int i, double x, double y, double kx, double ky) {
+        double dx = Math.max(0, Math.max(minX[i] - x, x - maxX[i])) * kx;
+        double dy = Math.max(0, Math.max(minY[i] - y, y - maxY[i])) * ky;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
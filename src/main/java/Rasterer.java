@@ -9,21 +9,38 @@ import java.util.ArrayList;
  * seven of the required fields.
  */
 public class Rasterer {
+    /**
+     * The deepest depth served. The tile crawler downloads depths 0 to 7, deeper tiles are
+     * drawn by TileRenderer.
+     */
+    static final int MAX_DEPTH = 10;
 
     private double[] lonDPPs;
     private double[] latDPPs;
-    private double rootUllon = MapServer.ROOT_ULLON;
-    private double rootLrlon = MapServer.ROOT_LRLON;
-    private double rootUllat = MapServer.ROOT_ULLAT;
-    private double rootLrlat = MapServer.ROOT_LRLAT;
+    private double rootUllon;
+    private double rootLrlon;
+    private double rootUllat;
+    private double rootLrlat;
 
     public Rasterer() {
+        this(MapServer.ROOT_ULLAT, MapServer.ROOT_ULLON, MapServer.ROOT_LRLAT,
+                MapServer.ROOT_LRLON);
+    }
+
+    /**
+     * Create a rasterer for a tile set whose root tile covers the given bounding box.
+     */
+    public Rasterer(double rootUllat, double rootUllon, double rootLrlat, double rootLrlon) {
+        this.rootUllat = rootUllat;
+        this.rootUllon = rootUllon;
+        this.rootLrlat = rootLrlat;
+        this.rootLrlon = rootLrlon;
         /** LonDPP for all levels of pics. */
-        lonDPPs = new double[8];
-        latDPPs = new double[8];
+        lonDPPs = new double[MAX_DEPTH + 1];
+        latDPPs = new double[MAX_DEPTH + 1];
         double rootLonDPP = (rootLrlon - rootUllon) / MapServer.TILE_SIZE;
         double rootLatDPP = (rootUllat - rootLrlat) / MapServer.TILE_SIZE;
-        for (int i = 0; i <= 7; i += 1) {
+        for (int i = 0; i <= MAX_DEPTH; i += 1) {
             lonDPPs[i] = rootLonDPP / (Math.pow(2, i));
             latDPPs[i] = rootLatDPP / (Math.pow(2, i));
         }
@@ -73,8 +90,8 @@ public class Rasterer {
         int depth = 0;
 
         /** select the appropriate level of picture. */
-        for (; depth <= 7; depth += 1) {
-            if (depth == 7 || lonDPPs[depth] <= queryBoxLonDPP) {
+        for (; depth <= MAX_DEPTH; depth += 1) {
+            if (depth == MAX_DEPTH || lonDPPs[depth] <= queryBoxLonDPP) {
                 break;
             }
         }
@@ -83,13 +100,18 @@ public class Rasterer {
         double resultLonDPP = lonDPPs[depth];
         double resultLatDPP = latDPPs[depth];
 
-        /** select the grids of pictures. */
+        /** select the grids of pictures: only the rows and columns the query box spans are
+         * visited, a deep level has far too many tiles to test them all. */
         ArrayList<ArrayList<String>> grids = new ArrayList<>();
         ArrayList<ArrayList<Integer>> rcs = new ArrayList<>();
-        for (int r = 0; r < Math.pow(2, depth); r += 1) {
+        int[] rows = span(rootUllat - params.get("ullat"), rootUllat - params.get("lrlat"),
+                resultLatDPP * MapServer.TILE_SIZE, depth);
+        int[] cols = span(params.get("ullon") - rootUllon, params.get("lrlon") - rootUllon,
+                resultLonDPP * MapServer.TILE_SIZE, depth);
+        for (int r = rows[0]; r <= rows[1]; r += 1) {
             /** per raw of pictures. */
             ArrayList<String> grid = new ArrayList<>();
-            for (int c = 0; c < Math.pow(2, depth); c += 1) {
+            for (int c = cols[0]; c <= cols[1]; c += 1) {
                 double[][] vertices = getVertices(r, c, resultLonDPP, resultLatDPP);
                 if (decideCover(vertices, params)) {
                     String g = "d" + depth + "_x" + c + "_y" + r + ".png";
@@ -105,6 +127,12 @@ public class Rasterer {
             }
         }
 
+        /** the query box does not intersect the root tile. */
+        if (rcs.isEmpty()) {
+            results.put("query_success", false);
+            return results;
+        }
+
         /** the lon and lat of the grids. */
         double ullon, ullat, lrlon, lrlat;
         /** upper left vertex raster. */
@@ -143,6 +171,22 @@ public class Rasterer {
         return results;
     }
 
+    /** private helper method for the range of tile rows or columns a query box spans.
+     *
+     * @param from the start of the query box, measured from the root tile's edge
+     * @param to the end of the query box, measured the same way
+     * @param tileSize the size of one tile in the same unit
+     * @param depth the depth of the tiles
+     * @return the first and last index, clamped to the tiles of the depth; the range is
+     * empty if the query box misses the root tile
+     */
+    private static int[] span(double from, double to, double tileSize, int depth) {
+        int last = (1 << depth) - 1;
+        int first = (int) Math.max(0, Math.floor(from / tileSize));
+        int end = (int) Math.min(last, Math.floor(to / tileSize));
+        return new int[]{first, end};
+    }
+
     /** private helper method for getting the vertices of the given picture block.
      *
      * @param raw the raw if the given picture
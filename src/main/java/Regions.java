@@ -0,0 +1,752 @@
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * The map regions served by this server. Each region is one shard: its own OSM extract,
+ * GraphDB and tile set, so a metro area can be split into extracts that are each small enough
+ * to parse and search quickly.
+ * Neighboring extracts are expected to overlap a little, as extracts cut from the same OSM
+ * data share the ids of the nodes in the overlap. Those shared nodes are the boundary nodes,
+ * and the overlay graph over them holds the cost of the best path, under each Profile,
+ * between every two boundary nodes of the same region. A route between two regions searches
+ * the overlay, and each of its legs is then expanded by a search inside a single region.
+ * The regions are listed in the REGIONS_PATH resource, a Json array of objects with "name",
+ * "osm", "imgs", "ullat", "ullon", "lrlat" and "lrlon", and optionally "min_component", the
+ * size in nodes below which islands of the road graph are dropped, and "snap_largest", to
+ * snap points only to the largest island. Without it the server has a single region, as
+ * configured in MapServer.
+ * A snapshot is loaded in stages, so that each part of it is served as soon as it is built:
+ * every region is parsed, then its tiles and its search trie are made at the same time, then
+ * its graph is built, and once every graph is, the overlay. The regions are loaded at the same
+ * time as each other. tilesReady, searchReady and routesReady tell which parts are built.
+ */
+public class Regions {
+    /** The region list resource. */
+    static final String REGIONS_PATH = "regions.json";
+
+    final List<Region> regions;
+    /** OSM id of every boundary node. */
+    private long[] boundaryIds;
+    private Map<Long, Integer> boundaryIndex;
+    /** Overlay edges leaving each boundary node. */
+    private List<List<OverlayEdge>> overlay;
+    /** Whether the rasterer and the tiles of every region are made. */
+    volatile boolean tilesReady;
+    /** Whether the graph and the search trie of every region are built. */
+    volatile boolean searchReady;
+    /** Whether the overlay is built too, so the snapshot is fully loaded. */
+    volatile boolean routesReady;
+    /** Why loading failed, null if it did not. */
+    private volatile String loadError;
+    /** When loading started, in milliseconds since the epoch. */
+    private long loadStartedAt;
+    /** The stages of loading that are done, in the order they finished. */
+    private final List<Map<String, Object>> stages = new ArrayList<>();
+    /** Number of reloads before this snapshot was built, see Reloader. */
+    int generation;
+    /** Requests currently running on this snapshot. */
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * One shard: a bounding box with its graph and tiles.
+     */
+    static class Region {
+        final String name;
+        final String osm;
+        final String imgs;
+        final double ullat, ullon, lrlat, lrlon;
+        GraphDB graph;
+        Rasterer rasterer;
+        VectorTiles vectorTiles;
+        TileRenderer renderer;
+        /** Vertex indices of the boundary nodes in graph.compact. */
+        int[] boundary;
+        /** See GraphDB(String, int, boolean). */
+        int minComponent = 0;
+        boolean snapLargest = false;
+
+        Region(String name, String osm, String imgs, double ullat, double ullon,
+               double lrlat, double lrlon) {
+            this.name = name;
+            this.osm = osm;
+            this.imgs = imgs;
+            this.ullat = ullat;
+            this.ullon = ullon;
+            this.lrlat = lrlat;
+            this.lrlon = lrlon;
+        }
+
+        /**
+         * Make the rasterer and the tiles of the region from its graph. The tiles of a graph
+         * that is parsed but not built yet show every road of the file.
+         */
+        void tiles() {
+            rasterer = new Rasterer(ullat, ullon, lrlat, lrlon);
+            vectorTiles = new VectorTiles(graph, name);
+            renderer = new TileRenderer(graph, name, imgs, ullat, ullon, lrlat, lrlon);
+        }
+
+        boolean contains(double lon, double lat) {
+            return ullon <= lon && lon <= lrlon && lrlat <= lat && lat <= ullat;
+        }
+
+        /** @return the area the region and the box have in common, in square degrees. */
+        double overlap(double boxUllon, double boxUllat, double boxLrlon, double boxLrlat) {
+            double w = Math.min(lrlon, boxLrlon) - Math.max(ullon, boxUllon);
+            double h = Math.min(ullat, boxUllat) - Math.max(lrlat, boxLrlat);
+            return w > 0 && h > 0 ? w * h : 0;
+        }
+
+        /** @return how far the point is outside the region in degrees, 0 inside. */
+        double outside(double lon, double lat) {
+            double dx = Math.max(0, Math.max(ullon - lon, lon - lrlon));
+            double dy = Math.max(0, Math.max(lrlat - lat, lat - ullat));
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+
+    /** The best paths between two boundary nodes within one region. */
+    private static class OverlayEdge {
+        final int to;
+        final int region;
+        /** The cost of the path under each profile, indexed by Profile.ordinal(). */
+        final double[] costs;
+
+        OverlayEdge(int to, int region, double[] costs) {
+            this.to = to;
+            this.region = region;
+            this.costs = costs;
+        }
+    }
+
+    /**
+     * Load every region and build the overlay graph.
+     * @param defaults The region to serve if there is no region list.
+     */
+    Regions(Region defaults) {
+        this(readRegions(defaults));
+        load(Workers.STARTUP_POOL).join();
+    }
+
+    /**
+     * A snapshot of regions that are not loaded yet, to be loaded by load. It can be served
+     * while it loads, as long as every request checks the part it needs is ready.
+     * @param regions The regions, see readRegions.
+     */
+    Regions(List<Region> regions) {
+        this.regions = regions;
+    }
+
+    /**
+     * Apply an OSM change to the graph of every region of a snapshot, into a new snapshot
+     * with the same regions, and build the overlay graph again. See
+     * GraphDB(GraphDB, OsmChange, int, boolean).
+     * @param base The snapshot to change, which is left as it was.
+     * @param change The change.
+     */
+    Regions(Regions base, OsmChange change) {
+        this(copies(base.regions));
+        loadStartedAt = System.currentTimeMillis();
+        for (int k = 0; k < regions.size(); k += 1) {
+            Region r = regions.get(k);
+            GraphDB old = base.regions.get(k).graph;
+            stage("change", r, () -> {
+                r.graph = new GraphDB(old, change, r.minComponent, r.snapLargest);
+                r.tiles();
+            });
+        }
+        stage("overlay", null, this::link);
+        tilesReady = true;
+        searchReady = true;
+        routesReady = true;
+    }
+
+    /**
+     * Load the regions in stages on an executor, marking each part of the snapshot ready as
+     * soon as it is built. The stages never wait for each other on a thread of the executor,
+     * so any number of threads will do.
+     * @param executor Runs the stages.
+     * @return Completes once the snapshot is fully loaded, or with the first failure.
+     */
+    CompletableFuture<Void> load(Executor executor) {
+        loadStartedAt = System.currentTimeMillis();
+        List<CompletableFuture<Void>> tiles = new ArrayList<>();
+        List<CompletableFuture<Void>> graphs = new ArrayList<>();
+        for (Region r : regions) {
+            CompletableFuture<Void> parsed = CompletableFuture.runAsync(() ->
+                    stage("parse", r, () -> r.graph = GraphDB.parse(r.osm)), executor);
+            /* both only read the parsed graph, which the build then changes. The tiles are
+             * made on the thread that parsed, first, and the trie on another one. */
+            CompletableFuture<Void> drawn = parsed.thenRun(() -> stage("tiles", r, r::tiles));
+            CompletableFuture<Void> named = parsed.thenRunAsync(() ->
+                    stage("search_index", r, r.graph::indexNames), executor);
+            tiles.add(drawn);
+            graphs.add(drawn.runAfterBothAsync(named, () -> stage("graph", r, () ->
+                    r.graph.build(r.minComponent, r.snapLargest)), executor));
+        }
+        CompletableFuture.allOf(tiles.toArray(new CompletableFuture<?>[0]))
+                .thenRun(() -> tilesReady = true);
+        CompletableFuture<Void> built = CompletableFuture.allOf(
+                graphs.toArray(new CompletableFuture<?>[0]));
+        built.thenRun(() -> searchReady = true);
+        return built.thenRunAsync(() -> stage("overlay", null, this::link), executor)
+                .thenRun(() -> routesReady = true)
+                .whenComplete((done, e) -> {
+                    if (e != null) {
+                        loadError = (e.getCause() != null ? e.getCause() : e).toString();
+                    }
+                });
+    }
+
+    /** Run a stage of loading and record how long it took. */
+    private void stage(String name, Region region, Runnable work) {
+        long started = System.currentTimeMillis();
+        work.run();
+        long finished = System.currentTimeMillis();
+        Map<String, Object> item = new HashMap<>();
+        item.put("stage", name);
+        if (region != null) {
+            item.put("region", region.name);
+        }
+        item.put("start_ms", started - loadStartedAt);
+        item.put("ms", finished - started);
+        synchronized (stages) {
+            stages.add(item);
+        }
+    }
+
+    /** Find the boundary nodes of the built graphs and build the overlay graph over them. */
+    private void link() {
+        /* a node is on the boundary if more than one region has it. */
+        Map<Long, Integer> seen = new HashMap<>();
+        for (Region r : regions) {
+            for (long id : r.graph.compact.ids) {
+                seen.merge(id, 1, Integer::sum);
+            }
+        }
+        boundaryIndex = new HashMap<>();
+        List<Long> ids = new ArrayList<>();
+        for (Map.Entry<Long, Integer> entry : seen.entrySet()) {
+            if (entry.getValue() > 1) {
+                boundaryIndex.put(entry.getKey(), ids.size());
+                ids.add(entry.getKey());
+            }
+        }
+        boundaryIds = new long[ids.size()];
+        overlay = new ArrayList<>(ids.size());
+        for (int i = 0; i < boundaryIds.length; i += 1) {
+            boundaryIds[i] = ids.get(i);
+            overlay.add(new ArrayList<>());
+        }
+
+        for (int k = 0; k < regions.size(); k += 1) {
+            Region r = regions.get(k);
+            CompactGraph g = r.graph.compact;
+            List<Integer> boundary = new ArrayList<>();
+            for (int v = 0; v < g.size(); v += 1) {
+                if (boundaryIndex.containsKey(g.ids[v])) {
+                    boundary.add(v);
+                }
+            }
+            r.boundary = boundary.stream().mapToInt(Integer::intValue).toArray();
+            Profile[] profiles = Profile.values();
+            double[][][] costs = new double[profiles.length][][];
+            for (Profile p : profiles) {
+                costs[p.ordinal()] = Router.distanceMatrix(g, r.boundary, r.boundary, p);
+            }
+            for (int i = 0; i < r.boundary.length; i += 1) {
+                int from = boundaryIndex.get(g.ids[r.boundary[i]]);
+                for (int j = 0; j < r.boundary.length; j += 1) {
+                    if (i == j || Double.isInfinite(costs[0][i][j])) {
+                        continue;
+                    }
+                    double[] edgeCosts = new double[profiles.length];
+                    for (Profile p : profiles) {
+                        edgeCosts[p.ordinal()] = costs[p.ordinal()][i][j];
+                    }
+                    int to = boundaryIndex.get(g.ids[r.boundary[j]]);
+                    overlay.get(from).add(new OverlayEdge(to, k, edgeCosts));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param defaults The region to serve if there is no region list.
+     * @return The regions of the region list, not loaded.
+     */
+    static List<Region> readRegions(Region defaults) {
+        InputStream in = Regions.class.getClassLoader().getResourceAsStream(REGIONS_PATH);
+        if (in == null) {
+            return Arrays.asList(defaults);
+        }
+        Type type = new TypeToken<List<Map<String, Object>>>() { }.getType();
+        List<Map<String, Object>> config =
+                new Gson().fromJson(new InputStreamReader(in, StandardCharsets.UTF_8), type);
+        List<Region> result = new ArrayList<>();
+        for (Map<String, Object> item : config) {
+            Region r = new Region((String) item.get("name"), (String) item.get("osm"),
+                    (String) item.get("imgs"), (Double) item.get("ullat"),
+                    (Double) item.get("ullon"), (Double) item.get("lrlat"),
+                    (Double) item.get("lrlon"));
+            if (item.get("min_component") != null) {
+                r.minComponent = ((Double) item.get("min_component")).intValue();
+            }
+            r.snapLargest = Boolean.TRUE.equals(item.get("snap_largest"));
+            result.add(r);
+        }
+        return result;
+    }
+
+    /** @return new regions configured as the given ones, without their graphs and tiles. */
+    private static List<Region> copies(List<Region> regions) {
+        List<Region> result = new ArrayList<>();
+        for (Region r : regions) {
+            Region copy = new Region(r.name, r.osm, r.imgs, r.ullat, r.ullon, r.lrlat,
+                    r.lrlon);
+            copy.minComponent = r.minComponent;
+            copy.snapLargest = r.snapLargest;
+            result.add(copy);
+        }
+        return result;
+    }
+
+    /**
+     * @return A map of parameters for the Json response as specified: <br>
+     * "ready" : Boolean, whether the snapshot is fully loaded. <br>
+     * "tiles", "search", "routes" : Boolean, whether the tiles, the search and everything
+     *           needing the graphs, and routes across regions are served. <br>
+     * "stages" : Object[], the stages of loading that are done, each with its "stage" name,
+     *            its "region", "start_ms", when it started after loading did, and "ms", how
+     *            long it took. <br>
+     * "error" : String, why loading failed. <br>
+     */
+    Map<String, Object> loadStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("ready", routesReady);
+        status.put("tiles", tilesReady);
+        status.put("search", searchReady);
+        status.put("routes", routesReady);
+        synchronized (stages) {
+            status.put("stages", new ArrayList<>(stages));
+        }
+        if (loadError != null) {
+            status.put("error", loadError);
+        }
+        return status;
+    }
+
+    /**
+     * @return the "count" of boundary nodes and the estimated "bytes" of the overlay graph
+     * over them, see HeapFootprint.
+     */
+    Map<String, Object> overlayFootprint() {
+        int n = boundaryIds.length;
+        long bytes = (long) Long.BYTES * n + HeapFootprint.hashMap(n)
+                + n * (HeapFootprint.LONG + HeapFootprint.INTEGER) + HeapFootprint.arrayList(n);
+        for (List<OverlayEdge> edges : overlay) {
+            bytes += HeapFootprint.arrayList(edges.size());
+            for (OverlayEdge edge : edges) {
+                bytes += HeapFootprint.align(HeapFootprint.HEADER + 2 * 4
+                        + HeapFootprint.REFERENCE) + HeapFootprint.array(edge.costs.length, 8);
+            }
+        }
+        return HeapFootprint.structure(n, bytes);
+    }
+
+    /** @return whether loading the snapshot failed, so it will never be ready. */
+    boolean loadFailed() {
+        return loadError != null;
+    }
+
+    /** @return the region with a name, or null if there is none. */
+    Region region(String name) {
+        for (Region r : regions) {
+            if (r.name.equals(name)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /** @return a region whose graph has no nodes, or null if every region has some. */
+    Region emptyRegion() {
+        for (Region r : regions) {
+            if (r.graph.compact.size() == 0) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the region a point belongs to: the first region containing it, or else the
+     * region nearest to it.
+     */
+    Region regionAt(double lon, double lat) {
+        Region nearest = regions.get(0);
+        for (Region r : regions) {
+            if (r.contains(lon, lat)) {
+                return r;
+            }
+            if (r.outside(lon, lat) < nearest.outside(lon, lat)) {
+                nearest = r;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Returns the region whose tiles cover most of a query box, or null if none covers it.
+     */
+    Region regionFor(double ullon, double ullat, double lrlon, double lrlat) {
+        Region best = null;
+        double bestOverlap = 0;
+        for (Region r : regions) {
+            double overlap = r.overlap(ullon, ullat, lrlon, lrlat);
+            if (overlap > bestOverlap) {
+                best = r;
+                bestOverlap = overlap;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Looks up a node by id in any region.
+     * @return the node, or null if no region has it.
+     */
+    GraphDB.Node node(long id) {
+        for (Region r : regions) {
+            GraphDB.Node node = r.graph.nodes.get(id);
+            if (node != null) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns what the routes between two locations depend on: the points they are snapped
+     * to, as routes and shortestPath snap them, and the snapshot. Requests with equal keys get
+     * the same routes.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param profile What the paths minimize.
+     * @param count The largest number of paths.
+     * @return The key, with equals and hashCode.
+     */
+    List<Object> routeKey(double stlon, double stlat, double destlon, double destlat,
+                          Profile profile, int count) {
+        Region a = regionAt(stlon, stlat);
+        Region b = regionAt(destlon, destlat);
+        if (a == b) {
+            SegmentIndex.Snap start = a.graph.compact.snap(stlon, stlat);
+            SegmentIndex.Snap dest = a.graph.compact.snap(destlon, destlat);
+            if (start != null && dest != null) {
+                return Arrays.asList(a, start.edge, start.fraction, dest.edge, dest.fraction,
+                        profile, count);
+            }
+        } else if (a.graph.compact.size() > 0 && b.graph.compact.size() > 0) {
+            /* a single path, between the closest vertices. */
+            return Arrays.asList(a, a.graph.compact.closest(stlon, stlat), b,
+                    b.graph.compact.closest(destlon, destlat), profile);
+        }
+        return Arrays.asList(a, stlon, stlat, b, destlon, destlat, profile, count);
+    }
+
+    /**
+     * Return the best path under a profile between two locations followed by alternatives
+     * to it, found together by one search when both locations are in the same region.
+     * Across regions only the best path is returned.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param profile What the paths minimize.
+     * @param count The largest number of paths, the best one included.
+     * @return Lists of node id's in the order visited on each path, best first; empty if
+     * there is no path.
+     */
+    List<List<Long>> routes(double stlon, double stlat, double destlon, double destlat,
+                            Profile profile, int count) {
+        Region a = regionAt(stlon, stlat);
+        Region b = regionAt(destlon, destlat);
+        if (a == b) {
+            return Router.alternativeRoutes(a.graph, stlon, stlat, destlon, destlat, profile,
+                    count);
+        }
+        List<List<Long>> routes = new ArrayList<>();
+        List<Long> route = shortestPath(stlon, stlat, destlon, destlat, profile);
+        if (!route.isEmpty()) {
+            routes.add(route);
+        }
+        return routes;
+    }
+
+    /**
+     * Return a List of longs representing the best path under a profile from the node
+     * closest to a start location and the node closest to the destination location, which
+     * may be in different regions. Within one region this is a plain search of that region.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param profile What the path minimizes.
+     * Across regions the overlay graph keeps the costs of the graphs without the rules of a
+     * RoadOverlay, while the legs are searched with them, so a route may be planned over a
+     * penalized road, and if a closure cuts a leg the overlay chose, no route is found.
+     * @return A list of node id's in the order visited on the path, empty if there is none.
+     */
+    List<Long> shortestPath(double stlon, double stlat, double destlon, double destlat,
+                            Profile profile) {
+        Region a = regionAt(stlon, stlat);
+        Region b = regionAt(destlon, destlat);
+        List<Long> route = new ArrayList<>();
+        if (a.graph.compact.size() == 0 || b.graph.compact.size() == 0) {
+            return route;
+        }
+        if (a == b) {
+            return Router.shortestPath(a.graph, stlon, stlat, destlon, destlat, profile);
+        }
+        int s = a.graph.compact.closest(stlon, stlat);
+        int t = b.graph.compact.closest(destlon, destlat);
+
+        /* distances from the start to the boundary of its region, and from the boundary of
+         * the destination region to the destination. */
+        double[] fromStart =
+                Router.distanceMatrix(a.graph.compact, new int[]{s}, a.boundary, profile)[0];
+        double[] toDest =
+                Router.distanceMatrix(b.graph.compact, new int[]{t}, b.boundary, profile)[0];
+        double[] exit = new double[boundaryIds.length];
+        Arrays.fill(exit, Double.POSITIVE_INFINITY);
+        for (int j = 0; j < b.boundary.length; j += 1) {
+            exit[boundaryIndex.get(b.graph.compact.ids[b.boundary[j]])] = toDest[j];
+        }
+
+        double[] dist = new double[boundaryIds.length];
+        int[] prev = new int[boundaryIds.length];
+        int[] via = new int[boundaryIds.length];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(prev, -1);
+        PriorityQueue<double[]> pq = new PriorityQueue<>((x, y) -> Double.compare(x[0], y[0]));
+        for (int i = 0; i < a.boundary.length; i += 1) {
+            int u = boundaryIndex.get(a.graph.compact.ids[a.boundary[i]]);
+            if (fromStart[i] < dist[u]) {
+                dist[u] = fromStart[i];
+                pq.add(new double[]{dist[u], u});
+            }
+        }
+        double best = Double.POSITIVE_INFINITY;
+        int last = -1;
+        while (!pq.isEmpty() && pq.peek()[0] < best) {
+            double[] top = pq.poll();
+            int u = (int) top[1];
+            if (top[0] > dist[u]) {
+                continue;
+            }
+            if (dist[u] + exit[u] < best) {
+                best = dist[u] + exit[u];
+                last = u;
+            }
+            for (OverlayEdge e : overlay.get(u)) {
+                double cost = e.costs[profile.ordinal()];
+                if (dist[u] + cost < dist[e.to]) {
+                    dist[e.to] = dist[u] + cost;
+                    prev[e.to] = u;
+                    via[e.to] = e.region;
+                    pq.add(new double[]{dist[e.to], e.to});
+                }
+            }
+        }
+        if (last < 0) {
+            return route;
+        }
+
+        /* expand the overlay path leg by leg, from the destination backwards. */
+        List<Integer> hops = new ArrayList<>();
+        for (int u = last; u != -1; u = prev[u]) {
+            hops.add(0, u);
+        }
+        boolean found = appendLeg(route, a, s,
+                a.graph.compact.indexOf(boundaryIds[hops.get(0)]), profile);
+        for (int i = 1; found && i < hops.size(); i += 1) {
+            Region r = regions.get(via[hops.get(i)]);
+            CompactGraph g = r.graph.compact;
+            found = appendLeg(route, r, g.indexOf(boundaryIds[hops.get(i - 1)]),
+                    g.indexOf(boundaryIds[hops.get(i)]), profile);
+        }
+        if (!found || !appendLeg(route, b, b.graph.compact.indexOf(boundaryIds[last]), t,
+                profile)) {
+            /* a closure cut a leg the overlay chose; the legs left would not join up. */
+            route.clear();
+        }
+        return route;
+    }
+
+    /**
+     * Compute the cost of the best path under a profile from every source to every target,
+     * each point taken at the node closest to it in its region, as shortestPath does. The
+     * pairs within one region are searched in that region with one sweep per source, and
+     * the pairs across regions go through the overlay graph, with one sweep of the overlay
+     * per source.
+     * @param sources The source points, each as {lon, lat}.
+     * @param targets The target points, each as {lon, lat}.
+     * @param profile What the costs are.
+     * @return A sources.size() by targets.size() array of costs, infinite where a target
+     * cannot be reached from a source.
+     */
+    double[][] costMatrix(List<double[]> sources, List<double[]> targets, Profile profile) {
+        double[][] costs = new double[sources.size()][targets.size()];
+        for (double[] row : costs) {
+            Arrays.fill(row, Double.POSITIVE_INFINITY);
+        }
+        List<List<Integer>> sourcesIn = byRegion(sources);
+        List<List<Integer>> targetsIn = byRegion(targets);
+        int[][] targetVertices = new int[regions.size()][];
+        for (int b = 0; b < regions.size(); b += 1) {
+            targetVertices[b] = closest(regions.get(b), targets, targetsIn.get(b));
+        }
+        /* the costs from the targets of each region to its boundary, as the graphs are
+         * undirected, found once the first source in another region needs them. */
+        double[][][] toTarget = new double[regions.size()][][];
+        for (int a = 0; a < regions.size(); a += 1) {
+            List<Integer> from = sourcesIn.get(a);
+            if (from.isEmpty()) {
+                continue;
+            }
+            Region ra = regions.get(a);
+            CompactGraph ga = ra.graph.compact;
+            int[] starts = closest(ra, sources, from);
+            double[][] local = Router.distanceMatrix(ga, starts, targetVertices[a], profile);
+            for (int i = 0; i < starts.length; i += 1) {
+                for (int j = 0; j < targetVertices[a].length; j += 1) {
+                    costs[from.get(i)][targetsIn.get(a).get(j)] = local[i][j];
+                }
+            }
+            if (targetsIn.get(a).size() == targets.size()) {
+                continue;
+            }
+            double[][] fromStart = Router.distanceMatrix(ga, starts, ra.boundary, profile);
+            for (int i = 0; i < starts.length; i += 1) {
+                double[] dist = overlayCosts(ra, fromStart[i], profile);
+                for (int b = 0; b < regions.size(); b += 1) {
+                    List<Integer> to = targetsIn.get(b);
+                    if (b == a || to.isEmpty()) {
+                        continue;
+                    }
+                    Region rb = regions.get(b);
+                    if (toTarget[b] == null) {
+                        toTarget[b] = Router.distanceMatrix(rb.graph.compact, targetVertices[b],
+                                rb.boundary, profile);
+                    }
+                    for (int j = 0; j < to.size(); j += 1) {
+                        double best = Double.POSITIVE_INFINITY;
+                        for (int k = 0; k < rb.boundary.length; k += 1) {
+                            int u = boundaryIndex.get(rb.graph.compact.ids[rb.boundary[k]]);
+                            best = Math.min(best, dist[u] + toTarget[b][j][k]);
+                        }
+                        costs[from.get(i)][to.get(j)] = best;
+                    }
+                }
+            }
+        }
+        return costs;
+    }
+
+    /** @return the positions of the points in each region, by the position of the region;
+     * none in a region without nodes. */
+    private List<List<Integer>> byRegion(List<double[]> points) {
+        List<List<Integer>> in = new ArrayList<>();
+        for (int r = 0; r < regions.size(); r += 1) {
+            in.add(new ArrayList<>());
+        }
+        for (int i = 0; i < points.size(); i += 1) {
+            Region r = regionAt(points.get(i)[0], points.get(i)[1]);
+            if (r.graph.compact.size() > 0) {
+                in.get(regions.indexOf(r)).add(i);
+            }
+        }
+        return in;
+    }
+
+    /** @return the vertex of r closest to each of the given points. */
+    private static int[] closest(Region r, List<double[]> points, List<Integer> positions) {
+        int[] vertices = new int[positions.size()];
+        for (int i = 0; i < vertices.length; i += 1) {
+            double[] point = points.get(positions.get(i));
+            vertices[i] = r.graph.compact.closest(point[0], point[1]);
+        }
+        return vertices;
+    }
+
+    /**
+     * Search the overlay graph from a start in region a.
+     * @param fromStart The cost from the start to each boundary node of a.
+     * @return The cost from the start to every boundary node, by its overlay index.
+     */
+    private double[] overlayCosts(Region a, double[] fromStart, Profile profile) {
+        double[] dist = new double[boundaryIds.length];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        PriorityQueue<double[]> pq = new PriorityQueue<>((x, y) -> Double.compare(x[0], y[0]));
+        for (int i = 0; i < a.boundary.length; i += 1) {
+            int u = boundaryIndex.get(a.graph.compact.ids[a.boundary[i]]);
+            if (fromStart[i] < dist[u]) {
+                dist[u] = fromStart[i];
+                pq.add(new double[]{dist[u], u});
+            }
+        }
+        while (!pq.isEmpty()) {
+            double[] top = pq.poll();
+            int u = (int) top[1];
+            if (top[0] > dist[u]) {
+                continue;
+            }
+            for (OverlayEdge e : overlay.get(u)) {
+                double cost = e.costs[profile.ordinal()];
+                if (dist[u] + cost < dist[e.to]) {
+                    dist[e.to] = dist[u] + cost;
+                    pq.add(new double[]{dist[e.to], e.to});
+                }
+            }
+        }
+        return dist;
+    }
+
+    /**
+     * Search one region and append the path to route, without repeating the joint node.
+     * @return false if there is no path, e.g. as a closure cut it.
+     */
+    private static boolean appendLeg(List<Long> route, Region r, int from, int to,
+                                     Profile profile) {
+        CompactGraph g = r.graph.compact;
+        int[] path = Router.shortestPath(r.graph.contracted, SearchState.get(g), from, to,
+                profile);
+        if (path == null) {
+            return false;
+        }
+        for (int v : path) {
+            long id = g.ids[v];
+            if (route.isEmpty() || route.get(route.size() - 1) != id) {
+                route.add(id);
+            }
+        }
+        return true;
+    }
+}
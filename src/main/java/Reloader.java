@@ -0,0 +1,211 @@
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Rebuilds the map data without stopping the server. A reload builds a complete new snapshot
+ * (graphs, search index, overlay) on a background thread while requests keep being served
+ * from the old one, then swaps it in with a single atomic write. Requests that started
+ * before the swap finish on the old snapshot, which is dropped once they are done.
+ * The status reports the heap used before the reload, with both snapshots alive, and how
+ * long the old snapshot stayed in use, so the memory needed by a reload can be sized. The
+ * heap figures are read without forcing a collection, which would stop every request for
+ * as long as it takes, so they include garbage not collected yet.
+ */
+public class Reloader {
+    /** How often the old snapshot is checked for requests still using it. */
+    private static final long DRAIN_POLL_MILLIS = 50;
+    /** Stop waiting for the old snapshot after this long. */
+    private static final long DRAIN_TIMEOUT_MILLIS = 60000;
+
+    private final AtomicReference<Regions> current;
+    private final Supplier<Regions> builder;
+    private final UnaryOperator<Regions> swap;
+    private final Consumer<Regions> loaded;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "reload");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private String state = "idle";
+    private int generation = 0;
+    private long startedAt;
+    private long buildMillis;
+    private long drainMillis = -1;
+    private long heapBefore;
+    private long heapBoth;
+    private long heapAfter = -1;
+    private String error;
+    private WeakReference<Regions> old;
+
+    /**
+     * @param current Where the snapshot being served is kept.
+     * @param builder Builds a new snapshot from the map data.
+     * @param swap Makes a rebuilt snapshot ready to serve and swaps it into current,
+     *             returning the snapshot it replaced.
+     * @param loaded Told about every snapshot once it is being served.
+     */
+    Reloader(AtomicReference<Regions> current, Supplier<Regions> builder,
+             UnaryOperator<Regions> swap, Consumer<Regions> loaded) {
+        this.current = current;
+        this.builder = builder;
+        this.swap = swap;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Serve a first snapshot right away and load it in the background, each part being
+     * served as soon as it is built, see Regions.load.
+     * @param first The snapshot, not loaded yet.
+     * @return Completes once the snapshot is fully loaded.
+     */
+    CompletableFuture<Void> loadInitial(Regions first) {
+        first.generation = generation;
+        current.set(first);
+        return first.load(Workers.STARTUP_POOL).thenRun(() -> loaded.accept(first));
+    }
+
+    /**
+     * Start a reload on the background thread.
+     * @return false if a reload is already running.
+     */
+    synchronized boolean start() {
+        return start(builder);
+    }
+
+    /**
+     * Start building a snapshot some other way than from the map data, e.g. by changing the
+     * current one, and swap it in as a reload would.
+     * @param build Builds the new snapshot on the background thread.
+     * @return false if a reload is already running.
+     */
+    synchronized boolean start(Supplier<Regions> build) {
+        if (state.equals("building") || state.equals("draining")) {
+            return false;
+        }
+        state = "building";
+        startedAt = System.currentTimeMillis();
+        buildMillis = 0;
+        drainMillis = -1;
+        heapAfter = -1;
+        error = null;
+        worker.submit(() -> reload(build));
+        return true;
+    }
+
+    private void reload(Supplier<Regions> build) {
+        long before = usedHeap();
+        synchronized (this) {
+            heapBefore = before;
+        }
+        Regions next = null;
+        String failure;
+        try {
+            next = build.get();
+            /* GraphDB reports parse errors by printing them, so an empty region means the
+             * data could not be read; keep serving the old snapshot. */
+            failure = next.emptyRegion() == null ? null
+                    : "region " + next.emptyRegion().name + " has no nodes";
+        } catch (RuntimeException | OutOfMemoryError e) {
+            e.printStackTrace();
+            failure = e.toString();
+        }
+        if (failure != null) {
+            synchronized (this) {
+                state = "failed";
+                error = failure;
+                buildMillis = System.currentTimeMillis() - startedAt;
+            }
+            return;
+        }
+        long built = System.currentTimeMillis();
+        long both = usedHeap();
+        Regions previous;
+        synchronized (this) {
+            buildMillis = built - startedAt;
+            heapBoth = both;
+            generation += 1;
+            next.generation = generation;
+            previous = swap.apply(next);
+            old = new WeakReference<>(previous);
+            state = "draining";
+        }
+        loaded.accept(next);
+
+        /* the old snapshot is released by the last request that started before the swap. */
+        long swappedAt = System.currentTimeMillis();
+        while (previous.inFlight.get() > 0
+                && System.currentTimeMillis() - swappedAt < DRAIN_TIMEOUT_MILLIS) {
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        boolean drained = previous.inFlight.get() == 0;
+        long drainedAt = System.currentTimeMillis();
+        previous = null;
+        long after = usedHeap();
+        synchronized (this) {
+            drainMillis = drainedAt - swappedAt;
+            heapAfter = after;
+            state = drained ? "done" : "done_with_old_requests";
+        }
+    }
+
+    /** @return the heap in use as the JVM reports it, garbage not collected yet included. */
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return A map of parameters for the Json response as specified: <br>
+     * "state" : String, one of idle, building, draining, done, done_with_old_requests or
+     *           failed. <br>
+     * "generation" : Number, how many reloads have been swapped in. <br>
+     * "build_ms" : Number, the time spent building the new snapshot. <br>
+     * "drain_ms" : Number, the time the old snapshot stayed in use after the swap. <br>
+     * "old_in_flight" : Number, requests still running on the old snapshot. <br>
+     * "old_collected" : Boolean, whether the old snapshot has been garbage collected. <br>
+     * "heap_before_bytes", "heap_overlap_bytes", "heap_after_bytes" : Number, heap in use
+     *           before the build, with both snapshots alive, and after the old one was
+     *           released, garbage included. <br>
+     * "error" : String, why the last reload failed. <br>
+     */
+    synchronized Map<String, Object> status() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("state", state);
+        status.put("generation", generation);
+        if (!state.equals("idle")) {
+            status.put("build_ms", state.equals("building")
+                    ? System.currentTimeMillis() - startedAt : buildMillis);
+        }
+        if (heapBefore > 0) {
+            status.put("heap_before_bytes", heapBefore);
+        }
+        Regions previous = old == null ? null : old.get();
+        if (old != null) {
+            status.put("heap_overlap_bytes", heapBoth);
+            status.put("old_in_flight", previous == null ? 0 : previous.inFlight.get());
+            status.put("old_collected", previous == null);
+        }
+        if (drainMillis >= 0) {
+            status.put("drain_ms", drainMillis);
+            status.put("heap_after_bytes", heapAfter);
+        }
+        if (error != null) {
+            status.put("error", error);
+        }
+        return status;
+    }
+}
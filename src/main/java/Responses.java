@@ -0,0 +1,231 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes the responses of the Json endpoints. Bodies are serialized by one shared Gson
+ * straight into the response stream instead of into a String first, and compressed with
+ * gzip or deflate when the client's Accept-Encoding allows it. A handler that wrote its
+ * response returns the empty string, which Spark does not write as the response is already
+ * committed.
+ */
+public class Responses {
+    /** Gson is thread safe, one instance serves every request. */
+    static final Gson GSON = new Gson();
+    /** Bytes buffered before they are handed to the compressor or the client. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Precision of encoded polylines: coordinates are rounded to 1e-5 degrees. */
+    private static final double POLYLINE_SCALE = 1e5;
+
+    /**
+     * Write body as Json.
+     * @param req HTTP Request, for its Accept-Encoding.
+     * @param res HTTP Response.
+     * @param body The value to serialize.
+     * @return The empty string, for the handler to return.
+     * @throws IOException If writing to the client fails.
+     */
+    static String json(spark.Request req, spark.Response res, Object body) throws IOException {
+        res.type("application/json");
+        try (Writer out = writer(req, res)) {
+            GSON.toJson(body, out);
+        }
+        return "";
+    }
+
+    /**
+     * Write params as a Json object, with png as one more field holding the image in base64.
+     * The image is encoded while it is written, so the base64 text is never held in memory.
+     * @param req HTTP Request, for its Accept-Encoding.
+     * @param res HTTP Response.
+     * @param params The fields of the object.
+     * @param field The name of the image field.
+     * @param png The image.
+     * @return The empty string, for the handler to return.
+     * @throws IOException If writing to the client fails.
+     */
+    static String json(spark.Request req, spark.Response res, Map<String, Object> params,
+                       String field, ByteArrayOutputStream png) throws IOException {
+        res.type("application/json");
+        OutputStream os = stream(req, res);
+        Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            json.name(entry.getKey());
+            if (entry.getValue() == null) {
+                json.nullValue();
+            } else {
+                GSON.toJson(entry.getValue(), entry.getValue().getClass(), json);
+            }
+        }
+        /* JsonWriter takes a string value whole, so open the string, write the base64 bytes
+         * below the writer and close the string by hand; base64 needs no escaping. */
+        json.name(field);
+        json.jsonValue("\"");
+        out.flush();
+        OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(os) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                os.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        png.writeTo(base64);
+        base64.close();
+        out.write('"');
+        json.endObject();
+        json.close();
+        return "";
+    }
+
+    /**
+     * Write bytes as they are, compressed if the client accepts it.
+     * @param req HTTP Request, for its Accept-Encoding.
+     * @param res HTTP Response.
+     * @param type The content type.
+     * @param body The bytes.
+     * @return The empty string, for the handler to return.
+     * @throws IOException If writing to the client fails.
+     */
+    static String bytes(spark.Request req, spark.Response res, String type, byte[] body)
+            throws IOException {
+        res.type(type);
+        try (OutputStream os = stream(req, res)) {
+            os.write(body);
+        }
+        return "";
+    }
+
+    /** @return a buffered, possibly compressing, character stream to the client. */
+    static Writer writer(spark.Request req, spark.Response res) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(stream(req, res),
+                StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Pick the response's Content-Encoding from the request's Accept-Encoding, gzip before
+     * deflate, and open the response stream with it. A flush of the stream sends everything
+     * written so far, so streamed responses reach the client as they are written.
+     * @return The stream to write the response body to; closing it ends the response.
+     */
+    static OutputStream stream(spark.Request req, spark.Response res) throws IOException {
+        res.header("Vary", "Accept-Encoding");
+        String encoding = encoding(req.headers("Accept-Encoding"));
+        OutputStream os = res.raw().getOutputStream();
+        if ("gzip".equals(encoding)) {
+            res.header("Content-Encoding", "gzip");
+            return new GZIPOutputStream(os, BUFFER_SIZE, true);
+        } else if ("deflate".equals(encoding)) {
+            res.header("Content-Encoding", "deflate");
+            return new DeflaterOutputStream(os, new Deflater(), BUFFER_SIZE, true) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    def.end();
+                }
+            };
+        }
+        return os;
+    }
+
+    /**
+     * @param accept An Accept-Encoding header, or null.
+     * @return "gzip", "deflate" or null for no compression.
+     */
+    static String encoding(String accept) {
+        if (accept == null) {
+            return null;
+        }
+        double gzip = 0;
+        double deflate = 0;
+        double any = 0;
+        boolean gzipListed = false;
+        boolean deflateListed = false;
+        for (String part : accept.split(",")) {
+            String[] fields = part.trim().split(";");
+            double q = 1;
+            for (int i = 1; i < fields.length; i += 1) {
+                String param = fields[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            String coding = fields[0].trim().toLowerCase();
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = Math.max(gzip, q);
+                gzipListed = true;
+            } else if (coding.equals("deflate")) {
+                deflate = Math.max(deflate, q);
+                deflateListed = true;
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        /* codings not listed take the q of "*", if there is one. */
+        if (!gzipListed) {
+            gzip = any;
+        }
+        if (!deflateListed) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return "gzip";
+        }
+        return deflate > 0 ? "deflate" : null;
+    }
+
+    /**
+     * Encode a line with the polyline algorithm of the Google Maps API: every coordinate is
+     * rounded to 1e-5 degrees and written as the difference to the one before, latitude
+     * before longitude, in chunks of five bits as printable characters.
+     * @param nodes The points of the line.
+     * @return The encoded line.
+     */
+    static String polyline(List<GraphDB.Node> nodes) {
+        StringBuilder sb = new StringBuilder(nodes.size() * 8);
+        long lastLat = 0;
+        long lastLon = 0;
+        for (GraphDB.Node v : nodes) {
+            long lat = Math.round(v.lat * POLYLINE_SCALE);
+            long lon = Math.round(v.lon * POLYLINE_SCALE);
+            encode(lat - lastLat, sb);
+            encode(lon - lastLon, sb);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return sb.toString();
+    }
+
+    private static void encode(long delta, StringBuilder sb) {
+        long value = delta < 0 ? ~(delta << 1) : delta << 1;
+        while (value >= 0x20) {
+            sb.append((char) ((0x20 | (value & 0x1f)) + 63));
+            value >>= 5;
+        }
+        sb.append((char) (value + 63));
+    }
+}
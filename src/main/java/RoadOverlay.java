@@ -0,0 +1,306 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Penalties and closures of roads set while the server runs, applied to routing without
+ * rebuilding the graph. A rule multiplies the cost of a way, or of the road between two
+ * nodes, by a factor of at least 1, or closes it, until it is removed or expires. Where
+ * rules overlap, the strongest rule on a segment wins.
+ * The rules are turned into Penalties for every contracted graph being served: the cost of
+ * every core edge with the extra cost of the penalized segments of its chain added. A
+ * search reads the Penalties of its graph once and uses them to the end, and a change
+ * publishes new Penalties with a single write, so requests never wait for a change and
+ * requests in flight finish on the costs they started with. After publishing, the route
+ * cache of the graph drops the routes the change may have made wrong.
+ * Penalties only apply to routes passing through a chain: the sections from a start or to
+ * a destination in the middle of a chain keep their cost, so a route can still begin or end
+ * on a closed road. Distance matrices and isochrones keep the costs of the graph, and so does
+ * the overlay graph routes across regions are planned on: their legs are searched with the
+ * rules, and such a route is not found if a closure cuts one of its legs.
+ */
+public class RoadOverlay {
+    /** How often expired rules are looked for. */
+    private static final long EXPIRY_POLL_MILLIS = 1000;
+    /** The way of a rule between two nodes. */
+    static final long NO_WAY = -1;
+
+    /** What a rule applies to: a way, or the road between two nodes. */
+    static class Target {
+        final long way;
+        final long from;
+        final long to;
+
+        Target(long way, long from, long to) {
+            this.way = way;
+            /* the road between two nodes has no direction. */
+            this.from = Math.min(from, to);
+            this.to = Math.max(from, to);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Target)) {
+                return false;
+            }
+            Target other = (Target) o;
+            return way == other.way && from == other.from && to == other.to;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(way, from, to);
+        }
+    }
+
+    /** A penalty or a closure of one target. */
+    private static class Rule {
+        final Target target;
+        /** The cost multiplier, infinite for a closure. */
+        final double factor;
+        /** When the rule ends in milliseconds since the epoch, Long.MAX_VALUE for never. */
+        final long expiresAt;
+
+        Rule(Target target, double factor, long expiresAt) {
+            this.target = target;
+            this.factor = factor;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** The costs of the core edges of one graph under the rules, never changed once made. */
+    static class Penalties {
+        final double[] lengths;
+        final double[] times;
+
+        Penalties(double[] lengths, double[] times) {
+            this.lengths = lengths;
+            this.times = times;
+        }
+    }
+
+    private final AtomicReference<Regions> current;
+    private final Map<Target, Rule> rules = new HashMap<>();
+    private long changes;
+
+    /**
+     * @param current Where the snapshot being served is kept; changes apply to its graphs.
+     */
+    RoadOverlay(AtomicReference<Regions> current) {
+        this.current = current;
+        ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "road-overlay");
+            t.setDaemon(true);
+            return t;
+        });
+        expiry.scheduleWithFixedDelay(this::expire, EXPIRY_POLL_MILLIS, EXPIRY_POLL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Penalize or close a target, replacing the rule it had.
+     * @param target The way or the road between two nodes.
+     * @param factor The cost multiplier, at least 1, or infinite to close the target.
+     * @param ttlMillis How long the rule lasts, 0 for no end.
+     * @return The number of segments of the graphs being served the rule applies to; the rule
+     * is only kept if there are some.
+     */
+    synchronized int set(Target target, double factor, long ttlMillis) {
+        int segments = 0;
+        for (Regions.Region r : current.get().regions) {
+            segments += segments(r.graph, target).size();
+        }
+        if (segments > 0) {
+            long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis
+                    : Long.MAX_VALUE;
+            rules.put(target, new Rule(target, factor, expiresAt));
+            apply(current.get());
+        }
+        return segments;
+    }
+
+    /**
+     * Remove the rule of a target.
+     * @return false if the target had no rule.
+     */
+    synchronized boolean remove(Target target) {
+        if (rules.remove(target) == null) {
+            return false;
+        }
+        apply(current.get());
+        return true;
+    }
+
+    /** Remove the rules that expired. */
+    private synchronized void expire() {
+        long now = System.currentTimeMillis();
+        boolean expired = false;
+        Iterator<Rule> it = rules.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+                expired = true;
+            }
+        }
+        if (expired) {
+            try {
+                apply(current.get());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Publish the Penalties of the rules to a new snapshot and swap it in for the one being
+     * served, in one step, so no request routes on the new snapshot without the rules, and a
+     * rule set meanwhile cannot reach the old snapshot only.
+     * @param next The new snapshot, fully loaded.
+     * @return The snapshot that was being served.
+     */
+    synchronized Regions swap(Regions next) {
+        apply(next);
+        return current.getAndSet(next);
+    }
+
+    /**
+     * Publish the Penalties of the rules to every graph of a snapshot, e.g. one that was just
+     * loaded, and drop the cached routes the change may have made wrong.
+     * @param regions The snapshot.
+     */
+    synchronized void apply(Regions regions) {
+        changes += 1;
+        for (Regions.Region r : regions.regions) {
+            ContractedGraph c = r.graph.contracted;
+            Penalties before = c.penalties;
+            Penalties after = penalties(r.graph);
+            c.penalties = after;
+            c.routes.invalidate(c, before, after);
+        }
+    }
+
+    /** @return the costs of the core edges of g.contracted under the rules, null if no rule
+     * applies to g. */
+    private Penalties penalties(GraphDB g) {
+        CompactGraph cg = g.compact;
+        ContractedGraph c = g.contracted;
+        /* the strongest rule on every segment, keyed by its edge from the lower vertex. */
+        Map<Integer, Double> factors = new HashMap<>();
+        for (Rule rule : rules.values()) {
+            for (int e : segments(g, rule.target)) {
+                factors.merge(e, rule.factor, Math::max);
+            }
+        }
+        if (factors.isEmpty()) {
+            return null;
+        }
+        int chains = c.chainFrom.length;
+        double[] extraLengths = new double[chains];
+        double[] extraTimes = new double[chains];
+        for (Map.Entry<Integer, Double> entry : factors.entrySet()) {
+            int e = entry.getKey();
+            int code = c.baseChain[e];
+            int k = code >= 0 ? code : ~code;
+            double factor = entry.getValue();
+            if (Double.isInfinite(factor)) {
+                /* a closure closes the chain even on a segment of no length, where the
+                 * product would be NaN. */
+                extraLengths[k] = Double.POSITIVE_INFINITY;
+                extraTimes[k] = Double.POSITIVE_INFINITY;
+            } else {
+                extraLengths[k] += (factor - 1) * cg.lengths[e];
+                extraTimes[k] += (factor - 1) * cg.times[e];
+            }
+        }
+        double[] lengths = Arrays.copyOf(c.lengths, c.lengths.length);
+        double[] times = Arrays.copyOf(c.times, c.times.length);
+        for (int e = 0; e < lengths.length; e += 1) {
+            int code = c.edgeChain[e];
+            int k = code >= 0 ? code : ~code;
+            lengths[e] += extraLengths[k];
+            times[e] += extraTimes[k];
+        }
+        return new Penalties(lengths, times);
+    }
+
+    /**
+     * @return the edges of g.compact a target covers, each segment once as its edge from the
+     * lower vertex to the higher one. Loops of a vertex to itself are left out.
+     */
+    private static List<Integer> segments(GraphDB g, Target target) {
+        List<Long> nodes;
+        if (target.way != NO_WAY) {
+            GraphDB.Way way = g.ways.get(target.way);
+            nodes = way == null ? new ArrayList<>() : way.wayNodes;
+        } else {
+            nodes = Arrays.asList(target.from, target.to);
+        }
+        CompactGraph cg = g.compact;
+        List<Integer> edges = new ArrayList<>();
+        for (int i = 0; i + 1 < nodes.size(); i += 1) {
+            int a = cg.indexOf(nodes.get(i));
+            int b = cg.indexOf(nodes.get(i + 1));
+            if (a < 0 || b < 0 || a == b) {
+                continue;
+            }
+            int u = Math.min(a, b);
+            int w = Math.max(a, b);
+            for (int e = cg.offsets[u]; e < cg.offsets[u + 1]; e += 1) {
+                if (cg.targets[e] == w) {
+                    edges.add(e);
+                    break;
+                }
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * @return A map of parameters for the Json response as specified: <br>
+     * "rules" : Object[], every rule with its "way", or "from" and "to", its "factor" or
+     *           "closed" : true, and "expires_in", the seconds it has left, if it expires. <br>
+     * "changes" : Number, how often penalties were published. <br>
+     * "route_cache" : Object, the "routes" cached, "hits", "misses" and "invalidated" routes
+     *                 of the route caches of the graphs being served. <br>
+     */
+    synchronized Map<String, Object> status() {
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (Rule rule : rules.values()) {
+            Map<String, Object> item = new HashMap<>();
+            if (rule.target.way != NO_WAY) {
+                item.put("way", rule.target.way);
+            } else {
+                item.put("from", rule.target.from);
+                item.put("to", rule.target.to);
+            }
+            if (Double.isInfinite(rule.factor)) {
+                item.put("closed", true);
+            } else {
+                item.put("factor", rule.factor);
+            }
+            if (rule.expiresAt != Long.MAX_VALUE) {
+                item.put("expires_in", Math.max(0, rule.expiresAt - now) / 1000.0);
+            }
+            list.add(item);
+        }
+        Map<String, Object> cache = new HashMap<>();
+        for (Regions.Region r : current.get().regions) {
+            r.graph.contracted.routes.status().forEach((k, v) -> cache.merge(k, v,
+                    (a, b) -> (Long) a + (Long) b));
+        }
+        Map<String, Object> status = new HashMap<>();
+        status.put("rules", list);
+        status.put("changes", changes);
+        status.put("route_cache", cache);
+        return status;
+    }
+}
@@ -0,0 +1,280 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The most recently found paths between snapped points of one contracted graph, at most
+ * MAX_ROUTES of them, so a route asked for again is not searched again.
+ * A path is only cached under the Penalties it was found with, and every change of the
+ * Penalties drops the cached paths it may have made wrong, and only those:
+ * a path whose chains got more expensive, and a path that a chain which got cheaper could
+ * beat, going by the straight-line distances from the start to the chain and from the chain
+ * to the destination. A chain that gets more expensive cannot improve a path that does not
+ * use it, and a chain that gets cheaper makes a path using it cheaper by as much as any other.
+ */
+class RouteCache {
+    /** Largest number of paths kept. */
+    private static final int MAX_ROUTES = 1024;
+
+    /** Two snapped points and a profile, which decide the path between them. */
+    static class Key {
+        final int startEdge;
+        final double startFraction;
+        final int destEdge;
+        final double destFraction;
+        final Profile profile;
+
+        Key(SegmentIndex.Snap start, SegmentIndex.Snap dest, Profile profile) {
+            startEdge = start.edge;
+            startFraction = start.fraction;
+            destEdge = dest.edge;
+            destFraction = dest.fraction;
+            this.profile = profile;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return startEdge == other.startEdge && startFraction == other.startFraction
+                    && destEdge == other.destEdge && destFraction == other.destFraction
+                    && profile == other.profile;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(startEdge, startFraction, destEdge, destFraction, profile);
+        }
+    }
+
+    /** A cached path with what its invalidation needs. */
+    private static class Entry {
+        final int[] path;
+        /** The chains of the edges of the path, in increasing order. */
+        final int[] chains;
+        /** At least the cost of the path under the Penalties it was found with. */
+        final double cost;
+        final double startLon, startLat;
+        final double destLon, destLat;
+
+        Entry(int[] path, int[] chains, double cost, SegmentIndex.Snap start,
+              SegmentIndex.Snap dest) {
+            this.path = path;
+            this.chains = chains;
+            this.cost = cost;
+            startLon = start.lon;
+            startLat = start.lat;
+            destLon = dest.lon;
+            destLat = dest.lat;
+        }
+    }
+
+    /** Least recently used first. */
+    private final LinkedHashMap<Key, Entry> routes = new LinkedHashMap<>(64, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long invalidated;
+
+    /** @return the cached path for key, which must not be changed, or null. */
+    synchronized int[] get(Key key) {
+        Entry entry = routes.get(key);
+        if (entry == null) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        return entry.path;
+    }
+
+    /**
+     * Cache a path, unless the Penalties of c changed since it was found.
+     * @param c The graph the path was found on.
+     * @param key The snapped points and the profile of the search.
+     * @param penalties The Penalties the search used.
+     * @param path The vertices of c.base on the path.
+     */
+    synchronized void put(ContractedGraph c, Key key, RoadOverlay.Penalties penalties,
+                          int[] path, SegmentIndex.Snap start, SegmentIndex.Snap dest) {
+        if (c.penalties != penalties) {
+            return;
+        }
+        CompactGraph g = c.base;
+        double[] weights = key.profile.weights(g);
+        double[] core = key.profile.weights(c);
+        double[] costs = key.profile.costs(c, penalties);
+        /* the whole segments of both points, over the parts the path takes of them. */
+        double cost = weights[start.edge] + weights[dest.edge];
+        int[] chains = new int[path.length];
+        int count = 0;
+        for (int i = 1; i < path.length; i += 1) {
+            for (int e = g.offsets[path[i - 1]]; e < g.offsets[path[i - 1] + 1]; e += 1) {
+                if (g.targets[e] == path[i]) {
+                    int code = c.baseChain[e];
+                    chains[count++] = code >= 0 ? code : ~code;
+                    cost += weights[e];
+                    break;
+                }
+            }
+        }
+        Arrays.sort(chains, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i += 1) {
+            if (distinct == 0 || chains[distinct - 1] != chains[i]) {
+                chains[distinct++] = chains[i];
+                cost += costs[c.chainEdge[chains[i]]] - core[c.chainEdge[chains[i]]];
+            }
+        }
+        routes.put(key, new Entry(path, Arrays.copyOf(chains, distinct), cost, start, dest));
+        if (routes.size() > MAX_ROUTES) {
+            Iterator<Key> eldest = routes.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drop the paths a change of the Penalties of c may have made wrong.
+     * @param c The graph.
+     * @param before The Penalties before the change, null for none.
+     * @param after The Penalties after the change, null for none.
+     */
+    synchronized void invalidate(ContractedGraph c, RoadOverlay.Penalties before,
+                                 RoadOverlay.Penalties after) {
+        if (routes.isEmpty()) {
+            return;
+        }
+        CompactGraph g = c.base;
+        Map<Profile, Cheaper> cheaper = new HashMap<>();
+        Map<Profile, boolean[]> dearer = new HashMap<>();
+        for (Profile profile : Profile.values()) {
+            double[] old = profile.costs(c, before);
+            double[] now = profile.costs(c, after);
+            boolean[] up = new boolean[c.chainFrom.length];
+            int[] down = new int[c.chainFrom.length];
+            int count = 0;
+            for (int k = 0; k < c.chainFrom.length; k += 1) {
+                up[k] = now[c.chainEdge[k]] > old[c.chainEdge[k]];
+                if (now[c.chainEdge[k]] < old[c.chainEdge[k]]) {
+                    down[count++] = k;
+                }
+            }
+            dearer.put(profile, up);
+            cheaper.put(profile, new Cheaper(c, Arrays.copyOf(down, count), now));
+        }
+        int size = routes.size();
+        routes.entrySet().removeIf(item -> {
+            Profile profile = item.getKey().profile;
+            return isStale(g, item.getValue(), profile, dearer.get(profile),
+                    cheaper.get(profile));
+        });
+        invalidated += size - routes.size();
+    }
+
+    /** The chains that got cheaper, with the coordinates of their ends side by side. */
+    private static class Cheaper {
+        final int[] chains;
+        final double[] costs;
+        final double[] fromLons, fromLats, toLons, toLats;
+        /** Room for the distances from or to one point. */
+        final double[] a, b, d, e;
+
+        Cheaper(ContractedGraph c, int[] chains, double[] costs) {
+            CompactGraph g = c.base;
+            int n = chains.length;
+            this.chains = chains;
+            this.costs = new double[n];
+            fromLons = new double[n];
+            fromLats = new double[n];
+            toLons = new double[n];
+            toLats = new double[n];
+            for (int i = 0; i < n; i += 1) {
+                int k = chains[i];
+                this.costs[i] = costs[c.chainEdge[k]];
+                fromLons[i] = g.lons[c.core[c.chainFrom[k]]];
+                fromLats[i] = g.lats[c.core[c.chainFrom[k]]];
+                toLons[i] = g.lons[c.core[c.chainTo[k]]];
+                toLats[i] = g.lats[c.core[c.chainTo[k]]];
+            }
+            a = new double[n];
+            b = new double[n];
+            d = new double[n];
+            e = new double[n];
+        }
+    }
+
+    private static boolean isStale(CompactGraph g, Entry entry, Profile profile,
+                                   boolean[] dearer, Cheaper cheaper) {
+        for (int k : entry.chains) {
+            if (dearer[k]) {
+                return true;
+            }
+        }
+        int n = cheaper.chains.length;
+        if (n == 0) {
+            return false;
+        }
+        /* the straight-line distances of every detour through a cheaper chain at once. */
+        Equirectangular plane = g.plane;
+        plane.meters(entry.startLon, entry.startLat, cheaper.fromLons, cheaper.fromLats, n,
+                cheaper.a);
+        plane.meters(entry.destLon, entry.destLat, cheaper.toLons, cheaper.toLats, n,
+                cheaper.b);
+        plane.meters(entry.startLon, entry.startLat, cheaper.toLons, cheaper.toLats, n,
+                cheaper.d);
+        plane.meters(entry.destLon, entry.destLat, cheaper.fromLons, cheaper.fromLats, n,
+                cheaper.e);
+        double scale = profile.costPerMeter(g);
+        for (int i = 0; i < n; i += 1) {
+            double meters = Math.min(cheaper.a[i] + cheaper.b[i], cheaper.d[i] + cheaper.e[i]);
+            if (meters * scale + cheaper.costs[i] < entry.cost
+                    && Arrays.binarySearch(entry.chains, cheaper.chains[i]) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A map of parameters for the Json response as specified: <br>
+     * "routes" : Number, the paths cached. <br>
+     * "hits" : Number, the searches answered from the cache. <br>
+     * "misses" : Number, the searches not found in the cache. <br>
+     * "invalidated" : Number, the paths dropped because the Penalties changed. <br>
+     */
+    synchronized Map<String, Object> status() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("routes", (long) routes.size());
+        status.put("hits", hits);
+        status.put("misses", misses);
+        status.put("invalidated", invalidated);
+        return status;
+    }
+
+    /**
+     * @return the "entries" cached, their estimated "bytes" and the "budget_entries",
+     * see HeapFootprint.
+     */
+    synchronized Map<String, Object> footprint() {
+        /* a Key has two ints, two doubles and a reference, an Entry two references and five
+         * doubles. */
+        long bytes = HeapFootprint.linkedHashMap(routes.size());
+        for (Entry entry : routes.values()) {
+            bytes += HeapFootprint.align(HeapFootprint.HEADER + 2 * 4 + 2 * 8
+                    + HeapFootprint.REFERENCE);
+            bytes += HeapFootprint.align(HeapFootprint.HEADER + 2 * HeapFootprint.REFERENCE
+                    + 5 * 8);
+            bytes += HeapFootprint.array(entry.path.length, 4)
+                    + HeapFootprint.array(entry.chains.length, 4);
+        }
+        Map<String, Object> footprint = new HashMap<>();
+        footprint.put("entries", (long) routes.size());
+        footprint.put("bytes", bytes);
+        footprint.put("budget_entries", (long) MAX_ROUTES);
+        return footprint;
+    }
+}
@@ -1,26 +1,40 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import java.util.Stack;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.Set;
-import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.function.LongFunction;
+import java.util.stream.IntStream;
 
 /**
  * This class provides a shortestPath method for finding routes between two points
  * on the map using A* algorithm.
  */
 public class Router {
-
+    /** Largest cost of an alternative route, as a multiple of the cost of the best route. */
+    static final double MAX_STRETCH = 1.25;
+    /**
+     * Largest cost of an alternative route on chains of the routes chosen before it, as a
+     * share of the cost of the best route.
+     */
+    static final double MAX_SHARING = 0.8;
+    /**
+     * Smallest cost of the plateau of an alternative route, the section both search trees
+     * share around its via vertex, as a share of the cost of the best route. A long plateau
+     * keeps the route locally optimal: it makes no detour a shorter section could avoid.
+     */
+    private static final double MIN_PLATEAU = 0.2;
 
     /**
-     * Return a List of longs representing the shortest path from the node
-     * closest to a start location and the node closest to the destination
-     * location.
+     * Return a List of longs representing the shortest path from the road
+     * segment closest to a start location to the segment closest to the
+     * destination location.
      * @param g The graph to use.
      * @param stlon The longitude of the start location.
      * @param stlat The latitude of the start location.
@@ -30,68 +44,705 @@ public class Router {
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        /** A star algorithm to get the shortest path. */
-        long startNd = g.closest(stlon, stlat);
-        long destNd = g.closest(destlon, destlat);
-
-        /** nested class SearchNode. */
-        class SearchNode implements Comparable<SearchNode> {
-            long node;
-            double disFromStart;
-            SearchNode prev;
-            double priority;
-
-            SearchNode(long n, double d, SearchNode p) {
-                node = n;
-                disFromStart = d;
-                prev = p;
-                priority = d + g.distance(n, destNd);
+        return shortestPath(g, stlon, stlat, destlon, destlat, Profile.SHORTEST);
+    }
+
+    /**
+     * Return a List of longs representing the best path under a profile from the road
+     * segment closest to a start location to the segment closest to the destination
+     * location. The search runs on the contracted form of g with precomputed edge costs.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param profile What the path minimizes.
+     * @return A list of node id's in the order visited on the path, empty if there is none.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Profile profile) {
+        CompactGraph cg = g.compact;
+        List<Long> results = new ArrayList<>();
+        if (cg.size() == 0) {
+            return results;
+        }
+        SegmentIndex.Snap start = cg.snap(stlon, stlat);
+        SegmentIndex.Snap dest = cg.snap(destlon, destlat);
+        if (start == null || dest == null) {
+            return results;
+        }
+        int[] path = shortestPath(g.contracted, SearchState.get(cg), start, dest, profile);
+        if (path != null) {
+            for (int v : path) {
+                results.add(cg.ids[v]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Return the best path under a profile between the road segments closest to two
+     * locations, followed by alternative paths of bounded extra cost, as lists of node ids.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param profile What the paths minimize.
+     * @param count The largest number of paths, the best one included.
+     * @return The paths, best first; empty if there is none.
+     */
+    public static List<List<Long>> alternativeRoutes(GraphDB g, double stlon, double stlat,
+                                                     double destlon, double destlat,
+                                                     Profile profile, int count) {
+        CompactGraph cg = g.compact;
+        List<List<Long>> results = new ArrayList<>();
+        if (cg.size() == 0) {
+            return results;
+        }
+        SegmentIndex.Snap start = cg.snap(stlon, stlat);
+        SegmentIndex.Snap dest = cg.snap(destlon, destlat);
+        if (start == null || dest == null) {
+            return results;
+        }
+        for (int[] path : alternatives(g.contracted, start, dest, profile, count)) {
+            List<Long> ids = new ArrayList<>(path.length);
+            for (int v : path) {
+                ids.add(cg.ids[v]);
+            }
+            results.add(ids);
+        }
+        return results;
+    }
+
+    /**
+     * Find the best path between two snapped points and alternatives to it with the
+     * via-vertex method, from the trees of one search run from both ends. Each side is a
+     * Dijkstra search on the contracted graph that runs until its keys exceed MAX_STRETCH
+     * times the best cost, so every core vertex v a path of at most that cost passes is
+     * settled on both sides; the path through v is the tree path from the start to v
+     * followed by the tree path from v to the destination.
+     * Candidates are tried cheapest first, once per plateau, as every vertex of a plateau
+     * has the same via path, and a via path is taken if its plateau is at least MIN_PLATEAU
+     * of the best cost, it uses no chain twice, and at most MAX_SHARING of the best cost of
+     * it runs on chains of the paths taken before it. The sections on the chains of the
+     * start and the destination do not count as shared.
+     * @param c The contracted graph to use.
+     * @param start The start snapped onto c.base.
+     * @param dest The destination snapped onto c.base.
+     * @param profile What the paths minimize.
+     * @param count The largest number of paths, the best one included.
+     * @return The vertices of c.base on every path in order, best first; empty if dest is
+     * unreachable.
+     */
+    static List<int[]> alternatives(ContractedGraph c, SegmentIndex.Snap start,
+                                    SegmentIndex.Snap dest, Profile profile, int count) {
+        CompactGraph g = c.base;
+        Place from = new Place(c, profile, start);
+        Place to = new Place(c, profile, dest);
+        List<int[]> paths = new ArrayList<>();
+        if (count <= 0 || !g.connected(from.vertex, to.vertex)) {
+            return paths;
+        }
+        double[] weights = profile.weights(c);
+        double[] costs = profile.costs(c, c.penalties);
+        SearchState f = SearchState.get(g);
+        SearchState b = SearchState.getBackward(g);
+        seed(c, f, from, weights, null, 0);
+        seed(c, b, to, weights, null, 0);
+        double best = Double.POSITIVE_INFINITY;
+        /* the core vertex the best path passes, -1 for the direct path along one chain. */
+        int via = -1;
+        if (to.chain >= 0 && to.chain == from.chain) {
+            best = Math.abs(to.along - from.along);
+        }
+        /* the graph is undirected, so the backward search runs on the same edges. */
+        IntList settled = new IntList();
+        while (true) {
+            boolean forward = !f.isEmpty() && (b.isEmpty() || f.peekKey() <= b.peekKey());
+            SearchState s = forward ? f : b;
+            if (s.isEmpty() || s.peekKey() > MAX_STRETCH * best) {
+                break;
+            }
+            int v = s.poll();
+            double dv = s.dist(v);
+            double d = dv + (forward ? b : f).dist(v);
+            if (d < best) {
+                best = d;
+                via = v;
+            }
+            if (forward) {
+                settled.add(v);
+            }
+            for (int e = c.offsets[v]; e < c.offsets[v + 1]; e += 1) {
+                s.relax(c.targets[e], dv + costs[e], 0, e);
+            }
+        }
+        if (Double.isInfinite(best)) {
+            return paths;
+        }
+        Set<Integer> used = new HashSet<>();
+        /* core vertices on plateaus tried already, starting with that of the best path. */
+        Set<Integer> seen = new HashSet<>();
+        if (via < 0) {
+            paths.add(chainSection(c, from, to));
+        } else {
+            paths.add(viaPath(c, from, to, f, b, via, weights));
+            viaChains(c, f, b, via, used);
+            plateau(c, f, b, via, costs, seen);
+        }
+
+        double limit = MAX_STRETCH * best;
+        int[] candidates = IntStream.range(0, settled.size()).map(settled::get)
+                .filter(v -> b.isSettled(v) && f.dist(v) + b.dist(v) <= limit)
+                .boxed().sorted(Comparator.comparingDouble(v -> f.dist(v) + b.dist(v)))
+                .mapToInt(Integer::intValue).toArray();
+        for (int v : candidates) {
+            if (paths.size() >= count) {
+                break;
+            }
+            if (seen.contains(v) || plateau(c, f, b, v, costs, seen) < MIN_PLATEAU * best) {
+                continue;
+            }
+            Set<Integer> chains = new HashSet<>();
+            if (!viaChains(c, f, b, v, chains)) {
+                continue;
+            }
+            double shared = 0;
+            for (int k : chains) {
+                if (used.contains(k)) {
+                    shared += costs[c.chainEdge[k]];
+                }
+            }
+            if (shared <= MAX_SHARING * best) {
+                paths.add(viaPath(c, from, to, f, b, v, weights));
+                used.addAll(chains);
             }
+        }
+        return paths;
+    }
 
-            @Override
-            public int compareTo(SearchNode s) {
-                int c = 0;
-                if ((this.priority - s.priority) > 0) {
-                    c = 1;
-                } else if ((this.priority - s.priority) == 0) {
-                    c = 0;
-                } else if ((this.priority - s.priority) < 0) {
-                    c = -1;
+    /**
+     * @return the cost of the plateau around core vertex v: the tree paths of f and b
+     * through v, followed for as long as each tree edge is the other tree's edge turned
+     * around. The vertices of the plateau are added to seen.
+     */
+    private static double plateau(ContractedGraph c, SearchState f, SearchState b, int v,
+                                  double[] costs, Set<Integer> seen) {
+        seen.add(v);
+        double cost = 0;
+        for (SearchState s : new SearchState[]{f, b}) {
+            SearchState other = s == f ? b : f;
+            int u = v;
+            for (int e = s.prev(u); e != -1; e = s.prev(u)) {
+                int x = source(c, e);
+                int back = other.prev(x);
+                if (back == -1 || chainOf(c, back) != chainOf(c, e) || source(c, back) != u) {
+                    break;
                 }
-                return c;
+                cost += costs[e];
+                u = x;
+                seen.add(u);
             }
         }
+        return cost;
+    }
 
-        /** stack for storing the path node. */
-        Stack<Long> path = new Stack<>();
-        /** priority for A star. */
-        Queue pq = new PriorityQueue();
-        /** passed nodes. */
-        Set<Long> passed = new HashSet<>();
-        passed.add(startNd);
-        pq.add(new SearchNode(startNd, 0, null));
-
-        SearchNode presNd = (SearchNode) pq.peek();
-        while (presNd.node != destNd) {
-            for(long n : g.adjacent(presNd.node)) {
-                if (presNd.prev == null || !passed.contains(n)) {
-                    double disOfpn = g.distance(presNd.node, n);
-                    pq.add(new SearchNode(n, presNd.disFromStart + disOfpn, presNd));
+    /**
+     * Add the chains of the via path through core vertex v to chains.
+     * @return false if the path uses a chain twice, as when it runs to v and back.
+     */
+    private static boolean viaChains(ContractedGraph c, SearchState f, SearchState b, int v,
+                                     Set<Integer> chains) {
+        for (SearchState s : new SearchState[]{f, b}) {
+            int u = v;
+            for (int e = s.prev(u); e != -1; e = s.prev(u)) {
+                if (!chains.add(chainOf(c, e))) {
+                    return false;
                 }
+                u = source(c, e);
             }
-            passed.add(presNd.node);
-            presNd = (SearchNode) pq.poll();
         }
+        return true;
+    }
+
+    /** @return the base vertices of the via path through core vertex v. */
+    private static int[] viaPath(ContractedGraph c, Place start, Place dest, SearchState f,
+                                 SearchState b, int v, double[] weights) {
+        IntList path = new IntList();
+        addTreePath(path, c, start, f, v, weights);
+        addReverseTreePath(path, c, dest, b, v, weights);
+        return path.toArray();
+    }
 
-        while (presNd != null) {
-            path.push(presNd.node);
-            presNd = presNd.prev;
+    /**
+     * A* search between two vertices of a compact graph, run on its contracted form so that
+     * only junctions and dead ends are settled. The heuristic is the straight-line distance
+     * to the destination on the projection of the graph, which never exceeds the
+     * great-circle distance, scaled to the cheapest cost per meter of the profile.
+     * A start in the middle of a chain enters the search at both ends of the chain, and a
+     * destination in the middle of a chain is reached from whichever end is cheaper, or
+     * directly when start and destination lie on the same chain.
+     * @param c The contracted graph to use.
+     * @param s A reset search state large enough for c.base.
+     * @param start The start vertex of c.base.
+     * @param dest The destination vertex of c.base.
+     * @param profile What the path minimizes.
+     * @return The vertices of c.base on the best path in order, or null if dest is
+     * unreachable.
+     */
+    static int[] shortestPath(ContractedGraph c, SearchState s, int start, int dest,
+                              Profile profile) {
+        if (start == dest) {
+            return new int[]{start};
         }
-        Stack<Long> results = new Stack<>();
-        while (path.size() != 0) {
-            results.push(path.pop());
+        return shortestPath(c, s, new Place(c, profile, start), new Place(c, profile, dest),
+                profile, c.penalties);
+    }
+
+    /**
+     * A* search between two points snapped onto segments of a compact graph. The search
+     * starts from a virtual vertex at the snapped start, part of the way along its segment,
+     * and ends at a virtual vertex at the snapped destination, so the path leaves and enters
+     * its segments in whichever direction is cheaper. Core edges cost what the penalties of
+     * c say, and paths are kept in the route cache of c, so a path asked for again under the
+     * same penalties is not searched again.
+     * @param c The contracted graph to use.
+     * @param s A reset search state large enough for c.base.
+     * @param start The start snapped onto c.base.
+     * @param dest The destination snapped onto c.base.
+     * @param profile What the path minimizes.
+     * @return The vertices of c.base on the best path in order, from the end of the start
+     * segment it leaves through to the end of the destination segment it enters through,
+     * or null if dest is unreachable. The array may be shared and must not be changed.
+     */
+    static int[] shortestPath(ContractedGraph c, SearchState s, SegmentIndex.Snap start,
+                              SegmentIndex.Snap dest, Profile profile) {
+        RoadOverlay.Penalties penalties = c.penalties;
+        RouteCache.Key key = new RouteCache.Key(start, dest, profile);
+        int[] path = c.routes.get(key);
+        if (path != null) {
+            return path;
         }
-        return results;
+        path = shortestPath(c, s, new Place(c, profile, start), new Place(c, profile, dest),
+                profile, penalties);
+        if (path != null) {
+            c.routes.put(c, key, penalties, path, start, dest);
+        }
+        return path;
+    }
+
+    /**
+     * Where a search starts or ends: a core vertex, or a point on a chain given by its cost
+     * from the start of the chain and the chain positions around it.
+     */
+    private static class Place {
+        /** The core vertex, -1 for a point on a chain. */
+        final int core;
+        /** The chain, -1 for a core vertex. */
+        final int chain;
+        /** The cost from chainFrom to the point. */
+        final double along;
+        /**
+         * The positions of the last base vertex at or before the point and the first one at
+         * or after it, chainStart[chain] - 1 for chainFrom and chainStart[chain + 1] for
+         * chainTo.
+         */
+        final int lo;
+        final int hi;
+        /** A base vertex of the place, for its component, and its coordinates. */
+        final int vertex;
+        final double lon;
+        final double lat;
+
+        /** A vertex of the base graph. */
+        Place(ContractedGraph c, Profile profile, int v) {
+            vertex = v;
+            lon = c.base.lons[v];
+            lat = c.base.lats[v];
+            core = c.coreOf[v];
+            chain = c.chainOf[v];
+            lo = c.positionOf[v];
+            hi = lo;
+            along = chain < 0 ? 0 : profile.chainCosts(c)[lo];
+        }
+
+        /** A point on a segment of the base graph. */
+        Place(ContractedGraph c, Profile profile, SegmentIndex.Snap snap) {
+            vertex = snap.from;
+            lon = snap.lon;
+            lat = snap.lat;
+            core = -1;
+            int code = c.baseChain[snap.edge];
+            boolean forward = code >= 0;
+            chain = forward ? code : ~code;
+            double total = profile.weights(c)[c.chainEdge[chain]];
+            double cost = profile.weights(c.base)[snap.edge] * snap.fraction;
+            /* a core end of the segment is chainFrom if the segment runs along the chain
+             * away from it or against the chain towards it. */
+            int from = position(c, snap.from, forward);
+            int to = position(c, snap.to, !forward);
+            double fromAlong = c.chainOf[snap.from] >= 0
+                    ? profile.chainCosts(c)[from] : forward ? 0 : total;
+            along = Math.max(0, Math.min(total, forward ? fromAlong + cost : fromAlong - cost));
+            lo = forward ? from : to;
+            hi = forward ? to : from;
+        }
+
+        /** @return the chain position of base vertex v, a core vertex at the given end. */
+        private int position(ContractedGraph c, int v, boolean atFrom) {
+            if (c.chainOf[v] >= 0) {
+                return c.positionOf[v];
+            }
+            return atFrom ? c.chainStart[chain] - 1 : c.chainStart[chain + 1];
+        }
+    }
+
+    private static int[] shortestPath(ContractedGraph c, SearchState s, Place start,
+                                      Place dest, Profile profile,
+                                      RoadOverlay.Penalties penalties) {
+        CompactGraph g = c.base;
+        double[] weights = profile.weights(c);
+        double[] costs = profile.costs(c, penalties);
+        double scale = profile.costPerMeter(g);
+        if (!g.connected(start.vertex, dest.vertex)) {
+            return null;
+        }
+
+        int startChain = start.chain;
+        seed(c, s, start, weights, dest, scale);
+
+        int destChain = dest.chain;
+        double destAlong = dest.along;
+        double destTotal = destChain < 0 ? 0 : weights[c.chainEdge[destChain]];
+        double best = Double.POSITIVE_INFINITY;
+        /* the core vertex the best path leaves the search at, -1 for the direct path. */
+        int via = -1;
+        boolean viaFrom = false;
+        if (destChain >= 0 && destChain == startChain) {
+            best = Math.abs(destAlong - start.along);
+        }
+        while (!s.isEmpty() && s.peekKey() < best) {
+            int v = s.poll();
+            double dv = s.dist(v);
+            if (destChain < 0) {
+                if (v == dest.core) {
+                    best = dv;
+                    via = v;
+                    break;
+                }
+            } else {
+                if (v == c.chainFrom[destChain] && dv + destAlong < best) {
+                    best = dv + destAlong;
+                    via = v;
+                    viaFrom = true;
+                }
+                if (v == c.chainTo[destChain] && dv + destTotal - destAlong < best) {
+                    best = dv + destTotal - destAlong;
+                    via = v;
+                    viaFrom = false;
+                }
+            }
+            for (int e = c.offsets[v]; e < c.offsets[v + 1]; e += 1) {
+                int w = c.targets[e];
+                s.relax(w, dv + costs[e], heuristic(c, w, dest, scale), e);
+            }
+        }
+        if (Double.isInfinite(best)) {
+            return null;
+        }
+        if (via < 0) {
+            return chainSection(c, start, dest);
+        }
+
+        IntList path = new IntList();
+        addTreePath(path, c, start, s, via, weights);
+        if (destChain >= 0) {
+            addDestPiece(path, c, dest, viaFrom);
+        }
+        return path.toArray();
+    }
+
+    /**
+     * Start a search at a place: at its core vertex, or at both ends of its chain with the
+     * cost of getting there from the point. Each end is keyed with the same straight-line
+     * heuristic as the vertices the search reaches later, else a far end would be settled
+     * before a cheaper path to it is found.
+     * @param dest The place the search heads for, null for a search without a heuristic.
+     * @param scale The cost per meter of the heuristic.
+     */
+    private static void seed(ContractedGraph c, SearchState s, Place place, double[] weights,
+                             Place dest, double scale) {
+        if (place.chain < 0) {
+            s.relax(place.core, 0, 0, -1);
+        } else {
+            double total = weights[c.chainEdge[place.chain]];
+            int from = c.chainFrom[place.chain];
+            int to = c.chainTo[place.chain];
+            s.relax(from, place.along, heuristic(c, from, dest, scale), -1);
+            s.relax(to, total - place.along, heuristic(c, to, dest, scale), -1);
+        }
+    }
+
+    /** @return the straight-line cost from core vertex v to dest, 0 if dest is null. */
+    private static double heuristic(ContractedGraph c, int v, Place dest, double scale) {
+        if (dest == null) {
+            return 0;
+        }
+        CompactGraph g = c.base;
+        int x = c.core[v];
+        return g.plane.meters(g.lons[x], g.lats[x], dest.lon, dest.lat) * scale;
+    }
+
+    /**
+     * Append the base vertices of the path in the search tree of s from the place it was
+     * seeded at to core vertex v, expanding every core edge into its chain.
+     */
+    private static void addTreePath(IntList path, ContractedGraph c, Place start, SearchState s,
+                                    int v, double[] weights) {
+        IntList edges = new IntList();
+        int root = v;
+        for (int e = s.prev(root); e != -1; e = s.prev(root)) {
+            edges.add(e);
+            root = source(c, e);
+        }
+        if (start.chain >= 0) {
+            int k = start.chain;
+            if (atFromSide(c, start, root, weights)) {
+                path.addRange(c, start.lo, c.chainStart[k] - 1);
+            } else {
+                path.addRange(c, start.hi, c.chainStart[k + 1]);
+            }
+        }
+        path.add(c.core[root]);
+        for (int i = edges.size() - 1; i >= 0; i -= 1) {
+            addChain(path, c, c.edgeChain[edges.get(i)]);
+        }
+    }
+
+    /**
+     * Append the base vertices from core vertex v to the place the search tree of s was
+     * seeded at, a tree grown from the destination, leaving v out.
+     */
+    private static void addReverseTreePath(IntList path, ContractedGraph c, Place dest,
+                                           SearchState s, int v, double[] weights) {
+        int root = v;
+        for (int e = s.prev(root); e != -1; e = s.prev(root)) {
+            addChain(path, c, ~c.edgeChain[e]);
+            root = source(c, e);
+        }
+        if (dest.chain >= 0) {
+            addDestPiece(path, c, dest, atFromSide(c, dest, root, weights));
+        }
+    }
+
+    /** Append the base vertices from the core vertex at one end of dest's chain to dest. */
+    private static void addDestPiece(IntList path, ContractedGraph c, Place dest,
+                                     boolean fromSide) {
+        int k = dest.chain;
+        if (fromSide) {
+            path.addRange(c, c.chainStart[k], dest.lo + 1);
+        } else {
+            path.addRange(c, c.chainStart[k + 1] - 1, dest.hi - 1);
+        }
+    }
+
+    /**
+     * Append the interior vertices and the last core vertex of a chain, walked along it for
+     * code k and against it for ~k.
+     */
+    private static void addChain(IntList path, ContractedGraph c, int code) {
+        if (code >= 0) {
+            path.addRange(c, c.chainStart[code], c.chainStart[code + 1]);
+            path.add(c.core[c.chainTo[code]]);
+        } else {
+            int k = ~code;
+            path.addRange(c, c.chainStart[k + 1] - 1, c.chainStart[k] - 1);
+            path.add(c.core[c.chainFrom[k]]);
+        }
+    }
+
+    /**
+     * @return whether a search tree rooted at core vertex root reaches place through the
+     * chainFrom end of its chain. A ring entered at its single core vertex takes the cheaper
+     * side, as the search was seeded with the cheaper one.
+     */
+    private static boolean atFromSide(ContractedGraph c, Place place, int root,
+                                      double[] weights) {
+        double total = weights[c.chainEdge[place.chain]];
+        return root == c.chainFrom[place.chain]
+                && (root != c.chainTo[place.chain] || place.along <= total - place.along);
+    }
+
+    /** @return the core vertex core edge e leaves from. */
+    private static int source(ContractedGraph c, int e) {
+        int k = c.edgeChain[e];
+        return k >= 0 ? c.chainFrom[k] : c.chainTo[~k];
+    }
+
+    /** @return the chain of core edge e, whichever way it runs. */
+    private static int chainOf(ContractedGraph c, int e) {
+        int k = c.edgeChain[e];
+        return k >= 0 ? k : ~k;
+    }
+
+    /**
+     * @return the base vertices from start to dest on their common chain. Two points between
+     * the same pair of base vertices give that pair, in the direction of travel.
+     */
+    private static int[] chainSection(ContractedGraph c, Place start, Place dest) {
+        int i;
+        int j;
+        if (start.along <= dest.along) {
+            i = start.hi <= dest.lo ? start.hi : start.lo;
+            j = start.hi <= dest.lo ? dest.lo : dest.hi;
+        } else {
+            i = start.lo >= dest.hi ? start.lo : start.hi;
+            j = start.lo >= dest.hi ? dest.hi : dest.lo;
+        }
+        int step = i <= j ? 1 : -1;
+        int[] section = new int[Math.abs(j - i) + 1];
+        for (int k = 0; k < section.length; k += 1) {
+            section[k] = baseAt(c, start.chain, i + k * step);
+        }
+        return section;
+    }
+
+    /** @return the base vertex at a position of chain k, or at one of its two ends. */
+    private static int baseAt(ContractedGraph c, int k, int p) {
+        if (p < c.chainStart[k]) {
+            return c.core[c.chainFrom[k]];
+        } else if (p >= c.chainStart[k + 1]) {
+            return c.core[c.chainTo[k]];
+        }
+        return c.chainNodes[p];
+    }
+
+    /** A growable list of vertices, to collect a path without boxing. */
+    private static class IntList {
+        private int[] items = new int[16];
+        private int size = 0;
+
+        void add(int v) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, 2 * size);
+            }
+            items[size] = v;
+            size += 1;
+        }
+
+        /** Add the base vertices at chain positions from, stepping towards and excluding to. */
+        void addRange(ContractedGraph c, int from, int to) {
+            int step = from <= to ? 1 : -1;
+            for (int p = from; p != to; p += step) {
+                add(c.chainNodes[p]);
+            }
+        }
+
+        int get(int i) {
+            return items[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(items, size);
+        }
+    }
+
+    /**
+     * The cost of a path found on g under other edge weights, e.g. the length of the
+     * fastest path. Between two consecutive vertices the cheapest edge is taken.
+     * @param g The compact graph the path was found on.
+     * @param path The vertices of the path in order.
+     * @param weights The cost of every edge.
+     * @return The total cost of the path.
+     */
+    static double pathCost(CompactGraph g, int[] path, double[] weights) {
+        double cost = 0;
+        for (int i = 1; i < path.length; i += 1) {
+            double best = Double.POSITIVE_INFINITY;
+            for (int e = g.offsets[path[i - 1]]; e < g.offsets[path[i - 1] + 1]; e += 1) {
+                if (g.targets[e] == path[i]) {
+                    best = Math.min(best, weights[e]);
+                }
+            }
+            cost += best;
+        }
+        return cost;
+    }
+
+    /**
+     * Compute the road distances between every source and every target with one Dijkstra
+     * sweep per source. The sweeps are independent and run in parallel on the common
+     * fork-join pool, each with its own thread-local SearchState.
+     * @param g The compact graph to use.
+     * @param sources Vertex indices of the sources.
+     * @param targets Vertex indices of the targets.
+     * @return A sources.length by targets.length array of distances in meters, infinite
+     * where a target cannot be reached from a source.
+     */
+    public static double[][] distanceMatrix(CompactGraph g, int[] sources, int[] targets) {
+        return distanceMatrix(g, sources, targets, Profile.SHORTEST);
+    }
+
+    /**
+     * Compute the cost of the best path under a profile between every source and every
+     * target, as distanceMatrix above.
+     * @return A sources.length by targets.length array of costs, meters for SHORTEST and
+     * seconds for FASTEST, infinite where a target cannot be reached from a source.
+     */
+    public static double[][] distanceMatrix(CompactGraph g, int[] sources, int[] targets,
+                                            Profile profile) {
+        /* the target set is shared read-only by all sweeps. A sweep only waits for the
+         * targets in the component of its source, the others cannot be reached. */
+        boolean[] isTarget = new boolean[g.size()];
+        int[] targetsIn = new int[g.componentSizes.length];
+        for (int t : targets) {
+            if (!isTarget[t]) {
+                isTarget[t] = true;
+                targetsIn[g.component[t]] += 1;
+            }
+        }
+        double[][] result = new double[sources.length][];
+        IntStream.range(0, sources.length).parallel().forEach(i ->
+                result[i] = oneToMany(g, SearchState.get(g), sources[i], targets, isTarget,
+                        targetsIn[g.component[sources[i]]], profile.weights(g)));
+        return result;
+    }
+
+    /**
+     * Dijkstra search from one source that stops as soon as every target is settled.
+     * @param g The compact graph to use.
+     * @param s A reset search state for g.
+     * @param source The source vertex.
+     * @param targets The target vertices, duplicates are allowed.
+     * @param isTarget Membership flags of the targets, indexed by vertex.
+     * @param targetCount The number of distinct targets in the component of source.
+     * @param weights The cost of every edge.
+     * @return The cost to each target, infinite if unreachable.
+     */
+    static double[] oneToMany(CompactGraph g, SearchState s, int source, int[] targets,
+                              boolean[] isTarget, int targetCount, double[] weights) {
+        int remaining = targetCount;
+        s.relax(source, 0, 0, -1);
+        while (remaining > 0 && !s.isEmpty()) {
+            int v = s.poll();
+            if (isTarget[v]) {
+                remaining -= 1;
+            }
+            double dv = s.dist(v);
+            for (int e = g.offsets[v]; e < g.offsets[v + 1]; e += 1) {
+                s.relax(g.targets[e], dv + weights[e], 0, v);
+            }
+        }
+        double[] dists = new double[targets.length];
+        for (int i = 0; i < targets.length; i += 1) {
+            dists[i] = s.isSettled(targets[i]) ? s.dist(targets[i]) : Double.POSITIVE_INFINITY;
+        }
+        return dists;
     }
 
     /**
@@ -103,34 +754,49 @@ public class Router {
      * route.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
+        return routeDirections(g.nodes::get, route);
+    }
+
+    /**
+     * Create the list of directions corresponding to a route whose nodes may come from
+     * more than one graph.
+     * @param nodes Looks up the nodes of the route by id.
+     * @param route The route to translate into directions.
+     * @return A list of NavigatiionDirection objects corresponding to the input
+     * route.
+     */
+    static List<NavigationDirection> routeDirections(LongFunction<GraphDB.Node> nodes,
+                                                     List<Long> route) {
         List<NavigationDirection> directions = new LinkedList<>();
-        boolean start = true;
-        long prevNode = route.get(0);
+        GraphDB.Node prevNode = nodes.apply(route.get(0));
         double distance = 0;
 
         NavigationDirection temp = new NavigationDirection();
         temp.direction = NavigationDirection.START;
-        temp.way = g.nodes.get(route.get(0)).infos.get("wayName");
+        temp.way = prevNode.infos.get("wayName");
 
         for (Long l : route) {
-            if (g.nodes.get(l).infos.get("wayName").equals(temp.way)) {
-                distance += g.distance(prevNode, l);
+            GraphDB.Node node = nodes.apply(l);
+            double d = GraphDB.distance(prevNode.lon, prevNode.lat, node.lon, node.lat);
+            if (Objects.equals(node.infos.get("wayName"), temp.way)) {
+                distance += d;
             } else {
-                distance += g.distance(prevNode, l);
+                distance += d;
                 temp.distance = distance;
                 directions.add(temp);
 
                 temp = new NavigationDirection();
-                temp.direction = getDirectionInt(g.bearing(prevNode, l));
-                if (g.nodes.get(l).infos.get("wayName") == null) {
+                temp.direction = getDirectionInt(GraphDB.bearing(prevNode.lon, prevNode.lat,
+                        node.lon, node.lat));
+                if (node.infos.get("wayName") == null) {
                     temp.way = NavigationDirection.UNKNOWN_ROAD;
                 } else {
-                    temp.way = g.nodes.get(l).infos.get("wayName");
+                    temp.way = node.infos.get("wayName");
                 }
                 distance = 0;
             }
 
-            prevNode = l;
+            prevNode = node;
         }
         return directions;
     }
@@ -0,0 +1,188 @@
+import java.util.Arrays;
+
+/**
+ * Scratch memory for one shortest-path search over a CompactGraph: tentative distances,
+ * predecessors and an indexed binary heap, all stored in arrays indexed by vertex.
+ * A state is reset in constant time by bumping a version stamp, so one state can serve any
+ * number of searches without allocating per vertex. A state must only be used by one thread
+ * at a time; get() hands out one state per thread, and getBackward() a second one for the
+ * other side of a search run from both ends.
+ */
+class SearchState {
+    private static final ThreadLocal<SearchState> LOCAL = new ThreadLocal<>();
+    private static final ThreadLocal<SearchState> BACKWARD = new ThreadLocal<>();
+
+    private final double[] dist;
+    private final double[] key;
+    private final int[] prev;
+    private final int[] stamp;
+    private final boolean[] settled;
+    private final int[] heap;
+    private final int[] heapPos;
+    private int heapSize;
+    private int version;
+    /** Number of vertices settled since the last reset. */
+    int settledCount;
+
+    SearchState(int capacity) {
+        dist = new double[capacity];
+        key = new double[capacity];
+        prev = new int[capacity];
+        stamp = new int[capacity];
+        settled = new boolean[capacity];
+        heap = new int[capacity];
+        heapPos = new int[capacity];
+        version = 0;
+    }
+
+    /**
+     * Returns the search state of the calling thread, reset and large enough for g.
+     * @param g the graph that is going to be searched.
+     * @return a reset search state.
+     */
+    static SearchState get(CompactGraph g) {
+        return get(LOCAL, g);
+    }
+
+    /**
+     * Returns the second search state of the calling thread, reset and large enough for g,
+     * for a search that runs alongside the one in the state of get().
+     * @param g the graph that is going to be searched.
+     * @return a reset search state.
+     */
+    static SearchState getBackward(CompactGraph g) {
+        return get(BACKWARD, g);
+    }
+
+    private static SearchState get(ThreadLocal<SearchState> local, CompactGraph g) {
+        SearchState s = local.get();
+        if (s == null || s.capacity() < g.size()) {
+            s = new SearchState(g.size());
+            local.set(s);
+        }
+        s.reset();
+        return s;
+    }
+
+    int capacity() {
+        return dist.length;
+    }
+
+    /** Forget the previous search. */
+    void reset() {
+        version += 1;
+        if (version == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            version = 1;
+        }
+        heapSize = 0;
+        settledCount = 0;
+    }
+
+    private void touch(int v) {
+        if (stamp[v] != version) {
+            stamp[v] = version;
+            dist[v] = Double.POSITIVE_INFINITY;
+            prev[v] = -1;
+            settled[v] = false;
+            heapPos[v] = -1;
+        }
+    }
+
+    /** @return the tentative distance of v, infinite if v was not reached. */
+    double dist(int v) {
+        return stamp[v] == version ? dist[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /** @return the vertex v was reached from, -1 for the source or an unreached vertex. */
+    int prev(int v) {
+        return stamp[v] == version ? prev[v] : -1;
+    }
+
+    boolean isSettled(int v) {
+        return stamp[v] == version && settled[v];
+    }
+
+    /**
+     * Offer a new distance for v. The heap is ordered by d plus the heuristic h.
+     * @return true if d improved the tentative distance of v.
+     */
+    boolean relax(int v, double d, double h, int from) {
+        touch(v);
+        if (settled[v] || d >= dist[v]) {
+            return false;
+        }
+        dist[v] = d;
+        key[v] = d + h;
+        prev[v] = from;
+        if (heapPos[v] < 0) {
+            heapPos[v] = heapSize;
+            heap[heapSize] = v;
+            heapSize += 1;
+        }
+        siftUp(heapPos[v]);
+        return true;
+    }
+
+    boolean isEmpty() {
+        return heapSize == 0;
+    }
+
+    /** @return the key of the next vertex that poll() would return. */
+    double peekKey() {
+        return key[heap[0]];
+    }
+
+    /** Remove the vertex with the smallest key from the heap and mark it settled. */
+    int poll() {
+        int v = heap[0];
+        heapSize -= 1;
+        if (heapSize > 0) {
+            heap[0] = heap[heapSize];
+            heapPos[heap[0]] = 0;
+            siftDown(0);
+        }
+        heapPos[v] = -1;
+        settled[v] = true;
+        settledCount += 1;
+        return v;
+    }
+
+    private void siftUp(int i) {
+        int v = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (key[p] <= key[v]) {
+                break;
+            }
+            heap[i] = p;
+            heapPos[p] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        heapPos[v] = i;
+    }
+
+    private void siftDown(int i) {
+        int v = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && key[heap[child + 1]] < key[heap[child]]) {
+                child += 1;
+            }
+            int c = heap[child];
+            if (key[v] <= key[c]) {
+                break;
+            }
+            heap[i] = c;
+            heapPos[c] = i;
+            i = child;
+        }
+        heap[i] = v;
+        heapPos[v] = i;
+    }
+}
@@ -0,0 +1,258 @@
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the road segments of a CompactGraph, to snap a point onto the nearest
+ * segment or the nearest vertex without looking at every vertex of the graph.
+ * Every segment is filed under each grid cell its bounding box touches, in compressed sparse
+ * row form like the graph itself: the segments of cell i are the edges
+ * cellEdges[cellStart[i]] up to cellEdges[cellStart[i + 1] - 1]. A query looks at the cell of
+ * the point and then at rings of cells around it, and stops as soon as every cell not yet
+ * looked at is farther away than the best segment found.
+ * Distances are measured on a plane tangent to the earth at the query point, which matches
+ * the great-circle distance to well under a meter at the scale of a snap.
+ */
+class SegmentIndex {
+    /** Radius of the earth in meters, as used by GraphDB.distance. */
+    private static final double EARTH_RADIUS_METERS =
+            GraphDB.EARTH_RADIUS_MILES * CompactGraph.METERS_PER_MILE;
+    /** Meters per degree of latitude. */
+    static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180;
+    /** Average number of segments filed per grid cell. */
+    private static final int SEGMENTS_PER_CELL = 4;
+    /** Largest number of cells along one side of the grid. */
+    private static final int MAX_SIDE = 4096;
+
+    /** A point snapped onto a segment. */
+    static class Snap {
+        /** The edge of the graph the point was snapped onto, running from vertex from. */
+        final int edge;
+        final int from;
+        final int to;
+        /** Where the snapped point lies on the edge, 0 at from and 1 at to. */
+        final double fraction;
+        final double lon;
+        final double lat;
+        /** Distance from the query point to the snapped point in meters. */
+        final double meters;
+
+        Snap(int edge, int from, int to, double fraction, double lon, double lat,
+             double meters) {
+            this.edge = edge;
+            this.from = from;
+            this.to = to;
+            this.fraction = fraction;
+            this.lon = lon;
+            this.lat = lat;
+            this.meters = meters;
+        }
+    }
+
+    private final CompactGraph g;
+    /** Source vertex of every edge, as the graph only stores targets. */
+    private final int[] sources;
+    private final double minLon;
+    private final double minLat;
+    private final double cellLon;
+    private final double cellLat;
+    private final int cols;
+    private final int rows;
+    private final int[] cellStart;
+    private final int[] cellEdges;
+
+    /**
+     * File every segment of g, once for both of its directions, or only the segments of one
+     * component.
+     * @param g The graph to index.
+     * @param only The component to index, -1 for all of them.
+     */
+    SegmentIndex(CompactGraph g, int only) {
+        this.g = g;
+        int n = g.size();
+        sources = new int[g.edgeCount()];
+        double loLon = Double.MAX_VALUE, loLat = Double.MAX_VALUE;
+        double hiLon = -Double.MAX_VALUE, hiLat = -Double.MAX_VALUE;
+        int count = 0;
+        for (int v = 0; v < n; v += 1) {
+            loLon = Math.min(loLon, g.lons[v]);
+            hiLon = Math.max(hiLon, g.lons[v]);
+            loLat = Math.min(loLat, g.lats[v]);
+            hiLat = Math.max(hiLat, g.lats[v]);
+            for (int e = g.offsets[v]; e < g.offsets[v + 1]; e += 1) {
+                sources[e] = v;
+                if (indexed(e, only)) {
+                    count += 1;
+                }
+            }
+        }
+        if (n == 0) {
+            loLon = 0;
+            loLat = 0;
+            hiLon = 0;
+            hiLat = 0;
+        }
+        minLon = loLon;
+        minLat = loLat;
+        /* square cells in meters, as many as it takes for a few segments per cell. */
+        double width = Math.max((hiLon - loLon) * Math.cos(Math.toRadians((loLat + hiLat) / 2)),
+                1e-9);
+        double height = Math.max(hiLat - loLat, 1e-9);
+        double cell = Math.sqrt(width * height * SEGMENTS_PER_CELL / Math.max(count, 1));
+        cols = (int) Math.min(MAX_SIDE, Math.max(1, Math.ceil(width / cell)));
+        rows = (int) Math.min(MAX_SIDE, Math.max(1, Math.ceil(height / cell)));
+        cellLon = Math.max(hiLon - loLon, 1e-9) / cols;
+        cellLat = height / rows;
+
+        /* count the segments of every cell, then fill them in. */
+        cellStart = new int[cols * rows + 1];
+        for (int e = 0; e < sources.length; e += 1) {
+            if (indexed(e, only)) {
+                int[] box = cells(e);
+                for (int r = box[2]; r <= box[3]; r += 1) {
+                    for (int c = box[0]; c <= box[1]; c += 1) {
+                        cellStart[r * cols + c + 1] += 1;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < cols * rows; i += 1) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        cellEdges = new int[cellStart[cols * rows]];
+        int[] next = Arrays.copyOf(cellStart, cols * rows);
+        for (int e = 0; e < sources.length; e += 1) {
+            if (indexed(e, only)) {
+                int[] box = cells(e);
+                for (int r = box[2]; r <= box[3]; r += 1) {
+                    for (int c = box[0]; c <= box[1]; c += 1) {
+                        cellEdges[next[r * cols + c]++] = e;
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return the number of bytes taken by the arrays of the index. */
+    long bytes() {
+        return (long) Integer.BYTES * (sources.length + cellStart.length + cellEdges.length);
+    }
+
+    /** @return the first and last column and the first and last row edge e touches. */
+    private int[] cells(int e) {
+        int u = sources[e];
+        int w = g.targets[e];
+        return new int[]{col(Math.min(g.lons[u], g.lons[w])),
+            col(Math.max(g.lons[u], g.lons[w])), row(Math.min(g.lats[u], g.lats[w])),
+            row(Math.max(g.lats[u], g.lats[w]))};
+    }
+
+    /** @return whether edge e is filed: one direction of every segment that is not a loop. */
+    private boolean indexed(int e, int only) {
+        int u = sources[e];
+        int w = g.targets[e];
+        return u < w && (only < 0 || g.component[u] == only);
+    }
+
+    private int col(double lon) {
+        return Math.max(0, Math.min(cols - 1, (int) ((lon - minLon) / cellLon)));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) ((lat - minLat) / cellLat)));
+    }
+
+    /**
+     * Snap a point onto the nearest segment.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @return The nearest point on any segment, or null if there are no segments.
+     */
+    Snap snap(double lon, double lat) {
+        return nearest(lon, lat, false);
+    }
+
+    /**
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @return The vertex nearest to the point among the vertices of the indexed segments,
+     * -1 if there are none.
+     */
+    int closestVertex(double lon, double lat) {
+        Snap snap = nearest(lon, lat, true);
+        return snap == null ? -1 : snap.fraction == 0 ? snap.from : snap.to;
+    }
+
+    /**
+     * Look at rings of cells around the point until no cell left can hold anything nearer.
+     * @param vertices Whether to find the nearest segment end instead of the nearest point
+     * on a segment; the snap then has a fraction of 0 or 1.
+     */
+    private Snap nearest(double lon, double lat, boolean vertices) {
+        if (cellEdges.length == 0) {
+            return null;
+        }
+        /* meters per degree on the plane tangent at the point. */
+        double kx = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        double ky = METERS_PER_DEGREE;
+        int qc = col(lon);
+        int qr = row(lat);
+        double best = Double.POSITIVE_INFINITY;
+        int bestEdge = -1;
+        double bestT = 0;
+        for (int ring = 0; ; ring += 1) {
+            int c0 = qc - ring, c1 = qc + ring, r0 = qr - ring, r1 = qr + ring;
+            for (int r = Math.max(0, r0); r <= Math.min(rows - 1, r1); r += 1) {
+                boolean edgeRow = r == r0 || r == r1;
+                for (int c = Math.max(0, c0); c <= Math.min(cols - 1, c1); c += 1) {
+                    if (!edgeRow && c != c0 && c != c1) {
+                        continue;
+                    }
+                    int cell = r * cols + c;
+                    for (int i = cellStart[cell]; i < cellStart[cell + 1]; i += 1) {
+                        int e = cellEdges[i];
+                        int u = sources[e];
+                        int w = g.targets[e];
+                        double ax = (g.lons[u] - lon) * kx, ay = (g.lats[u] - lat) * ky;
+                        double bx = (g.lons[w] - lon) * kx, by = (g.lats[w] - lat) * ky;
+                        double t;
+                        if (vertices) {
+                            t = ax * ax + ay * ay <= bx * bx + by * by ? 0 : 1;
+                        } else {
+                            double dx = bx - ax, dy = by - ay;
+                            double len = dx * dx + dy * dy;
+                            t = len == 0 ? 0 : Math.max(0, Math.min(1,
+                                    -(ax * dx + ay * dy) / len));
+                        }
+                        double px = ax + t * (bx - ax), py = ay + t * (by - ay);
+                        double d = px * px + py * py;
+                        if (d < best) {
+                            best = d;
+                            bestEdge = e;
+                            bestT = t;
+                        }
+                    }
+                }
+            }
+            /* anything not looked at lies beyond one of the sides of the block of rings. */
+            double bound = Double.POSITIVE_INFINITY;
+            if (c0 > 0) {
+                bound = Math.min(bound, Math.max(0, lon - (minLon + c0 * cellLon)) * kx);
+            }
+            if (c1 < cols - 1) {
+                bound = Math.min(bound, Math.max(0, minLon + (c1 + 1) * cellLon - lon) * kx);
+            }
+            if (r0 > 0) {
+                bound = Math.min(bound, Math.max(0, lat - (minLat + r0 * cellLat)) * ky);
+            }
+            if (r1 < rows - 1) {
+                bound = Math.min(bound, Math.max(0, minLat + (r1 + 1) * cellLat - lat) * ky);
+            }
+            if (bound * bound >= best) {
+                break;
+            }
+        }
+        int u = sources[bestEdge];
+        int w = g.targets[bestEdge];
+        return new Snap(bestEdge, u, w, bestT, g.lons[u] + bestT * (g.lons[w] - g.lons[u]),
+                g.lats[u] + bestT * (g.lats[w] - g.lats[u]), Math.sqrt(best));
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a computation once for every group of identical requests that overlap in time. The
+ * first caller with a key starts the computation, and callers with an equal key that come
+ * while it runs wait for its result instead of computing it again; they all receive the same
+ * value, or the same exception. The key is forgotten as soon as the computation ends, so this
+ * is not a cache: a caller that comes later computes again.
+ * A key must hold everything the result depends on, e.g. the snapshot it is computed on, and
+ * the shared result must not be changed by the callers.
+ * @param <K> The key, with equals and hashCode.
+ * @param <V> The result.
+ */
+class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final AtomicLong computed = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Compute the value of a key on the calling thread, or wait for the computation that is
+     * running for it.
+     * @param key The normalized request.
+     * @param work Computes the value.
+     * @return The value.
+     * @throws Exception Anything thrown by work.
+     */
+    V call(K key, Callable<V> work) throws Exception {
+        try {
+            return start(key, work, null).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+
+    /**
+     * Start computing the value of a key, unless it is being computed.
+     * @param key The normalized request.
+     * @param work Computes the value.
+     * @param executor Where to compute it, null for the calling thread, in which case this
+     *                 returns once the value is computed.
+     * @return The future of the value, shared by every caller of the computation.
+     */
+    CompletableFuture<V> start(K key, Callable<V> work, Executor executor) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = flights.putIfAbsent(key, mine);
+        if (running != null) {
+            shared.incrementAndGet();
+            return running;
+        }
+        computed.incrementAndGet();
+        Runnable run = () -> {
+            try {
+                mine.complete(work.call());
+            } catch (Exception | Error e) {
+                mine.completeExceptionally(e);
+            } finally {
+                flights.remove(key, mine);
+            }
+        };
+        if (executor == null) {
+            run.run();
+        } else {
+            try {
+                executor.execute(run);
+            } catch (RejectedExecutionException e) {
+                mine.completeExceptionally(e);
+                flights.remove(key, mine);
+            }
+        }
+        return mine;
+    }
+
+    /**
+     * @return A map of parameters for the Json response as specified: <br>
+     * "computed" : Number, the computations started. <br>
+     * "shared" : Number, the calls that waited for a computation started by another. <br>
+     * "running" : Number, the computations running now. <br>
+     */
+    Map<String, Object> status() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("computed", computed.get());
+        status.put("shared", shared.get());
+        status.put("running", flights.size());
+        return status;
+    }
+}
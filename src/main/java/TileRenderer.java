@@ -0,0 +1,509 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+/**
+ * The raster tiles of one region: the scraped tile images, and tiles drawn from the road
+ * graph for the depths the tile crawler did not download and for scraped tiles that are
+ * missing. Tiles follow the layout of the scraped ones: depth d splits the region's root box
+ * into 2^d by 2^d tiles of TILE_SIZE pixels, named "d{depth}_x{column}_y{row}.png".
+ * Ways are drawn with a casing and a fill whose color and width depend on the highway class,
+ * major roads over minor ones, and named at the deeper depths.
+ * Every tile is kept as PNG bytes in a memory cache bounded by MEMORY_CACHE_BYTES, and drawn
+ * tiles also in the DiskCache, under keys holding the data's fingerprint.
+ * Requests load tiles on Workers.RENDER_POOL, the Prefetcher on its own thread. Concurrent
+ * requests for a tile that is being loaded wait for that load, so a burst of requests for the
+ * same tiles draws each of them once.
+ */
+public class TileRenderer {
+    /** Size of the memory cache of drawn tiles, in bytes of PNG data. */
+    private static final long MEMORY_CACHE_BYTES = 64L << 20;
+    /** Changes the cache fingerprint whenever the drawing changes. */
+    private static final int STYLE_VERSION = 1;
+    /** Ways are named from this depth on. */
+    private static final int LABEL_DEPTH = 6;
+    private static final Pattern TILE_NAME = Pattern.compile("d(\\d+)_x(\\d+)_y(\\d+)\\.png");
+
+    private static final Color BACKGROUND = new Color(242, 239, 233);
+    private static final Color CASING = new Color(160, 155, 150);
+    private static final Color LABEL = new Color(60, 60, 60);
+    private static final Font LABEL_FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 11);
+
+    /** How a highway class is drawn. */
+    private static class Style {
+        final Color fill;
+        /** Width of the fill in pixels at depth 0. */
+        final float width;
+        /** Ways with a higher rank are drawn over ways with a lower one. */
+        final int rank;
+
+        Style(Color fill, float width, int rank) {
+            this.fill = fill;
+            this.width = width;
+            this.rank = rank;
+        }
+    }
+
+    private static final Map<String, Style> STYLES = new HashMap<>();
+    private static final Style DEFAULT_STYLE = new Style(Color.WHITE, 1.5f, 0);
+
+    static {
+        STYLES.put("motorway", new Style(new Color(232, 146, 162), 4, 9));
+        STYLES.put("trunk", new Style(new Color(249, 178, 156), 3.5f, 8));
+        STYLES.put("primary", new Style(new Color(252, 214, 164), 3, 7));
+        STYLES.put("secondary", new Style(new Color(247, 250, 191), 2.5f, 6));
+        STYLES.put("tertiary", new Style(Color.WHITE, 2.5f, 5));
+        STYLES.put("motorway_link", new Style(new Color(232, 146, 162), 2, 4));
+        STYLES.put("trunk_link", new Style(new Color(249, 178, 156), 2, 4));
+        STYLES.put("primary_link", new Style(new Color(252, 214, 164), 2, 4));
+        STYLES.put("secondary_link", new Style(new Color(247, 250, 191), 2, 4));
+        STYLES.put("tertiary_link", new Style(Color.WHITE, 2, 4));
+        STYLES.put("unclassified", new Style(Color.WHITE, 2, 2));
+        STYLES.put("residential", new Style(Color.WHITE, 2, 2));
+        STYLES.put("living_street", new Style(Color.WHITE, 1.5f, 1));
+    }
+
+    private final String imgRoot;
+    private final double rootUllat, rootUllon, rootLrlat, rootLrlon;
+    /** The ways ordered by rank, so drawing them in order puts major roads on top. */
+    private final Style[] styles;
+    private final String[] names;
+    /** The points of way i are at positions start[i] to start[i + 1] of lons and lats. */
+    private final int[] start;
+    private final double[] lons;
+    private final double[] lats;
+    /** R-tree over the bounding boxes of the ways. */
+    private final RTree index;
+    /** The region and the fingerprint of its data and drawing, begins the cache keys. */
+    final String version;
+    /** See rasterVersion. */
+    private String rasterVersion;
+
+    /** PNG bytes of drawn tiles, least recently used first. */
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes = 0;
+    /** The tiles being loaded right now. */
+    private final SingleFlight<String, byte[]> loads = new SingleFlight<>();
+
+    /**
+     * @param g The graph whose ways are drawn.
+     * @param region The name of the region, begins its cache keys.
+     * @param imgRoot The resource folder of the scraped tiles.
+     * @param rootUllat The bounding box of the region's root tile.
+     */
+    TileRenderer(GraphDB g, String region, String imgRoot, double rootUllat, double rootUllon,
+                 double rootLrlat, double rootLrlon) {
+        this.imgRoot = imgRoot;
+        this.rootUllat = rootUllat;
+        this.rootUllon = rootUllon;
+        this.rootLrlat = rootLrlat;
+        this.rootLrlon = rootLrlon;
+        List<GraphDB.Way> ways = new ArrayList<>(g.ways.values());
+        ways.sort((a, b) -> Integer.compare(style(a).rank, style(b).rank));
+        int n = ways.size();
+        styles = new Style[n];
+        names = new String[n];
+        start = new int[n + 1];
+        double[] minLon = new double[n];
+        double[] minLat = new double[n];
+        double[] maxLon = new double[n];
+        double[] maxLat = new double[n];
+        int points = 0;
+        for (GraphDB.Way way : ways) {
+            points += way.wayNodes.size();
+        }
+        lons = new double[points];
+        lats = new double[points];
+        int p = 0;
+        for (int i = 0; i < n; i += 1) {
+            GraphDB.Way way = ways.get(i);
+            styles[i] = style(way);
+            names[i] = way.infos.get("name:en");
+            start[i] = p;
+            minLon[i] = minLat[i] = Double.MAX_VALUE;
+            maxLon[i] = maxLat[i] = -Double.MAX_VALUE;
+            for (long id : way.wayNodes) {
+                GraphDB.Node node = g.nodes.get(id);
+                if (node == null) {
+                    continue;
+                }
+                lons[p] = node.lon;
+                lats[p] = node.lat;
+                minLon[i] = Math.min(minLon[i], node.lon);
+                minLat[i] = Math.min(minLat[i], node.lat);
+                maxLon[i] = Math.max(maxLon[i], node.lon);
+                maxLat[i] = Math.max(maxLat[i], node.lat);
+                p += 1;
+            }
+        }
+        start[n] = p;
+        index = new RTree(minLon, minLat, maxLon, maxLat);
+        long fingerprint = 31 * g.fingerprint() + STYLE_VERSION;
+        version = region + "-" + Long.toHexString(fingerprint);
+    }
+
+    /**
+     * The version of the rasters composited from the tiles: version followed by a
+     * fingerprint of the scraped tiles, so a deployment with other scraped tiles and the same
+     * map data does not serve rasters made from the old ones. Worked out on the first call.
+     * @return The version, which begins the cache keys of rasters.
+     */
+    synchronized String rasterVersion() {
+        if (rasterVersion == null) {
+            rasterVersion = version + "-" + Long.toHexString(scrapedFingerprint());
+        }
+        return rasterVersion;
+    }
+
+    /**
+     * A hash of the name, size and modification time of every scraped tile in a folder, or
+     * of the name, size and CRC of every one in a jar, without reading the tiles.
+     * @return The fingerprint, that of no tiles if they cannot be listed.
+     */
+    private long scrapedFingerprint() {
+        long fingerprint = 17;
+        URL url = MapServer.class.getResource(imgRoot);
+        if (url == null) {
+            return fingerprint;
+        }
+        try {
+            if (url.getProtocol().equals("jar")) {
+                JarURLConnection connection = (JarURLConnection) url.openConnection();
+                connection.setUseCaches(false);
+                String prefix = connection.getEntryName();
+                try (JarFile jar = connection.getJarFile()) {
+                    List<JarEntry> entries = new ArrayList<>();
+                    jar.stream().filter(entry -> entry.getName().startsWith(prefix))
+                            .forEach(entries::add);
+                    entries.sort((a, b) -> a.getName().compareTo(b.getName()));
+                    for (JarEntry entry : entries) {
+                        fingerprint = 31 * fingerprint + entry.getName().hashCode();
+                        fingerprint = 31 * fingerprint + entry.getSize();
+                        fingerprint = 31 * fingerprint + entry.getCrc();
+                    }
+                }
+            } else if (url.getProtocol().equals("file")) {
+                Path root = Paths.get(url.toURI());
+                List<Path> files = new ArrayList<>();
+                try (Stream<Path> walk = Files.walk(root)) {
+                    walk.filter(Files::isRegularFile).forEach(files::add);
+                }
+                files.sort(null);
+                for (Path file : files) {
+                    fingerprint = 31 * fingerprint + root.relativize(file).toString().hashCode();
+                    fingerprint = 31 * fingerprint + Files.size(file);
+                    fingerprint = 31 * fingerprint + Files.getLastModifiedTime(file).toMillis();
+                }
+            }
+        } catch (IOException | URISyntaxException e) {
+            e.printStackTrace();
+        }
+        return fingerprint;
+    }
+
+    private static Style style(GraphDB.Way way) {
+        return STYLES.getOrDefault(way.infos.get("highway"), DEFAULT_STYLE);
+    }
+
+    /**
+     * Parses a tile name.
+     * @param name The tile name as in the render grid of Rasterer, "d{depth}_x{c}_y{r}.png".
+     * @return {depth, x, y}, or null if name is not a tile name within MAX_DEPTH.
+     */
+    static int[] parse(String name) {
+        Matcher m = TILE_NAME.matcher(name);
+        if (!m.matches()) {
+            return null;
+        }
+        int depth = Integer.parseInt(m.group(1));
+        int x = Integer.parseInt(m.group(2));
+        int y = Integer.parseInt(m.group(3));
+        if (depth > Rasterer.MAX_DEPTH || x >= 1 << depth || y >= 1 << depth) {
+            return null;
+        }
+        return new int[]{depth, x, y};
+    }
+
+    /** @return the name of tile (x, y) of the given depth. */
+    static String name(int depth, int x, int y) {
+        return "d" + depth + "_x" + x + "_y" + y + ".png";
+    }
+
+    /**
+     * Returns a tile as PNG bytes, from the memory cache if it was loaded before, and loads
+     * it on the render pool otherwise. Blocks until the tile is loaded.
+     * @param name The tile name as in the render grid of Rasterer, "d{depth}_x{c}_y{r}.png".
+     * @return The PNG bytes, or null if name is not a tile of this region.
+     */
+    byte[] tile(String name) {
+        return fetch(name, false);
+    }
+
+    /**
+     * Load a tile into the memory cache on the calling thread, unless it is there already.
+     * @param name The tile name.
+     * @return Whether the tile had to be loaded.
+     */
+    boolean warm(String name) {
+        if (isCached(name)) {
+            return false;
+        }
+        fetch(name, true);
+        return true;
+    }
+
+    synchronized boolean isCached(String name) {
+        return memory.containsKey(name);
+    }
+
+    private byte[] fetch(String name, boolean inline) {
+        int[] tile = parse(name);
+        if (tile == null) {
+            return null;
+        }
+        byte[] png = fromMemory(name);
+        if (png != null) {
+            return png;
+        }
+        /* the first request for a tile loads it, the others wait for the same future. */
+        Future<byte[]> future = loads.start(name, () -> load(name, tile[0], tile[1], tile[2]),
+                inline ? null : Workers.RENDER_POOL);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Read a scraped tile, or a drawn one from the disk cache, or else draw it and cache it
+     * there, and keep it in memory.
+     */
+    private byte[] load(String name, int depth, int x, int y) {
+        byte[] png = scraped(name);
+        String key = "tile/" + version + "/" + name;
+        if (png == null) {
+            png = DiskCache.shared().get(key);
+        }
+        if (png == null) {
+            png = draw(depth, x, y);
+            DiskCache.shared().put(key, png);
+        }
+        toMemory(name, png);
+        return png;
+    }
+
+    /** @return the bytes of a tile downloaded by the crawler, or null if there is none. */
+    private byte[] scraped(String name) {
+        try (InputStream in = MapServer.class.getResourceAsStream(imgRoot + name)) {
+            return in == null ? null : in.readAllBytes();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private synchronized byte[] fromMemory(String name) {
+        return memory.get(name);
+    }
+
+    private synchronized void toMemory(String name, byte[] png) {
+        byte[] old = memory.put(name, png);
+        memoryBytes += png.length - (old == null ? 0 : old.length);
+        while (memoryBytes > MEMORY_CACHE_BYTES) {
+            Map.Entry<String, byte[]> eldest = memory.entrySet().iterator().next();
+            memoryBytes -= eldest.getValue().length;
+            memory.remove(eldest.getKey());
+        }
+    }
+
+    /** @return the number of bytes taken by the arrays of the ways, whose names are those of
+     * the ways themselves. */
+    long bytes() {
+        return (long) HeapFootprint.REFERENCE * (styles.length + names.length)
+                + (long) Integer.BYTES * start.length
+                + (long) Double.BYTES * (lons.length + lats.length) + index.bytes();
+    }
+
+    /**
+     * @return the "entries" of the memory cache, their estimated "bytes" with the names and
+     * the map, and the "budget_bytes" of PNG data, see HeapFootprint.
+     */
+    synchronized Map<String, Object> cacheFootprint() {
+        long bytes = HeapFootprint.linkedHashMap(memory.size());
+        for (Map.Entry<String, byte[]> entry : memory.entrySet()) {
+            bytes += HeapFootprint.string(entry.getKey())
+                    + HeapFootprint.array(entry.getValue().length, 1);
+        }
+        Map<String, Object> footprint = new HashMap<>();
+        footprint.put("entries", (long) memory.size());
+        footprint.put("bytes", bytes);
+        footprint.put("budget_bytes", MEMORY_CACHE_BYTES);
+        return footprint;
+    }
+
+    /** Draw tile (x, y) of the given depth. */
+    byte[] draw(int depth, int x, int y) {
+        int size = MapServer.TILE_SIZE;
+        double tileLon = (rootLrlon - rootUllon) / (1 << depth);
+        double tileLat = (rootUllat - rootLrlat) / (1 << depth);
+        double west = rootUllon + x * tileLon;
+        double north = rootUllat - y * tileLat;
+        double pxPerLon = size / tileLon;
+        double pxPerLat = size / tileLat;
+        /* roads get wider as the map is zoomed in, up to a limit. */
+        float scale = (float) Math.min(4, Math.pow(1.25, depth));
+        /* ways just outside the tile still reach into it with their width. */
+        double marginLon = 8 * scale / pxPerLon;
+        double marginLat = 8 * scale / pxPerLat;
+
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, size, size);
+
+        List<Integer> visible = new ArrayList<>();
+        List<Path2D> paths = new ArrayList<>();
+        /* the tree reports the ways in rank order, as they were numbered by rank. */
+        for (int i : index.search(west - marginLon, north - tileLat - marginLat,
+                west + tileLon + marginLon, north + marginLat)) {
+            if (start[i + 1] - start[i] < 2) {
+                continue;
+            }
+            Path2D path = new Path2D.Double();
+            path.moveTo((lons[start[i]] - west) * pxPerLon, (north - lats[start[i]]) * pxPerLat);
+            for (int p = start[i] + 1; p < start[i + 1]; p += 1) {
+                path.lineTo((lons[p] - west) * pxPerLon, (north - lats[p]) * pxPerLat);
+            }
+            visible.add(i);
+            paths.add(path);
+        }
+        /* all casings first, so a junction of two roads shows no casing across it. */
+        g.setColor(CASING);
+        for (int k = 0; k < paths.size(); k += 1) {
+            g.setStroke(stroke(styles[visible.get(k)].width * scale + 1.5f));
+            g.draw(paths.get(k));
+        }
+        for (int k = 0; k < paths.size(); k += 1) {
+            Style style = styles[visible.get(k)];
+            g.setColor(style.fill);
+            g.setStroke(stroke(style.width * scale));
+            g.draw(paths.get(k));
+        }
+        if (depth >= LABEL_DEPTH) {
+            label(g, visible, west, north, pxPerLon, pxPerLat);
+        }
+        g.dispose();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(img, "png", os);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return os.toByteArray();
+    }
+
+    private static BasicStroke stroke(float width) {
+        return new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    }
+
+    /**
+     * Write the name of every visible way once, along the longest of its segments that the
+     * name fits on without running off the tile.
+     */
+    private void label(Graphics2D g, List<Integer> visible, double west, double north,
+                       double pxPerLon, double pxPerLat) {
+        int size = MapServer.TILE_SIZE;
+        g.setFont(LABEL_FONT);
+        g.setColor(LABEL);
+        FontMetrics metrics = g.getFontMetrics();
+        Set<String> written = new HashSet<>();
+        for (int i : visible) {
+            if (names[i] == null || written.contains(names[i])) {
+                continue;
+            }
+            int width = metrics.stringWidth(names[i]);
+            double best = 0;
+            double ax = 0, ay = 0, bx = 0, by = 0;
+            for (int p = start[i]; p + 1 < start[i + 1]; p += 1) {
+                double x0 = (lons[p] - west) * pxPerLon, y0 = (north - lats[p]) * pxPerLat;
+                double x1 = (lons[p + 1] - west) * pxPerLon;
+                double y1 = (north - lats[p + 1]) * pxPerLat;
+                double length = Math.hypot(x1 - x0, y1 - y0);
+                if (length < width + 8 || length <= best) {
+                    continue;
+                }
+                /* both ends of the text, centered on the segment. */
+                double ux = (x1 - x0) / length * width / 2, uy = (y1 - y0) / length * width / 2;
+                double mx = (x0 + x1) / 2, my = (y0 + y1) / 2;
+                if (inside(mx - ux, my - uy, size) && inside(mx + ux, my + uy, size)) {
+                    best = length;
+                    ax = x0;
+                    ay = y0;
+                    bx = x1;
+                    by = y1;
+                }
+            }
+            if (best == 0) {
+                continue;
+            }
+            /* keep the text upright. */
+            if (bx < ax) {
+                double t = ax;
+                ax = bx;
+                bx = t;
+                t = ay;
+                ay = by;
+                by = t;
+            }
+            AffineTransform saved = g.getTransform();
+            g.translate((ax + bx) / 2, (ay + by) / 2);
+            g.rotate(Math.atan2(by - ay, bx - ax));
+            g.drawString(names[i], -width / 2f, metrics.getAscent() / 2f - 1);
+            g.setTransform(saved);
+            written.add(names[i]);
+        }
+    }
+
+    /** @return whether a point is on the tile, away from its edges. */
+    private static boolean inside(double x, double y, int size) {
+        return x >= 4 && x <= size - 4 && y >= 4 && y <= size - 4;
+    }
+}
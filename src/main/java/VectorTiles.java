@@ -0,0 +1,420 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mapbox Vector Tiles of the ways of one GraphDB, at any zoom level.
+ * A tile has a single layer "roads" with one line feature per way, tagged with "highway" and
+ * "name". The geometry of a tile is clipped to the tile plus a small buffer, rounded to the
+ * tile grid of EXTENT units and simplified with a tolerance of one unit, so a tile holds only
+ * as much detail as it can show. Minor roads are left out of low zoom tiles.
+ * The way geometry is projected to Web Mercator once, when the GraphDB is loaded, and a tile
+ * only touches the ways an R-tree over their bounding boxes finds in it.
+ * Tiles are encoded by hand (the format is a handful of protobuf messages) and cached in the
+ * DiskCache, under keys holding a fingerprint of the data, so a reload with new data never
+ * serves tiles of the old one.
+ */
+public class VectorTiles {
+    /** Size of the tile grid. */
+    static final int EXTENT = 4096;
+    /** Geometry this far outside the tile is kept, so lines are not cut at the tile edge. */
+    private static final int BUFFER = 64;
+    static final int MAX_ZOOM = 22;
+    /** Douglas-Peucker tolerance in tile units. */
+    private static final double TOLERANCE = 1;
+    /** Changes the cache fingerprint whenever the encoding changes. */
+    private static final int FORMAT_VERSION = 1;
+    /** The lowest zoom level at which each highway class is drawn. */
+    private static final Map<String, Integer> MIN_ZOOMS = new HashMap<>();
+    private static final int DEFAULT_MIN_ZOOM = 12;
+
+    static {
+        MIN_ZOOMS.put("motorway", 0);
+        MIN_ZOOMS.put("trunk", 4);
+        MIN_ZOOMS.put("primary", 7);
+        MIN_ZOOMS.put("secondary", 9);
+        MIN_ZOOMS.put("tertiary", 10);
+        MIN_ZOOMS.put("motorway_link", 11);
+        MIN_ZOOMS.put("trunk_link", 11);
+        MIN_ZOOMS.put("primary_link", 11);
+        MIN_ZOOMS.put("secondary_link", 11);
+        MIN_ZOOMS.put("tertiary_link", 11);
+    }
+
+    /* Protobuf field numbers of the vector tile messages. */
+    private static final int TILE_LAYERS = 3;
+    private static final int LAYER_NAME = 1;
+    private static final int LAYER_FEATURES = 2;
+    private static final int LAYER_KEYS = 3;
+    private static final int LAYER_VALUES = 4;
+    private static final int LAYER_EXTENT = 5;
+    private static final int LAYER_VERSION = 15;
+    private static final int FEATURE_ID = 1;
+    private static final int FEATURE_TAGS = 2;
+    private static final int FEATURE_TYPE = 3;
+    private static final int FEATURE_GEOMETRY = 4;
+    private static final int VALUE_STRING = 1;
+    private static final int LINESTRING = 2;
+    private static final int MOVE_TO = 1;
+    private static final int LINE_TO = 2;
+
+    private final long[] wayIds;
+    private final String[] highways;
+    private final String[] names;
+    private final int[] minZooms;
+    /** The points of way i are at positions start[i] to start[i + 1] of xs and ys. */
+    private final int[] start;
+    /** Web Mercator coordinates of the way points, both from 0 to 1, y pointing south. */
+    private final double[] xs;
+    private final double[] ys;
+    /** R-tree over the bounding boxes of the ways. */
+    private final RTree index;
+    /** The region and the fingerprint of its data and encoding, begins the cache keys. */
+    private final String version;
+
+    /**
+     * Project the ways of g.
+     * @param g The graph whose ways are drawn.
+     * @param region The name of the region of g, begins its cache keys.
+     */
+    VectorTiles(GraphDB g, String region) {
+        List<GraphDB.Way> ways = new ArrayList<>(g.ways.values());
+        int n = ways.size();
+        wayIds = new long[n];
+        highways = new String[n];
+        names = new String[n];
+        minZooms = new int[n];
+        start = new int[n + 1];
+        double[] minX = new double[n];
+        double[] minY = new double[n];
+        double[] maxX = new double[n];
+        double[] maxY = new double[n];
+        int points = 0;
+        for (GraphDB.Way way : ways) {
+            points += way.wayNodes.size();
+        }
+        xs = new double[points];
+        ys = new double[points];
+
+        int p = 0;
+        for (int i = 0; i < n; i += 1) {
+            GraphDB.Way way = ways.get(i);
+            wayIds[i] = way.id;
+            highways[i] = way.infos.get("highway");
+            names[i] = way.infos.get("name:en");
+            minZooms[i] = MIN_ZOOMS.getOrDefault(highways[i], DEFAULT_MIN_ZOOM);
+            start[i] = p;
+            minX[i] = minY[i] = Double.MAX_VALUE;
+            maxX[i] = maxY[i] = -Double.MAX_VALUE;
+            for (long id : way.wayNodes) {
+                GraphDB.Node node = g.nodes.get(id);
+                if (node == null) {
+                    continue;
+                }
+                xs[p] = (node.lon + 180) / 360;
+                ys[p] = mercatorY(node.lat);
+                minX[i] = Math.min(minX[i], xs[p]);
+                minY[i] = Math.min(minY[i], ys[p]);
+                maxX[i] = Math.max(maxX[i], xs[p]);
+                maxY[i] = Math.max(maxY[i], ys[p]);
+                p += 1;
+            }
+        }
+        start[n] = p;
+        index = new RTree(minX, minY, maxX, maxY);
+        long fingerprint = 31 * g.fingerprint() + FORMAT_VERSION;
+        version = region + "-" + Long.toHexString(fingerprint);
+    }
+
+    /** @return the number of bytes taken by the arrays of the ways, whose tags are those of
+     * the ways themselves. */
+    long bytes() {
+        return (long) Long.BYTES * wayIds.length
+                + (long) HeapFootprint.REFERENCE * (highways.length + names.length)
+                + (long) Integer.BYTES * (minZooms.length + start.length)
+                + (long) Double.BYTES * (xs.length + ys.length) + index.bytes();
+    }
+
+    /** @return the Web Mercator y of a latitude, from 0 at the north to 1 at the south. */
+    static double mercatorY(double lat) {
+        double sin = Math.sin(Math.toRadians(lat));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    /** @return the longitude of the west edge of tile column x at zoom z. */
+    static double tileLon(int z, int x) {
+        return x / Math.pow(2, z) * 360 - 180;
+    }
+
+    /** @return the latitude of the north edge of tile row y at zoom z. */
+    static double tileLat(int z, int y) {
+        double n = Math.PI - 2 * Math.PI * y / Math.pow(2, z);
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+
+    /**
+     * Returns a tile, from the disk cache if it was made before.
+     * @param z The zoom level, 0 to MAX_ZOOM.
+     * @param x The tile column, 0 to 2^z - 1.
+     * @param y The tile row, 0 to 2^z - 1, counted from the north.
+     * @return The encoded tile, empty if no way crosses it.
+     */
+    byte[] tile(int z, int x, int y) {
+        String key = "vtile/" + version + "/" + z + "/" + x + "/" + y;
+        byte[] tile = DiskCache.shared().get(key);
+        if (tile == null) {
+            tile = encode(z, x, y);
+            DiskCache.shared().put(key, tile);
+        }
+        return tile;
+    }
+
+    /** Encode a tile without looking at the cache. */
+    byte[] encode(int z, int x, int y) {
+        double scale = Math.pow(2, z);
+        double margin = (double) BUFFER / EXTENT / scale;
+        double west = x / scale - margin, east = (x + 1) / scale + margin;
+        double north = y / scale - margin, south = (y + 1) / scale + margin;
+
+        Map<String, Integer> keys = new LinkedHashMap<>();
+        Map<String, Integer> values = new LinkedHashMap<>();
+        ByteArrayOutputStream features = new ByteArrayOutputStream();
+        List<int[]> parts = new ArrayList<>();
+        for (int i : index.search(west, north, east, south)) {
+            if (z < minZooms[i]) {
+                continue;
+            }
+            parts.clear();
+            clip(i, scale, x, y, parts);
+            if (parts.isEmpty()) {
+                continue;
+            }
+            List<Integer> tags = new ArrayList<>();
+            addTag(tags, keys, values, "highway", highways[i]);
+            addTag(tags, keys, values, "name", names[i]);
+
+            ProtoWriter feature = new ProtoWriter();
+            feature.uint64(FEATURE_ID, wayIds[i]);
+            feature.packed(FEATURE_TAGS, tags);
+            feature.uint64(FEATURE_TYPE, LINESTRING);
+            feature.packed(FEATURE_GEOMETRY, geometry(parts));
+            ProtoWriter.message(features, LAYER_FEATURES, feature);
+        }
+        if (features.size() == 0) {
+            return new byte[0];
+        }
+
+        ProtoWriter layer = new ProtoWriter();
+        layer.uint64(LAYER_VERSION, 2);
+        layer.string(LAYER_NAME, "roads");
+        layer.raw(features.toByteArray());
+        for (String key : keys.keySet()) {
+            layer.string(LAYER_KEYS, key);
+        }
+        for (String value : values.keySet()) {
+            ProtoWriter v = new ProtoWriter();
+            v.string(VALUE_STRING, value);
+            ProtoWriter.message(layer.out, LAYER_VALUES, v);
+        }
+        layer.uint64(LAYER_EXTENT, EXTENT);
+        ByteArrayOutputStream tile = new ByteArrayOutputStream();
+        ProtoWriter.message(tile, TILE_LAYERS, layer);
+        return tile.toByteArray();
+    }
+
+    private static void addTag(List<Integer> tags, Map<String, Integer> keys,
+                               Map<String, Integer> values, String key, String value) {
+        if (value == null) {
+            return;
+        }
+        tags.add(keys.computeIfAbsent(key, k -> keys.size()));
+        tags.add(values.computeIfAbsent(value, v -> values.size()));
+    }
+
+    /**
+     * Cut way i to the buffered tile, in tile units, and simplify what is left.
+     * @param parts Receives each piece of the way inside the tile as {x0, y0, x1, y1, ...}.
+     */
+    private void clip(int i, double scale, int x, int y, List<int[]> parts) {
+        double lo = -BUFFER, hi = EXTENT + BUFFER;
+        List<double[]> piece = new ArrayList<>();
+        for (int p = start[i]; p + 1 < start[i + 1]; p += 1) {
+            double ax = (xs[p] * scale - x) * EXTENT, ay = (ys[p] * scale - y) * EXTENT;
+            double bx = (xs[p + 1] * scale - x) * EXTENT, by = (ys[p + 1] * scale - y) * EXTENT;
+            /* Liang-Barsky: the part of the segment inside the box is t0 <= t <= t1. */
+            double[] t = {0, 1};
+            double dx = bx - ax, dy = by - ay;
+            if (!clipTest(-dx, ax - lo, t) || !clipTest(dx, hi - ax, t)
+                    || !clipTest(-dy, ay - lo, t) || !clipTest(dy, hi - ay, t)) {
+                finish(piece, parts);
+                continue;
+            }
+            if (piece.isEmpty() || t[0] > 0) {
+                finish(piece, parts);
+                piece.add(new double[]{ax + t[0] * dx, ay + t[0] * dy});
+            }
+            piece.add(new double[]{ax + t[1] * dx, ay + t[1] * dy});
+            if (t[1] < 1) {
+                finish(piece, parts);
+            }
+        }
+        finish(piece, parts);
+    }
+
+    private static boolean clipTest(double p, double q, double[] t) {
+        if (p == 0) {
+            return q >= 0;
+        }
+        double r = q / p;
+        if (p < 0) {
+            if (r > t[1]) {
+                return false;
+            }
+            t[0] = Math.max(t[0], r);
+        } else {
+            if (r < t[0]) {
+                return false;
+            }
+            t[1] = Math.min(t[1], r);
+        }
+        return true;
+    }
+
+    /** Simplify a clipped piece onto the tile grid and add it to parts if it is a line. */
+    private static void finish(List<double[]> piece, List<int[]> parts) {
+        if (piece.size() < 2) {
+            piece.clear();
+            return;
+        }
+        boolean[] keep = new boolean[piece.size()];
+        keep[0] = true;
+        keep[piece.size() - 1] = true;
+        simplify(piece, 0, piece.size() - 1, keep);
+        int[] line = new int[2 * piece.size()];
+        int size = 0;
+        for (int k = 0; k < piece.size(); k += 1) {
+            if (!keep[k]) {
+                continue;
+            }
+            int px = (int) Math.round(piece.get(k)[0]);
+            int py = (int) Math.round(piece.get(k)[1]);
+            if (size > 0 && line[size - 2] == px && line[size - 1] == py) {
+                continue;
+            }
+            line[size] = px;
+            line[size + 1] = py;
+            size += 2;
+        }
+        if (size >= 4) {
+            int[] part = new int[size];
+            System.arraycopy(line, 0, part, 0, size);
+            parts.add(part);
+        }
+        piece.clear();
+    }
+
+    /** Douglas-Peucker: keep the points between first and last that stray over TOLERANCE. */
+    private static void simplify(List<double[]> points, int first, int last, boolean[] keep) {
+        if (last - first < 2) {
+            return;
+        }
+        double[] a = points.get(first), b = points.get(last);
+        double dx = b[0] - a[0], dy = b[1] - a[1];
+        double length = Math.hypot(dx, dy);
+        double worst = -1;
+        int index = -1;
+        for (int k = first + 1; k < last; k += 1) {
+            double[] c = points.get(k);
+            double d = length == 0 ? Math.hypot(c[0] - a[0], c[1] - a[1])
+                    : Math.abs(dy * (c[0] - a[0]) - dx * (c[1] - a[1])) / length;
+            if (d > worst) {
+                worst = d;
+                index = k;
+            }
+        }
+        if (worst > TOLERANCE) {
+            keep[index] = true;
+            simplify(points, first, index, keep);
+            simplify(points, index, last, keep);
+        }
+    }
+
+    /** @return the geometry commands of a line feature with the given parts. */
+    private static List<Integer> geometry(List<int[]> parts) {
+        List<Integer> commands = new ArrayList<>();
+        int cx = 0, cy = 0;
+        for (int[] part : parts) {
+            commands.add(command(MOVE_TO, 1));
+            commands.add(zigzag(part[0] - cx));
+            commands.add(zigzag(part[1] - cy));
+            commands.add(command(LINE_TO, part.length / 2 - 1));
+            for (int k = 2; k < part.length; k += 2) {
+                commands.add(zigzag(part[k] - part[k - 2]));
+                commands.add(zigzag(part[k + 1] - part[k - 1]));
+            }
+            cx = part[part.length - 2];
+            cy = part[part.length - 1];
+        }
+        return commands;
+    }
+
+    private static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /** Writes the few protobuf field kinds the vector tile format uses. */
+    private static class ProtoWriter {
+        private static final int VARINT = 0;
+        private static final int LENGTH_DELIMITED = 2;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        static void varint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        static void bytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+            varint(out, field << 3 | LENGTH_DELIMITED);
+            varint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        /** Write message as field of out. */
+        static void message(ByteArrayOutputStream out, int field, ProtoWriter message) {
+            bytes(out, field, message.out.toByteArray());
+        }
+
+        void uint64(int field, long value) {
+            varint(out, field << 3 | VARINT);
+            varint(out, value);
+        }
+
+        void string(int field, String value) {
+            bytes(out, field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void packed(int field, List<Integer> values) {
+            ByteArrayOutputStream packed = new ByteArrayOutputStream();
+            for (int v : values) {
+                varint(packed, v & 0xFFFFFFFFL);
+            }
+            bytes(out, field, packed.toByteArray());
+        }
+
+        /** Append fields that were encoded elsewhere. */
+        void raw(byte[] fields) {
+            out.write(fields, 0, fields.length);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executors and admission control for the request handlers.
+ * CPU heavy work (rastering, routing) runs on small bounded pools sized to the number of
+ * cores, while blocking I/O (reading tiles) runs on virtual threads when the JDK has them.
+ * Every endpoint goes through a Lane with its own concurrency limit. A request over the limit
+ * is rejected at once with a Busy exception, which MapServer answers with a 503 and a
+ * Retry-After header, instead of queueing behind a backlog it cannot catch up with.
+ * Because the server thread pool is larger than the sum of all lane limits, a burst on one
+ * endpoint can never take the threads another endpoint needs.
+ */
+public class Workers {
+    static final int CORES = Runtime.getRuntime().availableProcessors();
+    /** Seconds a rejected client is asked to wait before retrying. */
+    static final int RETRY_AFTER_SECONDS = 1;
+
+    /** Rastering: decoding, compositing and encoding tiles. */
+    static final Lane RASTER = new Lane("raster", CORES, 2 * CORES);
+    /** Single routes, distance matrices and isochrones. */
+    static final Lane ROUTE = new Lane("route", CORES, 4 * CORES);
+    /** Batch routes stream their results from the request thread, see BATCH_ROUTE_POOL. */
+    static final Lane BATCH_ROUTE = new Lane("batch_route", 2);
+    /** Prefix and location search, cheap enough to run on the request thread. */
+    static final Lane SEARCH = new Lane("search", 64);
+    /** OSM exports stream a whole graph from the request thread. */
+    static final Lane EXPORT = new Lane("export", 1);
+
+    /** The routes of a batch, at most a fixed window per batch is queued at a time. */
+    static final ExecutorService BATCH_ROUTE_POOL =
+            Executors.newFixedThreadPool(CORES, daemonThreads("batch-route"));
+    /**
+     * Drawing map tiles, see TileRenderer. The number of tiles waiting is bounded by the
+     * raster lane, as every tile is drawn for a raster request.
+     */
+    static final ExecutorService RENDER_POOL =
+            Executors.newFixedThreadPool(CORES, daemonThreads("render"));
+    /** Loading map data in stages, see Regions.load. */
+    static final ExecutorService STARTUP_POOL =
+            Executors.newFixedThreadPool(CORES, daemonThreads("startup"));
+    /** Blocking I/O, one virtual thread per task if the JDK supports them. */
+    static final ExecutorService IO_POOL = ioPool();
+
+    /**
+     * Size of the server's request thread pool: every lane can be full while there are
+     * still threads left for static files and the requests being rejected.
+     */
+    static int serverThreads() {
+        return RASTER.limit + ROUTE.limit + BATCH_ROUTE.limit + SEARCH.limit + EXPORT.limit
+                + 16;
+    }
+
+    /**
+     * An endpoint's share of the server: a concurrency limit, and optionally a bounded pool
+     * the work is handed to.
+     */
+    static class Lane {
+        final String name;
+        final int limit;
+        private final Semaphore permits;
+        private final ExecutorService executor;
+        private final AtomicLong rejected = new AtomicLong();
+
+        /** A lane that runs its work on the request thread. */
+        Lane(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+            permits = new Semaphore(limit);
+            executor = null;
+        }
+
+        /** A lane that runs its work on its own pool of threads with a bounded queue. */
+        Lane(String name, int threads, int queued) {
+            this.name = name;
+            this.limit = threads + queued;
+            permits = new Semaphore(limit);
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queued), daemonThreads(name),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        /**
+         * Run a task within this lane's limit and wait for its result.
+         * @param task The work of one request.
+         * @return The result of task.
+         * @throws Busy If the lane is full.
+         * @throws Exception Anything thrown by task.
+         */
+        <T> T call(Callable<T> task) throws Exception {
+            if (!permits.tryAcquire()) {
+                rejected.incrementAndGet();
+                throw new Busy(name);
+            }
+            try {
+                if (executor == null) {
+                    return task.call();
+                }
+                Future<T> future;
+                try {
+                    future = executor.submit(task);
+                } catch (RejectedExecutionException e) {
+                    rejected.incrementAndGet();
+                    throw new Busy(name);
+                }
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    future.cancel(true);
+                    throw e;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw (Exception) cause;
+                }
+            } finally {
+                permits.release();
+            }
+        }
+
+        /** @return the number of requests currently admitted. */
+        int active() {
+            return limit - permits.availablePermits();
+        }
+
+        /** @return the number of requests rejected so far. */
+        long rejected() {
+            return rejected.get();
+        }
+    }
+
+    /** Thrown when a lane is full; the request should be retried later. */
+    static class Busy extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Busy(String lane) {
+            super("Server busy (" + lane + ") - retry later.");
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Use Executors.newVirtualThreadPerTaskExecutor when running on a JDK with virtual
+     * threads (21 or later), and a cached pool of daemon threads otherwise.
+     */
+    private static ExecutorService ioPool() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(daemonThreads("io"));
+        }
+    }
+}
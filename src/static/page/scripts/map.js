@@ -11,6 +11,7 @@ $(function() {
     /* ══════════════════════════════════ ೋღ PROPERTIES ღೋ ════════════════════════════════ */
     const $body = $('#mapbody');
     const $routeStatus = $('#status-route');
+    const $routeStart = $('#route-start');
     const $loadingStatus = $('#status-loading');
     const $errorStatus = $('#status-error');
     const $directionsText = $('#directions-text');
@@ -62,6 +63,7 @@ $(function() {
     const route_server = host + '/route';
     const clear_route = host + '/clear_route';
     const search = host + '/search';
+    const reverse = host + '/reverse';
 
     /* ════════════════════════════ ೋღ HELPERS ღೋ ══════════════════════════ */
     /* Compute lat and lon by window size */
@@ -175,8 +177,8 @@ $(function() {
             async: true,
             url: route_server,
             data: route_params,
+            dataType: 'json',
             success: function(data) {
-                data = JSON.parse(data);
                 updateImg();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
@@ -187,6 +189,26 @@ $(function() {
         });
     }
 
+    /* Name the street and the nearest place at the start of a route */
+    function describeStart(lon, lat) {
+        $.get({
+            async: true,
+            url: reverse,
+            data: {lon: lon, lat: lat},
+            dataType: 'json',
+            success: function(data) {
+                const names = [];
+                if (data.way) {
+                    names.push(data.way.name);
+                }
+                if (data.place) {
+                    names.push('near ' + data.place.name);
+                }
+                $routeStart.text(names.join(', '));
+            },
+        });
+    }
+
     /* Any function that use a custom callback should probably call updateT() themselves */
     function update(callback) {
         if (callback) {
@@ -457,7 +479,9 @@ $(function() {
         } else {
             route_params.start_lon = params.ullon + (event.pageX - offset.left) * wdpp;
             route_params.start_lat = params.ullat - (event.pageY - offset.top) * hdpp;
+            $routeStart.text('');
             $routeStatus.show();
+            describeStart(route_params.start_lon, route_params.start_lat);
         }
     });
 
@@ -0,0 +1,130 @@
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the alternative routes of Router: the first is the best path, and every other one
+ * keeps within the stretch and sharing limits of Router.alternatives.
+ */
+public class AlternativesTest {
+    private static final double EPSILON = 1e-6;
+
+    /** @return the edge of g from v to w, -1 if there is none. */
+    private static int edge(CompactGraph g, int v, int w) {
+        for (int e = g.offsets[v]; e < g.offsets[v + 1]; e += 1) {
+            if (g.targets[e] == w) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the cost between a snapped point and the end v of its segment. */
+    private static double toEnd(SegmentIndex.Snap p, int v, double[] weights) {
+        return (v == p.from ? p.fraction : 1 - p.fraction) * weights[p.edge];
+    }
+
+    /** @return the cost of a path between two snapped points, the partial segments included. */
+    private static double cost(CompactGraph g, SegmentIndex.Snap start, SegmentIndex.Snap dest,
+                               int[] path, double[] weights) {
+        int first = path[0];
+        int last = path[path.length - 1];
+        assertTrue(first == start.from || first == start.to);
+        assertTrue(last == dest.from || last == dest.to);
+        double cost = toEnd(start, first, weights) + toEnd(dest, last, weights);
+        for (int i = 1; i < path.length; i += 1) {
+            int e = edge(g, path[i - 1], path[i]);
+            assertTrue(e >= 0);
+            cost += weights[e];
+        }
+        return cost;
+    }
+
+    /** @return the chains of a path, those of the start and destination segments left out. */
+    private static Set<Integer> chains(ContractedGraph c, SegmentIndex.Snap start,
+                                       SegmentIndex.Snap dest, int[] path) {
+        Set<Integer> chains = new HashSet<>();
+        for (int i = 1; i < path.length; i += 1) {
+            chains.add(chainOf(c, edge(c.base, path[i - 1], path[i])));
+        }
+        chains.remove(chainOf(c, start.edge));
+        chains.remove(chainOf(c, dest.edge));
+        return chains;
+    }
+
+    private static int chainOf(ContractedGraph c, int e) {
+        int code = c.baseChain[e];
+        return code >= 0 ? code : ~code;
+    }
+
+    @Test
+    public void testAlternativesKeepLimits() {
+        GraphDB db = new GraphDB("random_grid.osm.xml");
+        CompactGraph g = db.compact;
+        ContractedGraph c = db.contracted;
+        Random random = new Random(9);
+        int found = 0;
+        for (Profile profile : Profile.values()) {
+            double[] weights = profile.weights(g);
+            double[] core = profile.weights(c);
+            for (int i = 0; i < 300; i += 1) {
+                SegmentIndex.Snap start = g.snap(121.399 + 0.05 * random.nextDouble(),
+                        30.999 + 0.05 * random.nextDouble());
+                SegmentIndex.Snap dest = g.snap(121.399 + 0.05 * random.nextDouble(),
+                        30.999 + 0.05 * random.nextDouble());
+                int[] shortest = Router.shortestPath(c, SearchState.get(g), start, dest,
+                        profile);
+                List<int[]> paths = Router.alternatives(c, start, dest, profile, 4);
+                if (shortest == null) {
+                    assertTrue(paths.isEmpty());
+                    continue;
+                }
+                assertFalse(paths.isEmpty());
+                assertTrue(paths.size() <= 4);
+                double best = cost(g, start, dest, shortest, weights);
+                assertEquals(best, cost(g, start, dest, paths.get(0), weights),
+                        EPSILON * (1 + best));
+                Set<Integer> used = new HashSet<>(chains(c, start, dest, paths.get(0)));
+                for (int[] path : paths.subList(1, paths.size())) {
+                    assertTrue(cost(g, start, dest, path, weights)
+                            <= Router.MAX_STRETCH * best + EPSILON);
+                    Set<Integer> chains = chains(c, start, dest, path);
+                    double shared = 0;
+                    for (int k : chains) {
+                        if (used.contains(k)) {
+                            shared += core[c.chainEdge[k]];
+                        }
+                    }
+                    assertTrue(shared <= Router.MAX_SHARING * best + EPSILON);
+                    used.addAll(chains);
+                    found += 1;
+                }
+            }
+        }
+        /* the grid has plenty of detours, so the limits were put to the test. */
+        assertTrue(found > 100);
+    }
+
+    @Test
+    public void testCountLimitsPaths() {
+        GraphDB db = new GraphDB("random_grid.osm.xml");
+        CompactGraph g = db.compact;
+        SegmentIndex.Snap start = g.snap(121.401, 31.001);
+        SegmentIndex.Snap dest = g.snap(121.447, 31.047);
+        assertNotNull(start);
+        for (int count = 0; count <= 3; count += 1) {
+            List<int[]> paths = Router.alternatives(db.contracted, start, dest,
+                    Profile.SHORTEST, count);
+            assertTrue(paths.size() <= count);
+            assertEquals(count == 0, paths.isEmpty());
+        }
+    }
+}
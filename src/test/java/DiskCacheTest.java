@@ -0,0 +1,191 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that DiskCache finds what it kept after a restart, drops damaged records, keeps the
+ * records read when it compacts a segment, and keeps to its budget.
+ * A restart opens a copy of the segment files, since the directory stays locked.
+ */
+public class DiskCacheTest {
+    private static final int SEGMENT_BYTES = 4096;
+    /** A record of key(i) and value(i) takes 16 + 7 + 500 bytes, so a segment holds 7. */
+    private static final int PER_SEGMENT = 7;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String key(int i) {
+        return String.format("key-%03d", i);
+    }
+
+    private static byte[] value(int i) {
+        byte[] value = new byte[500];
+        for (int k = 0; k < value.length; k += 1) {
+            value[k] = (byte) (i * 31 + k);
+        }
+        return value;
+    }
+
+    /** @return the names of the segment files in dir, in order. */
+    private static List<String> segments(Path dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path file : files) {
+                names.add(file.getFileName().toString());
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+
+    /** @return a new directory holding copies of the segment files of dir. */
+    private Path copy(Path dir) throws IOException {
+        Path to = folder.newFolder().toPath();
+        for (String name : segments(dir)) {
+            Files.copy(dir.resolve(name), to.resolve(name));
+        }
+        return to;
+    }
+
+    private static void awaitCompactions(DiskCache cache, long count)
+            throws InterruptedException {
+        while ((Long) cache.status().get("compactions") < count) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testValuesOutliveRestart() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        DiskCache cache = new DiskCache(dir, SEGMENT_BYTES, 8 * SEGMENT_BYTES);
+        for (int i = 0; i < 3 * PER_SEGMENT; i += 1) {
+            cache.put(key(i), value(i));
+        }
+        cache.put(key(0), value(100));
+        assertArrayEquals(value(100), cache.get(key(0)));
+        assertNull(cache.get("missing"));
+
+        DiskCache reopened = new DiskCache(copy(dir), SEGMENT_BYTES, 8 * SEGMENT_BYTES);
+        assertEquals(4, reopened.status().get("segments"));
+        assertEquals(3 * PER_SEGMENT, reopened.status().get("entries"));
+        /* the latest record of a key wins. */
+        assertArrayEquals(value(100), reopened.get(key(0)));
+        for (int i = 1; i < 3 * PER_SEGMENT; i += 1) {
+            assertArrayEquals(value(i), reopened.get(key(i)));
+        }
+    }
+
+    @Test
+    public void testDamagedRecordIsDropped() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        DiskCache cache = new DiskCache(dir, SEGMENT_BYTES, 8 * SEGMENT_BYTES);
+        cache.put(key(0), value(0));
+        cache.put(key(1), value(1));
+        Path copy = copy(dir);
+        try (FileChannel channel = FileChannel.open(copy.resolve(segments(copy).get(0)),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            /* a byte in the value of the first record. */
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, 16 + 7 + 10);
+            b.put(0, (byte) ~b.get(0));
+            channel.write(b.rewind(), 16 + 7 + 10);
+        }
+        DiskCache reopened = new DiskCache(copy, SEGMENT_BYTES, 8 * SEGMENT_BYTES);
+        assertEquals(2, reopened.status().get("entries"));
+        assertNull(reopened.get(key(0)));
+        assertArrayEquals(value(1), reopened.get(key(1)));
+        assertEquals(1L, reopened.status().get("corrupt"));
+        assertEquals(1, reopened.status().get("entries"));
+    }
+
+    @Test(timeout = 10000)
+    public void testCompactionKeepsReadRecords() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        DiskCache cache = new DiskCache(dir, SEGMENT_BYTES, 4 * SEGMENT_BYTES);
+        for (int i = 0; i < 4 * PER_SEGMENT; i += 1) {
+            cache.put(key(i), value(i));
+        }
+        for (int i = 0; i < PER_SEGMENT; i += 2) {
+            cache.get(key(i));
+        }
+        assertEquals(0L, cache.status().get("compactions"));
+        /* the fifth segment takes the first one out of the budget. */
+        cache.put(key(4 * PER_SEGMENT), value(4 * PER_SEGMENT));
+        awaitCompactions(cache, 1);
+        assertEquals(4, cache.status().get("segments"));
+        assertEquals(4L, cache.status().get("kept"));
+        assertEquals(3L, cache.status().get("dropped"));
+        assertFalse(segments(dir).contains("00000000.seg"));
+        for (int i = 0; i < PER_SEGMENT; i += 1) {
+            if (i % 2 == 0) {
+                assertArrayEquals(value(i), cache.get(key(i)));
+            } else {
+                assertNull(cache.get(key(i)));
+            }
+        }
+
+        /* the copied records are found after a restart too. */
+        DiskCache reopened = new DiskCache(copy(dir), SEGMENT_BYTES, 4 * SEGMENT_BYTES);
+        assertEquals(4 * PER_SEGMENT + 1 - 3, reopened.status().get("entries"));
+        for (int i = 0; i <= 4 * PER_SEGMENT; i += 1) {
+            if (i < PER_SEGMENT && i % 2 == 1) {
+                assertNull(reopened.get(key(i)));
+            } else {
+                assertArrayEquals(value(i), reopened.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testStartupKeepsToBudget() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        DiskCache cache = new DiskCache(dir, SEGMENT_BYTES, 8 * SEGMENT_BYTES);
+        for (int i = 0; i < 8 * PER_SEGMENT; i += 1) {
+            cache.put(key(i), value(i));
+        }
+        assertEquals(8, segments(dir).size());
+        /* as if a crash left segments past a budget of two. */
+        Path copy = copy(dir);
+        DiskCache reopened = new DiskCache(copy, SEGMENT_BYTES, 2 * SEGMENT_BYTES);
+        assertEquals(2, reopened.status().get("segments"));
+        assertEquals(2 * PER_SEGMENT, reopened.status().get("entries"));
+        assertEquals(2, segments(copy).size());
+        for (int i = 0; i < 8 * PER_SEGMENT; i += 1) {
+            if (i < 6 * PER_SEGMENT) {
+                assertNull(reopened.get(key(i)));
+            } else {
+                assertArrayEquals(value(i), reopened.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testLockedDirectoryDisablesCache() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        DiskCache cache = new DiskCache(dir, SEGMENT_BYTES, 8 * SEGMENT_BYTES);
+        cache.put(key(0), value(0));
+        DiskCache second = new DiskCache(dir, SEGMENT_BYTES, 8 * SEGMENT_BYTES);
+        assertEquals(false, second.status().get("enabled"));
+        assertNull(second.get(key(0)));
+        second.put(key(1), value(1));
+        assertEquals(0L, second.status().get("writes"));
+        assertArrayEquals(value(0), cache.get(key(0)));
+        assertNull(cache.get(key(1)));
+    }
+}
@@ -0,0 +1,76 @@
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the vertices an Isochrone reaches against plain Dijkstra, and that its polygons
+ * cover them.
+ */
+public class IsochroneTest {
+    private static final double EPSILON = 1e-6;
+    /** Road distances in meters, not in order. */
+    private static final double[] THRESHOLDS = {1500, 400, 900};
+
+    @Test
+    public void testReachMatchesDijkstra() {
+        CompactGraph g = new GraphDB("random_grid.osm.xml").compact;
+        for (int source : new int[]{0, g.size() / 2, g.size() - 1}) {
+            Isochrone iso = Isochrone.reach(g, SearchState.get(g), source, THRESHOLDS);
+            assertArrayEquals(new double[]{400, 900, 1500}, iso.thresholds, 0);
+            for (int i = 1; i < iso.order.length; i += 1) {
+                assertTrue(iso.dists[i - 1] <= iso.dists[i]);
+            }
+            for (int i = 0; i < iso.order.length; i += 1) {
+                double expected = RouterTest.dijkstra(g, source, iso.order[i], g.lengths);
+                assertEquals(expected, iso.dists[i], EPSILON * (1 + expected));
+            }
+            for (int k = 0; k < iso.thresholds.length; k += 1) {
+                int within = 0;
+                for (int v = 0; v < g.size(); v += 1) {
+                    if (RouterTest.dijkstra(g, source, v, g.lengths) <= iso.thresholds[k]) {
+                        within += 1;
+                    }
+                }
+                assertEquals(within, iso.counts[k]);
+            }
+        }
+    }
+
+    @Test
+    public void testPolygonsCoverReachedVertices() {
+        CompactGraph g = new GraphDB("random_grid.osm.xml").compact;
+        int source = g.size() / 2;
+        Isochrone iso = Isochrone.reach(g, SearchState.get(g), source, THRESHOLDS);
+        for (int k = 0; k < iso.thresholds.length; k += 1) {
+            List<List<double[]>> rings = iso.polygon(g, k, 50);
+            assertTrue(iso.counts[k] > 0);
+            for (List<double[]> ring : rings) {
+                assertArrayEquals(ring.get(0), ring.get(ring.size() - 1), 0);
+            }
+            for (int i = 0; i < iso.counts[k]; i += 1) {
+                int v = iso.order[i];
+                assertTrue(inside(rings, g.lons[v], g.lats[v]));
+            }
+        }
+    }
+
+    /** @return whether a point is inside the area of some rings, holes left out. */
+    private static boolean inside(List<List<double[]>> rings, double lon, double lat) {
+        boolean inside = false;
+        for (List<double[]> ring : rings) {
+            for (int i = 1; i < ring.size(); i += 1) {
+                double[] a = ring.get(i - 1);
+                double[] b = ring.get(i);
+                if ((a[1] > lat) != (b[1] > lat)
+                        && lon < a[0] + (lat - a[1]) / (b[1] - a[1]) * (b[0] - a[0])) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,95 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the cost matrices of Regions against plain Dijkstra between the vertices closest to
+ * the points, within one region and across two.
+ */
+public class MatrixTest {
+    private static final double EPSILON = 1e-6;
+    private static final String FIXTURE = "random_grid.osm.xml";
+    /** The bounds of the fixture, a little outside its nodes. */
+    private static final double NORTH = 31.049;
+    private static final double SOUTH = 30.999;
+    private static final double WEST = 121.399;
+    private static final double EAST = 121.450;
+
+    /** @return a snapshot of the given regions, fully loaded. */
+    private static Regions load(Regions.Region... regions) {
+        Regions snapshot = new Regions(Arrays.asList(regions));
+        snapshot.load(Runnable::run).join();
+        return snapshot;
+    }
+
+    /** @return count random points, each as {lon, lat}, between two longitudes. */
+    private static List<double[]> points(Random random, int count, double west, double east) {
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            points.add(new double[]{west + (east - west) * random.nextDouble(),
+                SOUTH + (NORTH - SOUTH) * random.nextDouble()});
+        }
+        return points;
+    }
+
+    /**
+     * Check every cost of a matrix against Dijkstra on g between the closest vertices, taken
+     * in the graph of the region of each point and found in g by their ids.
+     */
+    private static void checkMatrix(Regions regions, CompactGraph g, List<double[]> sources,
+                                    List<double[]> targets, Profile profile) {
+        double[][] costs = regions.costMatrix(sources, targets, profile);
+        double[] weights = profile.weights(g);
+        for (int i = 0; i < sources.size(); i += 1) {
+            int s = g.indexOf(closestId(regions, sources.get(i)));
+            for (int j = 0; j < targets.size(); j += 1) {
+                int t = g.indexOf(closestId(regions, targets.get(j)));
+                double expected = RouterTest.dijkstra(g, s, t, weights);
+                assertEquals(expected, costs[i][j], EPSILON * (1 + expected));
+            }
+        }
+    }
+
+    private static long closestId(Regions regions, double[] point) {
+        CompactGraph g = regions.regionAt(point[0], point[1]).graph.compact;
+        return g.ids[g.closest(point[0], point[1])];
+    }
+
+    @Test
+    public void testMatrixMatchesDijkstra() {
+        Regions regions = load(new Regions.Region("grid", FIXTURE, "imgs/", NORTH, WEST,
+                SOUTH, EAST));
+        CompactGraph g = regions.regions.get(0).graph.compact;
+        Random random = new Random(3);
+        for (Profile profile : Profile.values()) {
+            checkMatrix(regions, g, points(random, 12, WEST, EAST),
+                    points(random, 9, WEST, EAST), profile);
+        }
+    }
+
+    /**
+     * Two regions over the same extract, so every node is a boundary node and a cost across
+     * them through the overlay is the cost within either.
+     */
+    @Test
+    public void testMatrixAcrossRegionsMatchesDijkstra() {
+        double middle = (WEST + EAST) / 2;
+        Regions regions = load(
+                new Regions.Region("west", FIXTURE, "imgs/", NORTH, WEST, SOUTH, middle),
+                new Regions.Region("east", FIXTURE, "imgs/", NORTH, middle, SOUTH, EAST));
+        CompactGraph g = regions.regions.get(0).graph.compact;
+        Random random = new Random(4);
+        for (Profile profile : Profile.values()) {
+            /* sources on both sides, so pairs within and across regions are mixed. */
+            checkMatrix(regions, g, points(random, 6, WEST, EAST),
+                    points(random, 3, WEST, middle), profile);
+            checkMatrix(regions, g, points(random, 4, WEST, middle),
+                    points(random, 5, middle, EAST), profile);
+        }
+    }
+}
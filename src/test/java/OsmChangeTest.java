@@ -0,0 +1,140 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that applying an OSM change to a graph adds, moves and removes its roads and names,
+ * and leaves the graph it was applied to as it was.
+ */
+public class OsmChangeTest {
+    /** Creates named nodes 500 and 501 on a new road from 41 to 21 of the chain fixture. */
+    private static final String CREATE = "<osmChange version=\"0.6\"><create>"
+            + "<node id=\"500\" lat=\"30.998\" lon=\"121.430\">"
+            + "<tag k=\"name:en\" v=\"Old Mill\"/></node>"
+            + "<node id=\"501\" lat=\"30.998\" lon=\"121.420\">"
+            + "<tag k=\"name:en\" v=\"Gone Cafe\"/></node>"
+            + "<way id=\"300\"><nd ref=\"41\"/><nd ref=\"500\"/><nd ref=\"501\"/><nd ref=\"21\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/><tag k=\"name:en\" v=\"Mill Lane\"/></way>"
+            + "</create></osmChange>";
+
+    private static OsmChange parse(String xml) throws Exception {
+        return OsmChange.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** @return the full names in the search trie of g starting with prefix. */
+    private static List<String> names(GraphDB g, String prefix) {
+        List<String> found = g.search.find(prefix);
+        return found == null ? Collections.emptyList() : found;
+    }
+
+    /** @return the OSM ids of the best path between two nodes, null if there is none. */
+    private static long[] route(GraphDB g, long from, long to) {
+        CompactGraph cg = g.compact;
+        int[] path = Router.shortestPath(g.contracted, SearchState.get(cg), cg.indexOf(from),
+                cg.indexOf(to), Profile.SHORTEST);
+        if (path == null) {
+            return null;
+        }
+        long[] ids = new long[path.length];
+        for (int i = 0; i < path.length; i += 1) {
+            ids[i] = cg.ids[path[i]];
+        }
+        return ids;
+    }
+
+    @Test
+    public void testCreateAddsRoadAndNames() throws Exception {
+        GraphDB base = new GraphDB("chain_detour.osm.xml");
+        OsmChange change = parse(CREATE);
+        assertArrayEquals(new int[]{2, 1}, change.counts());
+        GraphDB g = new GraphDB(base, change, 0, false);
+
+        assertArrayEquals(new long[]{500, 501, 21}, route(g, 500, 21));
+        assertEquals(Collections.singletonList("Old Mill"), names(g, "old"));
+        assertEquals("Mill Lane", g.nodes.get(500L).infos.get("wayName"));
+        /* the graph the change was applied to is left as it was. */
+        assertTrue(base.compact.indexOf(500) < 0);
+        assertTrue(names(base, "old").isEmpty());
+        assertFalse(base.nodes.get(41L).adjacency.contains(500L));
+        assertArrayEquals(new long[]{41, 40, 2, 20, 21}, route(base, 41, 21));
+    }
+
+    @Test
+    public void testModifyAndDeleteNamedNodes() throws Exception {
+        GraphDB created = new GraphDB(new GraphDB("chain_detour.osm.xml"), parse(CREATE), 0,
+                false);
+        /* 500 is renamed and moved; 501 is taken off the road and deleted. */
+        GraphDB g = new GraphDB(created, parse("<osmChange version=\"0.6\"><modify>"
+                + "<node id=\"500\" lat=\"30.997\" lon=\"121.431\">"
+                + "<tag k=\"name:en\" v=\"New Mill\"/></node>"
+                + "<way id=\"300\"><nd ref=\"41\"/><nd ref=\"500\"/><nd ref=\"21\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way>"
+                + "</modify><delete><node id=\"501\"/></delete></osmChange>"), 0, false);
+
+        assertTrue(names(g, "old").isEmpty());
+        assertTrue(names(g, "gone").isEmpty());
+        assertEquals(Collections.singletonList("New Mill"), names(g, "new"));
+        GraphDB.Node moved = g.nodes.get(500L);
+        assertEquals(30.997, moved.lat, 0);
+        assertEquals(121.431, moved.lon, 0);
+        assertNull(moved.infos.get("wayName"));
+        assertNull(g.nodes.get(501L));
+        assertTrue(g.removedNodes == null || !g.removedNodes.containsKey(501L));
+        assertTrue(g.compact.indexOf(501) < 0);
+        assertArrayEquals(new long[]{500, 21}, route(g, 500, 21));
+
+        assertEquals(Collections.singletonList("Old Mill"), names(created, "old"));
+        assertEquals(Collections.singletonList("Gone Cafe"), names(created, "gone"));
+        assertEquals(30.998, created.nodes.get(500L).lat, 0);
+        assertArrayEquals(new long[]{500, 501, 21}, route(created, 500, 21));
+    }
+
+    @Test
+    public void testDeleteAndRetagWaysRemoveRoads() throws Exception {
+        GraphDB base = new GraphDB("chain_detour.osm.xml");
+        /* without the detour 1-20-2 the route takes the long chain, and without the road on
+         * from 2 nothing past it is reached. */
+        GraphDB g = new GraphDB(base, parse("<osmChange version=\"0.6\">"
+                + "<delete><way id=\"102\"/></delete><modify>"
+                + "<way id=\"104\"><nd ref=\"2\"/><nd ref=\"40\"/><nd ref=\"41\"/>"
+                + "<tag k=\"highway\" v=\"footway\"/></way></modify></osmChange>"), 0, false);
+
+        assertArrayEquals(new long[]{30, 1, 10, 11, 12, 2}, route(g, 30, 2));
+        assertTrue(g.compact.indexOf(41) < 0);
+        assertNull(g.ways.get(102L));
+        assertNull(g.ways.get(104L));
+        assertNotNull(base.ways.get(102L));
+        assertArrayEquals(new long[]{30, 1, 20, 2}, route(base, 30, 2));
+    }
+
+    @Test
+    public void testCreateAddsVerticesAndEdges() throws Exception {
+        GraphDB base = new GraphDB("chain_detour.osm.xml");
+        GraphDB g = new GraphDB(base, parse(CREATE), 0, false);
+        List<Long> ids = new ArrayList<>();
+        for (long id : g.compact.ids) {
+            ids.add(id);
+        }
+        Collections.sort(ids);
+        List<Long> expected = new ArrayList<>();
+        for (long id : base.compact.ids) {
+            expected.add(id);
+        }
+        expected.add(500L);
+        expected.add(501L);
+        Collections.sort(expected);
+        assertEquals(expected, ids);
+        assertEquals(base.compact.targets.length + 6, g.compact.targets.length);
+    }
+}
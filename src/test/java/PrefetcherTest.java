@@ -0,0 +1,67 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that warming a new snapshot drops the tiles queued for the one it replaced, and that
+ * viewports of the replaced snapshot are not queued any more.
+ * A route request is kept running, so the prefetcher waits and its queue holds still.
+ */
+public class PrefetcherTest {
+    /** Depths 0 to 3 of one region. */
+    private static final int WARM_TILES = 1 + 4 + 16 + 64;
+    /** The ring around a tile of depth 4 inside the map, and the tiles under it, none warmed. */
+    private static final int VIEWPORT_TILES = 8 + 4;
+
+    private static Regions snapshot() {
+        Regions regions = new Regions(Arrays.asList(new Regions.Region("chain",
+                "chain_detour.osm.xml", "imgs/", 31.1, 121.3, 30.9, 121.5)));
+        regions.load(Runnable::run).join();
+        return regions;
+    }
+
+    @Test(timeout = 10000)
+    public void testWarmDropsReplacedSnapshot() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Thread route = new Thread(() -> {
+            try {
+                Workers.ROUTE.call(() -> {
+                    release.await();
+                    return null;
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        route.start();
+        try {
+            while (Workers.ROUTE.active() == 0) {
+                Thread.sleep(1);
+            }
+            Prefetcher prefetcher = new Prefetcher();
+            Regions old = snapshot();
+            Regions next = snapshot();
+            String[][] grid = {{TileRenderer.name(4, 5, 5)}};
+
+            prefetcher.warm(old);
+            prefetcher.viewport(old.regions.get(0), grid);
+            assertEquals(WARM_TILES + VIEWPORT_TILES, prefetcher.status().get("queued"));
+
+            prefetcher.warm(next);
+            assertEquals(WARM_TILES, prefetcher.status().get("queued"));
+            assertEquals((long) WARM_TILES + VIEWPORT_TILES, prefetcher.status().get("stale"));
+
+            /* a request still served by the old snapshot. */
+            prefetcher.viewport(old.regions.get(0), grid);
+            assertEquals(WARM_TILES, prefetcher.status().get("queued"));
+            prefetcher.viewport(next.regions.get(0), grid);
+            assertEquals(WARM_TILES + VIEWPORT_TILES, prefetcher.status().get("queued"));
+        } finally {
+            release.countDown();
+            route.join();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the box and nearest item queries of RTree, and the way queries of GraphDB through
+ * it, against a scan of every box.
+ */
+public class RTreeTest {
+    private static final double EPSILON = 1e-9;
+
+    /** @return the positions of the boxes that meet the query box, in increasing order. */
+    private static int[] scan(double[] minX, double[] minY, double[] maxX, double[] maxY,
+                              double[] q) {
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < minX.length; i += 1) {
+            if (minX[i] <= maxX[i] && maxX[i] >= q[0] && minX[i] <= q[2] && maxY[i] >= q[1]
+                    && minY[i] <= q[3]) {
+                found.add(i);
+            }
+        }
+        return found.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Test
+    public void testSearchMatchesScan() {
+        Random random = new Random(5);
+        for (int n : new int[]{0, 1, 15, 16, 17, 300, 5000}) {
+            double[] minX = new double[n];
+            double[] minY = new double[n];
+            double[] maxX = new double[n];
+            double[] maxY = new double[n];
+            for (int i = 0; i < n; i += 1) {
+                minX[i] = random.nextDouble();
+                minY[i] = random.nextDouble();
+                maxX[i] = minX[i] + 0.05 * random.nextDouble();
+                maxY[i] = minY[i] + 0.05 * random.nextDouble();
+                if (i % 50 == 7) {
+                    /* an empty box, left out. */
+                    maxX[i] = minX[i] - 1;
+                }
+            }
+            RTree tree = new RTree(minX, minY, maxX, maxY);
+            for (int k = 0; k < 200; k += 1) {
+                double x = random.nextDouble();
+                double y = random.nextDouble();
+                double size = 0.2 * random.nextDouble();
+                double[] q = {x, y, x + size, y + size};
+                assertArrayEquals(scan(minX, minY, maxX, maxY, q),
+                        tree.search(q[0], q[1], q[2], q[3]));
+            }
+            /* a box only touching another one at an edge meets it. */
+            if (n > 0) {
+                assertArrayEquals(scan(minX, minY, maxX, maxY,
+                        new double[]{maxX[0], maxY[0], maxX[0] + 1, maxY[0] + 1}),
+                        tree.search(maxX[0], maxY[0], maxX[0] + 1, maxY[0] + 1));
+            }
+        }
+    }
+
+    @Test
+    public void testNearestMatchesScan() {
+        Random random = new Random(6);
+        int n = 2000;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            x[i] = random.nextDouble();
+            y[i] = random.nextDouble();
+        }
+        RTree tree = new RTree(x, y, x, y);
+        for (int k = 0; k < 300; k += 1) {
+            double px = random.nextDouble();
+            double py = random.nextDouble();
+            /* x counts twice y, and the items with odd positions are not wanted. */
+            int found = tree.nearest(px, py, 2, 1, i -> i % 2 == 1 ? Double.POSITIVE_INFINITY
+                    : Math.hypot(2 * (x[i] - px), y[i] - py));
+            double best = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < n; i += 2) {
+                best = Math.min(best, Math.hypot(2 * (x[i] - px), y[i] - py));
+            }
+            assertEquals(0, found % 2);
+            assertEquals(best, Math.hypot(2 * (x[found] - px), y[found] - py), EPSILON);
+        }
+        assertEquals(-1, tree.nearest(0.5, 0.5, 1, 1, i -> Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void testWaysInMatchesScan() {
+        GraphDB db = new GraphDB("random_grid.osm.xml");
+        Random random = new Random(7);
+        for (int k = 0; k < 100; k += 1) {
+            double lon = 121.399 + 0.05 * random.nextDouble();
+            double lat = 30.999 + 0.05 * random.nextDouble();
+            double size = 0.01 * random.nextDouble();
+            List<Long> expected = new ArrayList<>();
+            for (GraphDB.Way way : db.ways.values()) {
+                double minLon = Double.MAX_VALUE, minLat = Double.MAX_VALUE;
+                double maxLon = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+                for (long id : way.wayNodes) {
+                    GraphDB.Node node = db.nodes.get(id);
+                    minLon = Math.min(minLon, node.lon);
+                    minLat = Math.min(minLat, node.lat);
+                    maxLon = Math.max(maxLon, node.lon);
+                    maxLat = Math.max(maxLat, node.lat);
+                }
+                if (maxLon >= lon && minLon <= lon + size && maxLat >= lat
+                        && minLat <= lat + size) {
+                    expected.add(way.id);
+                }
+            }
+            List<Long> found = new ArrayList<>();
+            for (GraphDB.Way way : db.waysIn(lon, lat, lon + size, lat + size)) {
+                found.add(way.id);
+            }
+            assertEquals(expected, found);
+        }
+    }
+
+    @Test
+    public void testNearestNamedWayMatchesScan() {
+        GraphDB db = new GraphDB("random_grid.osm.xml");
+        Random random = new Random(8);
+        for (int k = 0; k < 100; k += 1) {
+            double lon = 121.395 + 0.06 * random.nextDouble();
+            double lat = 30.995 + 0.06 * random.nextDouble();
+            double best = Double.POSITIVE_INFINITY;
+            for (GraphDB.Way way : db.ways.values()) {
+                if (way.infos.get("name:en") != null) {
+                    best = Math.min(best, db.meters(way, lon, lat));
+                }
+            }
+            assertEquals(best, db.meters(db.nearestNamedWay(lon, lat), lon, lat), EPSILON);
+        }
+    }
+}
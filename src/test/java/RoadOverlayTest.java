@@ -0,0 +1,96 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that rules of a RoadOverlay change the routes found, and that the route cache drops
+ * the cached routes a change made wrong and keeps the others.
+ */
+public class RoadOverlayTest {
+    /** A short way from 1 to 2 with two nodes at the same position, and a longer detour. */
+    private static final String FIXTURE = "repeated_node.osm.xml";
+    private static final long SHORT_WAY = 200;
+    private static final long DETOUR_WAY = 201;
+    private static final long[] SHORT = {1, 3, 4, 2};
+    private static final long[] DETOUR = {1, 5, 6, 2};
+
+    /** @return a snapshot of one region holding the graph of an OSM file, fully loaded. */
+    static Regions load(String osm) {
+        Regions regions = new Regions(Arrays.asList(new Regions.Region("test", osm, "imgs/",
+                31.01, 121.38, 30.99, 121.43)));
+        regions.load(Runnable::run).join();
+        return regions;
+    }
+
+    /** @return the OSM ids of the vertices of a path. */
+    private static long[] ids(CompactGraph g, int[] path) {
+        long[] ids = new long[path.length];
+        for (int i = 0; i < path.length; i += 1) {
+            ids[i] = g.ids[path[i]];
+        }
+        return ids;
+    }
+
+    /** @return the ids of the path from west of node 1 to east of node 2. */
+    private static long[] route(GraphDB db) {
+        CompactGraph g = db.compact;
+        return ids(g, Router.shortestPath(db.contracted, SearchState.get(g),
+                g.snap(121.395, 31.000), g.snap(121.415, 31.000), Profile.SHORTEST));
+    }
+
+    private static long cacheStatus(GraphDB db, String name) {
+        return (Long) db.contracted.routes.status().get(name);
+    }
+
+    @Test
+    public void testClosingWayWithRepeatedNodeEvictsCachedRoute() {
+        Regions regions = load(FIXTURE);
+        GraphDB db = regions.regions.get(0).graph;
+        RoadOverlay overlay = new RoadOverlay(new AtomicReference<>(regions));
+        assertArrayEquals(SHORT, route(db));
+        assertArrayEquals(SHORT, route(db));
+        assertEquals(1, cacheStatus(db, "hits"));
+
+        assertTrue(overlay.set(new RoadOverlay.Target(SHORT_WAY, 0, 0),
+                Double.POSITIVE_INFINITY, 0) > 0);
+        assertEquals(1, cacheStatus(db, "invalidated"));
+        assertArrayEquals(DETOUR, route(db));
+    }
+
+    @Test
+    public void testPenaltyAndRemovalEvictCachedRoute() {
+        Regions regions = load(FIXTURE);
+        GraphDB db = regions.regions.get(0).graph;
+        RoadOverlay overlay = new RoadOverlay(new AtomicReference<>(regions));
+        RoadOverlay.Target target = new RoadOverlay.Target(SHORT_WAY, 0, 0);
+        assertArrayEquals(SHORT, route(db));
+
+        /* the short way becomes dearer than the detour. */
+        overlay.set(target, 3, 0);
+        assertEquals(1, cacheStatus(db, "invalidated"));
+        assertArrayEquals(DETOUR, route(db));
+
+        /* and cheaper again, so the detour it beats is dropped. */
+        assertTrue(overlay.remove(target));
+        assertEquals(2, cacheStatus(db, "invalidated"));
+        assertArrayEquals(SHORT, route(db));
+    }
+
+    @Test
+    public void testPenaltyOffRouteKeepsCachedRoute() {
+        Regions regions = load(FIXTURE);
+        GraphDB db = regions.regions.get(0).graph;
+        RoadOverlay overlay = new RoadOverlay(new AtomicReference<>(regions));
+        assertArrayEquals(SHORT, route(db));
+
+        overlay.set(new RoadOverlay.Target(DETOUR_WAY, 0, 0), 2, 0);
+        assertEquals(0, cacheStatus(db, "invalidated"));
+        assertArrayEquals(SHORT, route(db));
+        assertEquals(1, cacheStatus(db, "hits"));
+    }
+}
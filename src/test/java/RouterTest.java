@@ -0,0 +1,183 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the searches of Router on the contracted graph against plain Dijkstra on the
+ * compact graph it was built from.
+ */
+public class RouterTest {
+    private static final double EPSILON = 1e-6;
+
+    /** @return the cost of the best path from start to dest, infinite if there is none. */
+    static double dijkstra(CompactGraph g, int start, int dest, double[] weights) {
+        boolean[] isTarget = new boolean[g.size()];
+        isTarget[dest] = true;
+        SearchState s = new SearchState(g.size());
+        s.reset();
+        return Router.oneToMany(g, s, start, new int[]{dest}, isTarget, 1, weights)[0];
+    }
+
+    /** @return the OSM ids of the vertices of a path. */
+    private static long[] ids(CompactGraph g, int[] path) {
+        long[] ids = new long[path.length];
+        for (int i = 0; i < path.length; i += 1) {
+            ids[i] = g.ids[path[i]];
+        }
+        return ids;
+    }
+
+    /**
+     * Check the path between two vertices: it runs from start to dest over edges of g and
+     * costs what Dijkstra finds.
+     */
+    private static void checkPath(CompactGraph g, ContractedGraph c, int start, int dest,
+                                  Profile profile) {
+        int[] path = Router.shortestPath(c, SearchState.get(g), start, dest, profile);
+        double[] weights = profile.weights(g);
+        double expected = dijkstra(g, start, dest, weights);
+        if (Double.isInfinite(expected)) {
+            assertNull(path);
+            return;
+        }
+        assertNotNull(path);
+        assertEquals(start, path[0]);
+        assertEquals(dest, path[path.length - 1]);
+        assertEquals(expected, Router.pathCost(g, path, weights), EPSILON * (1 + expected));
+    }
+
+    /** @return the cost between a snapped point and the end v of its segment. */
+    private static double toEnd(SegmentIndex.Snap p, int v, double[] weights) {
+        return (v == p.from ? p.fraction : 1 - p.fraction) * weights[p.edge];
+    }
+
+    /** @return the cost between two points snapped onto the same segment, else infinity. */
+    private static double direct(SegmentIndex.Snap start, SegmentIndex.Snap dest,
+                                 double[] weights) {
+        if (start.edge == dest.edge) {
+            return Math.abs(dest.fraction - start.fraction) * weights[start.edge];
+        } else if (start.from == dest.to && start.to == dest.from) {
+            return Math.abs(1 - dest.fraction - start.fraction) * weights[start.edge];
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Check the path between two snapped points: it leaves the start segment and enters the
+     * destination segment at one of their ends, and costs the best of the direct way along a
+     * shared segment and the four ways through the ends of both segments found by Dijkstra.
+     */
+    private static void checkSnappedPath(CompactGraph g, ContractedGraph c,
+                                         SegmentIndex.Snap start, SegmentIndex.Snap dest,
+                                         Profile profile) {
+        int[] path = Router.shortestPath(c, SearchState.get(g), start, dest, profile);
+        double[] weights = profile.weights(g);
+        double expected = direct(start, dest, weights);
+        for (int a : new int[]{start.from, start.to}) {
+            for (int b : new int[]{dest.from, dest.to}) {
+                expected = Math.min(expected, toEnd(start, a, weights)
+                        + dijkstra(g, a, b, weights) + toEnd(dest, b, weights));
+            }
+        }
+        if (Double.isInfinite(expected)) {
+            assertNull(path);
+            return;
+        }
+        assertNotNull(path);
+        int first = path[0];
+        int last = path[path.length - 1];
+        assertTrue(first == start.from || first == start.to);
+        assertTrue(last == dest.from || last == dest.to);
+        double cost = toEnd(start, first, weights) + Router.pathCost(g, path, weights)
+                + toEnd(dest, last, weights);
+        if (path.length == 2) {
+            cost = Math.min(cost, direct(start, dest, weights));
+        }
+        assertEquals(expected, cost, EPSILON * (1 + expected));
+    }
+
+    /**
+     * A start on a chain whose far end is cheaper to reach over a detour from its near end:
+     * the far end must not be settled at the cost along the chain.
+     */
+    @Test
+    public void testChainLongerThanDetour() {
+        GraphDB db = new GraphDB("chain_detour.osm.xml");
+        CompactGraph g = db.compact;
+        int start = g.indexOf(10);
+        int dest = g.indexOf(41);
+        for (Profile profile : Profile.values()) {
+            checkPath(g, db.contracted, start, dest, profile);
+        }
+        int[] path = Router.shortestPath(db.contracted, SearchState.get(g), start, dest,
+                Profile.SHORTEST);
+        assertArrayEquals(new long[]{10, 1, 20, 2, 40, 41}, ids(g, path));
+    }
+
+    /** The same, with the start snapped between the near end of the chain and its next node. */
+    @Test
+    public void testSnappedChainLongerThanDetour() {
+        GraphDB db = new GraphDB("chain_detour.osm.xml");
+        CompactGraph g = db.compact;
+        SegmentIndex.Snap start = g.snap(121.400, 31.0005);
+        SegmentIndex.Snap dest = g.snap(121.430, 31.000);
+        for (Profile profile : Profile.values()) {
+            checkSnappedPath(g, db.contracted, start, dest, profile);
+        }
+        int[] path = Router.shortestPath(db.contracted, SearchState.get(g), start, dest,
+                Profile.SHORTEST);
+        assertArrayEquals(new long[]{1, 20, 2, 40}, ids(g, path));
+    }
+
+    @Test
+    public void testRandomPairsMatchDijkstra() {
+        GraphDB db = new GraphDB("random_grid.osm.xml");
+        CompactGraph g = db.compact;
+        Random random = new Random(1);
+        for (Profile profile : Profile.values()) {
+            for (int i = 0; i < 3000; i += 1) {
+                checkPath(g, db.contracted, random.nextInt(g.size()), random.nextInt(g.size()),
+                        profile);
+            }
+        }
+    }
+
+    /** Random points snapped onto the grid, every tenth destination next to its start. */
+    @Test
+    public void testRandomSnappedPairsMatchDijkstra() {
+        GraphDB db = new GraphDB("random_grid.osm.xml");
+        CompactGraph g = db.compact;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < g.size(); v += 1) {
+            minLon = Math.min(minLon, g.lons[v]);
+            maxLon = Math.max(maxLon, g.lons[v]);
+            minLat = Math.min(minLat, g.lats[v]);
+            maxLat = Math.max(maxLat, g.lats[v]);
+        }
+        Random random = new Random(2);
+        for (Profile profile : Profile.values()) {
+            for (int i = 0; i < 2000; i += 1) {
+                double lon = minLon + (maxLon - minLon) * random.nextDouble();
+                double lat = minLat + (maxLat - minLat) * random.nextDouble();
+                SegmentIndex.Snap start = g.snap(lon, lat);
+                if (i % 10 != 0) {
+                    lon = minLon + (maxLon - minLon) * random.nextDouble();
+                    lat = minLat + (maxLat - minLat) * random.nextDouble();
+                } else {
+                    lon = start.lon + (random.nextDouble() - 0.5) * 1e-4;
+                    lat = start.lat + (random.nextDouble() - 0.5) * 1e-4;
+                }
+                checkSnappedPath(g, db.contracted, start, g.snap(lon, lat), profile);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that SingleFlight runs overlapping identical calls once, shares their value or
+ * exception, and forgets a key once its computation ends.
+ */
+public class SingleFlightTest {
+    private static final int CALLERS = 8;
+
+    /** Wait until a computation of flight is running. */
+    private static void awaitRunning(SingleFlight<?, ?> flight) throws InterruptedException {
+        while ((Integer) flight.status().get("running") == 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    /** Wait until no computation of flight is running; a key is forgotten just after its
+     * value is handed out. */
+    private static void awaitIdle(SingleFlight<?, ?> flight) throws InterruptedException {
+        while ((Integer) flight.status().get("running") > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    /** Wait until the status of flight reports the given number of shared calls. */
+    private static void awaitShared(SingleFlight<?, ?> flight, long count)
+            throws InterruptedException {
+        while ((Long) flight.status().get("shared") < count) {
+            Thread.sleep(1);
+        }
+    }
+
+    /** @return the result of flight.call(key, work) on a thread of its own. */
+    private static <V> CompletableFuture<V> callAsync(SingleFlight<String, V> flight,
+                                                      String key, Callable<V> work) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        new Thread(() -> {
+            try {
+                result.complete(flight.call(key, work));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        }).start();
+        return result;
+    }
+
+    @Test(timeout = 10000)
+    public void testOverlappingCallsShareOneComputation() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        List<CompletableFuture<Object>> results = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i += 1) {
+            results.add(callAsync(flight, "key", () -> {
+                runs.incrementAndGet();
+                release.await();
+                return new Object();
+            }));
+        }
+        /* every caller but the first waits for the first one's computation. */
+        awaitShared(flight, CALLERS - 1);
+        release.countDown();
+        Object value = results.get(0).get();
+        for (CompletableFuture<Object> result : results) {
+            assertSame(value, result.get());
+        }
+        assertEquals(1, runs.get());
+        assertEquals(1L, flight.status().get("computed"));
+        awaitIdle(flight);
+    }
+
+    @Test(timeout = 10000)
+    public void testExceptionIsSharedAndKeyForgotten() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CountDownLatch release = new CountDownLatch(1);
+        IOException failure = new IOException("broken");
+        CompletableFuture<String> first = callAsync(flight, "key", () -> {
+            release.await();
+            throw failure;
+        });
+        awaitRunning(flight);
+        CompletableFuture<String> second = callAsync(flight, "key", () -> "other");
+        awaitShared(flight, 1);
+        release.countDown();
+        for (CompletableFuture<String> result : Arrays.asList(first, second)) {
+            try {
+                result.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+        /* a call after the computation ended computes again. */
+        awaitIdle(flight);
+        assertEquals("again", flight.call("key", () -> "again"));
+        assertEquals(2L, flight.status().get("computed"));
+        assertEquals(1L, flight.status().get("shared"));
+    }
+
+    @Test
+    public void testDifferentKeysComputeSeparately() throws Exception {
+        SingleFlight<Integer, Integer> flight = new SingleFlight<>();
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> a = flight.start(1, () -> {
+            release.await();
+            return 1;
+        }, r -> new Thread(r).start());
+        assertEquals(2, (int) flight.call(2, () -> 2));
+        assertTrue(!a.isDone());
+        release.countDown();
+        assertEquals(1, (int) a.get());
+        assertEquals(2L, flight.status().get("computed"));
+        assertEquals(0L, flight.status().get("shared"));
+    }
+
+    @Test
+    public void testRejectedComputationFailsAndIsForgotten() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CompletableFuture<String> rejected = flight.start("key", () -> "value", r -> {
+            throw new RejectedExecutionException("full");
+        });
+        try {
+            rejected.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, flight.status().get("running"));
+        assertEquals("value", flight.call("key", () -> "value"));
+    }
+}